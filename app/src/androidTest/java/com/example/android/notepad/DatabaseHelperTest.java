@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.test.AndroidTestCase;
+
+/**
+ * Tests the schema upgrades done by {@link NotePadProvider.DatabaseHelper}. Each test builds a
+ * database with an old schema by hand, then opens it through the helper.
+ */
+public class DatabaseHelperTest extends AndroidTestCase {
+
+    // The name of the scratch database used by these tests
+    private static final String TEST_DATABASE_NAME = "note_pad_upgrade_test.db";
+
+    // Number of notes in the version 2 database
+    private static final int UPGRADE_ROW_COUNT = 100000;
+
+    // Upper bound for the upgrade of UPGRADE_ROW_COUNT notes, in milliseconds
+    private static final long UPGRADE_TIME_LIMIT_MILLIS = 60 * 1000;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        getContext().deleteDatabase(TEST_DATABASE_NAME);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        getContext().deleteDatabase(TEST_DATABASE_NAME);
+        super.tearDown();
+    }
+
+    /*
+     * Creates a version 2 database holding UPGRADE_ROW_COUNT notes, upgrades it, and checks that
+     * every note survived, that the new search index covers the old notes, that progress was
+     * reported up to the full row count, and that the upgrade finished in bounded time. The
+     * index is only built once, by the upgrade to version 7.
+     */
+    public void testUpgradeFromVersion2KeepsNotes() {
+        SQLiteDatabase v2 = getContext().openOrCreateDatabase(
+                TEST_DATABASE_NAME, Context.MODE_PRIVATE, null);
+        v2.execSQL("CREATE TABLE " + NotePad.Notes.TABLE_NAME + " ("
+                + NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
+                + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
+                + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
+                + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
+                + NotePad.Notes.COLUMN_NAME_BACKGROUND_COLOR + " TEXT"
+                + ");");
+
+        SQLiteStatement insert = v2.compileStatement("INSERT INTO " + NotePad.Notes.TABLE_NAME
+                + " (" + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE
+                + ", " + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ", "
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ", "
+                + NotePad.Notes.COLUMN_NAME_BACKGROUND_COLOR + ") VALUES (?, ?, ?, ?, ?)");
+        v2.beginTransaction();
+        try {
+            for (int i = 0; i < UPGRADE_ROW_COUNT; i++) {
+                insert.bindString(1, "Note" + i);
+                insert.bindString(2, i == 0 ? "Crème brûlée, note 0"
+                        : "This is the body of note " + i);
+                insert.bindLong(3, i);
+                insert.bindLong(4, i);
+                insert.bindString(5, "#FFFFFF");
+                insert.executeInsert();
+            }
+            v2.setTransactionSuccessful();
+        } finally {
+            v2.endTransaction();
+        }
+        v2.setVersion(2);
+        v2.close();
+
+        final long[] lastProgress = { -1, -1 };
+        final long[] skippedIndexProgress = { -1 };
+        NotePadProvider.DatabaseHelper helper =
+                new NotePadProvider.DatabaseHelper(getContext(), TEST_DATABASE_NAME);
+        helper.setUpgradeListener(new NotePadProvider.DatabaseHelper.UpgradeListener() {
+            @Override
+            public void onUpgradeProgress(int toVersion, long rowsDone, long rowsTotal) {
+                // Version 3 would fill an index that version 7 replaces, so it is skipped
+                if (toVersion == 3) {
+                    skippedIndexProgress[0] = rowsTotal;
+                    return;
+                }
+
+                // Version 7 fills the search index, which is the slowest step
+                if (toVersion != 7) {
+                    return;
+                }
+
+                // Progress must never go backwards within the search index step
+                assertTrue(rowsDone >= lastProgress[0]);
+                lastProgress[0] = rowsDone;
+                lastProgress[1] = rowsTotal;
+            }
+        });
+
+        long start = System.currentTimeMillis();
+        SQLiteDatabase db = helper.getWritableDatabase();
+        long elapsed = System.currentTimeMillis() - start;
+
+        try {
+            assertTrue("upgrade took " + elapsed + " ms", elapsed < UPGRADE_TIME_LIMIT_MILLIS);
+            assertEquals(0, skippedIndexProgress[0]);
+            assertEquals(UPGRADE_ROW_COUNT, lastProgress[0]);
+            assertEquals(UPGRADE_ROW_COUNT, lastProgress[1]);
+
+            assertEquals(UPGRADE_ROW_COUNT,
+                    DatabaseUtils.queryNumEntries(db, NotePad.Notes.TABLE_NAME));
+
+            Cursor c = db.query(NotePad.Notes.TABLE_NAME,
+                    new String[] { NotePad.Notes.COLUMN_NAME_NOTE },
+                    NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note12345" },
+                    null, null, null);
+            assertTrue(c.moveToFirst());
+            assertEquals("This is the body of note 12345", c.getString(0));
+            c.close();
+
+            // The notes written before the upgrade are reachable through the search index
+            c = db.rawQuery("SELECT rowid FROM notes_fts WHERE notes_fts MATCH ?",
+                    new String[] { "12345" });
+            assertEquals(1, c.getCount());
+            c.close();
+
+            // A note with accents is indexed by its normalized text
+            c = db.rawQuery("SELECT rowid FROM notes_fts WHERE notes_fts MATCH ?",
+                    new String[] { "creme" });
+            assertEquals(1, c.getCount());
+            c.close();
+
+            // Plain ASCII notes are searched as they are, without a normalized copy
+            c = db.query(NotePad.Notes.TABLE_NAME, new String[] { SearchText.COLUMN_NAME_TITLE },
+                    NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note12345" },
+                    null, null, null);
+            assertTrue(c.moveToFirst());
+            assertTrue(c.isNull(0));
+            c.close();
+        } finally {
+            helper.close();
+        }
+    }
+}
@@ -16,6 +16,14 @@
 
 package com.example.android.notepad;
 
+import android.app.Activity;
+import android.app.Instrumentation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.StrictMode;
 import android.test.ActivityInstrumentationTestCase2;
 import com.example.android.notepad.NotesList;
 
@@ -38,4 +46,136 @@ public class NotePadActivityTest extends ActivityInstrumentationTestCase2<NotesL
     public void testActivityTestCaseSetUpProperly() {
         assertNotNull("activity should be launched successfully", getActivity());
     }
+
+    /**
+     * Opens the notes list with a StrictMode policy that kills the process on any disk read
+     * on the main thread, so a provider query made on the main thread fails the test run.
+     */
+    public void testNotesListDoesNotReadOnMainThread() throws Exception {
+        openDatabase();
+
+        StrictMode.ThreadPolicy oldPolicy = enableStrictReads();
+        try {
+            Activity activity = getActivity();
+            getInstrumentation().waitForIdleSync();
+
+            // Gives the background query time to finish and be delivered
+            Thread.sleep(500);
+            getInstrumentation().waitForIdleSync();
+            assertFalse(activity.isFinishing());
+        } finally {
+            restorePolicy(oldPolicy);
+        }
+    }
+
+    /**
+     * Opens a note in the editor with the same StrictMode policy as
+     * {@link #testNotesListDoesNotReadOnMainThread}.
+     */
+    public void testNoteEditorDoesNotReadOnMainThread() throws Exception {
+        ContentResolver resolver = getInstrumentation().getTargetContext().getContentResolver();
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "StrictMode");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Loaded in the background");
+        Uri noteUri = resolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        Instrumentation.ActivityMonitor monitor =
+                getInstrumentation().addMonitor(NoteEditor.class.getName(), null, false);
+        StrictMode.ThreadPolicy oldPolicy = enableStrictReads();
+        try {
+            Intent intent = new Intent(Intent.ACTION_EDIT, noteUri);
+            intent.setClassName(getInstrumentation().getTargetContext(), NoteEditor.class.getName());
+            intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            getInstrumentation().getTargetContext().startActivity(intent);
+
+            Activity editor = getInstrumentation().waitForMonitorWithTimeout(monitor, 5000);
+            assertNotNull("editor should be launched", editor);
+
+            Thread.sleep(500);
+            getInstrumentation().waitForIdleSync();
+            editor.finish();
+        } finally {
+            getInstrumentation().removeMonitor(monitor);
+            restorePolicy(oldPolicy);
+            resolver.delete(noteUri, null, null);
+        }
+    }
+
+    /**
+     * Opens a note in the editor and leaves without changing it. The note must not be written,
+     * so its modification date stays the same.
+     */
+    public void testNoteEditorSkipsUnchangedNote() throws Exception {
+        ContentResolver resolver = getInstrumentation().getTargetContext().getContentResolver();
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Unchanged");
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Opened and closed");
+        values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, 1000L);
+        Uri noteUri = resolver.insert(NotePad.Notes.CONTENT_URI, values);
+
+        Instrumentation.ActivityMonitor monitor =
+                getInstrumentation().addMonitor(NoteEditor.class.getName(), null, false);
+        try {
+            Intent intent = new Intent(Intent.ACTION_EDIT, noteUri);
+            intent.setClassName(getInstrumentation().getTargetContext(), NoteEditor.class.getName());
+            intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            getInstrumentation().getTargetContext().startActivity(intent);
+
+            Activity editor = getInstrumentation().waitForMonitorWithTimeout(monitor, 5000);
+            assertNotNull("editor should be launched", editor);
+
+            // Waits for the note to load, then leaves the editor
+            Thread.sleep(500);
+            getInstrumentation().waitForIdleSync();
+            editor.finish();
+            getInstrumentation().waitForIdleSync();
+            assertTrue(NoteSaveQueue.getInstance(editor).flush(5000));
+
+            Cursor cursor = resolver.query(noteUri,
+                    new String[] { NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE },
+                    null, null, null);
+            assertTrue(cursor.moveToFirst());
+            assertEquals(1000L, cursor.getLong(0));
+            cursor.close();
+        } finally {
+            getInstrumentation().removeMonitor(monitor);
+            resolver.delete(noteUri, null, null);
+        }
+    }
+
+    // Opens the notes database from the test thread, so that opening it is not counted
+    // against the activities.
+    private void openDatabase() {
+        Cursor cursor = getInstrumentation().getTargetContext().getContentResolver().query(
+                NotePad.Notes.CONTENT_URI, null, null, null, null);
+        if (cursor != null) {
+            cursor.close();
+        }
+    }
+
+    // Installs a main-thread policy that detects disk reads, and returns the policy it replaced.
+    private StrictMode.ThreadPolicy enableStrictReads() {
+        final StrictMode.ThreadPolicy[] oldPolicy = new StrictMode.ThreadPolicy[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                oldPolicy[0] = StrictMode.getThreadPolicy();
+                StrictMode.setThreadPolicy(new StrictMode.ThreadPolicy.Builder()
+                        .detectDiskReads()
+                        .penaltyLog()
+                        .penaltyDeath()
+                        .build());
+            }
+        });
+        return oldPolicy[0];
+    }
+
+    private void restorePolicy(final StrictMode.ThreadPolicy policy) {
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                StrictMode.setThreadPolicy(policy);
+            }
+        });
+    }
 }
@@ -16,23 +16,56 @@
 
 package com.example.android.notepad;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.res.AssetFileDescriptor;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
 import android.os.ParcelFileDescriptor;
+import android.os.ResultReceiver;
+import android.os.SystemClock;
 import android.test.ProviderTestCase2;
 import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import org.json.JSONObject;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 /*
  */
@@ -44,6 +77,9 @@ import java.util.GregorianCalendar;
  */
 public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
+    // For logging benchmark results
+    private static final String TAG = "NotePadProviderTest";
+
     // A URI that the provider does not offer, for testing error handling.
     private static final Uri INVALID_URI =
         Uri.withAppendedPath(NotePad.Notes.CONTENT_URI, "invalid");
@@ -186,9 +222,16 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
      */
     public void testGetStreamTypes() {
 
-        // Tests the notes table URI. This should return null, since the content provider does
-        // not provide a stream MIME type for multiple notes.
-        assertNull(mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL));
+        // Tests the notes table URI. This should return the export types, NDJSON and zip.
+        String[] exportTypes =
+                mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL);
+        assertNotNull(exportTypes);
+        assertEquals(2, exportTypes.length);
+        assertEquals(NotePad.Notes.EXPORT_TYPE_NDJSON, exportTypes[0]);
+        assertEquals(NotePad.Notes.EXPORT_TYPE_ZIP, exportTypes[1]);
+
+        // The notes table URI has no text/plain stream
+        assertNull(mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPE_TEXT));
 
         // Tests the live folders URI. This should return null, since the content provider does not
         // provide a stream MIME type for multiple notes.
@@ -222,7 +265,7 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
          * Tests with a URI that should not have any associated stream MIME types, but with a
          * filter that returns all types. The result should still be null.
          */
-        mimeType = mMockResolver.getStreamTypes(NotePad.Notes.CONTENT_URI, MIME_TYPES_ALL);
+        mimeType = mMockResolver.getStreamTypes(searchUri("note"), MIME_TYPES_ALL);
         assertNull(mimeType);
 
     }
@@ -790,6 +833,2201 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
 
     }
 
+    /*
+     * Tests full-text searches through the search URI. The index is maintained by triggers, so
+     * rows written directly to the database, updated rows and deleted rows must all be reflected.
+     */
+    public void testSearch() {
+        // Tests the MIME type for the search URI.
+        assertEquals(NotePad.Notes.CONTENT_TYPE, mMockResolver.getType(NotePad.Notes.SEARCH_URI));
+
+        // Inserts the test data into the provider's underlying data source
+        insertData();
+
+        // Only Note3 contains the term "3" in its body.
+        Cursor cursor = mMockResolver.query(searchUri("note 3"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(TEST_NOTES[3].title,
+                cursor.getString(cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE)));
+        cursor.close();
+
+        // Terms are matched as prefixes, so "not" matches every note.
+        cursor = mMockResolver.query(searchUri("not"), null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+
+        // An empty query, or one with only punctuation, returns every note.
+        cursor = mMockResolver.query(searchUri("\"*"), null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+
+        // Updates a note body, and checks that the index follows the new text.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Buy milk");
+        assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note1" }));
+
+        cursor = mMockResolver.query(searchUri("milk"), null, null, null, null);
+        assertEquals(1, cursor.getCount());
+        cursor.close();
+
+        cursor = mMockResolver.query(searchUri("note 1"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Deletes the note, and checks that it is no longer found.
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Note1" });
+
+        cursor = mMockResolver.query(searchUri("milk"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests bulk inserts. bulkInsert() inserts every note in one transaction, so a batch with a
+     * bad row inserts nothing, and notifies observers once. Its throughput is compared with
+     * inserting the same notes one at a time, each in its own transaction, and logged.
+     */
+    public void testBulkInsert() {
+        final int ROW_COUNT = 2000;
+
+        ContentValues[] batch = new ContentValues[ROW_COUNT];
+        for (int index = 0; index < ROW_COUNT; index++) {
+            batch[index] = new NoteInfo("Bulk" + index, "Bulk inserted note " + index)
+                    .getContentValues();
+        }
+
+        // Inserts the notes one at a time.
+        long start = System.nanoTime();
+        for (ContentValues values : batch) {
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI, values);
+        }
+        long singleNanos = System.nanoTime() - start;
+
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI, null, null);
+
+        // A bad row at the end of the batch rolls back the rows before it.
+        ContentValues[] badBatch = Arrays.copyOf(batch, ROW_COUNT + 1);
+        badBatch[ROW_COUNT] = new ContentValues();
+        badBatch[ROW_COUNT].put("no_such_column", "Bad");
+        try {
+            mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, badBatch);
+            fail("Inserted a note with an unknown column");
+        } catch (SQLException e) {
+            // expected
+        }
+        assertEquals(0, noteCount());
+
+        // Inserts the same notes as a single batch.
+        ChangeNotifier notifier = getProvider().getChangeNotifier();
+        notifier.flush();
+        long dispatched = notifier.getDispatchedCount();
+        start = System.nanoTime();
+        assertEquals(ROW_COUNT, mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, batch));
+        long bulkNanos = System.nanoTime() - start;
+
+        assertEquals(ROW_COUNT, noteCount());
+        assertEquals(1, notifier.getDispatchedCount() - dispatched);
+
+        Log.i(TAG, "insert(): " + (ROW_COUNT * 1000000000L / singleNanos) + " rows/s, "
+                + "bulkInsert(): " + (ROW_COUNT * 1000000000L / bulkNanos) + " rows/s");
+    }
+
+    // Returns the number of notes in the provider.
+    private int noteCount() {
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes._ID }, null, null, null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests that applyBatch() is atomic: when one operation fails, the operations before it are
+     * rolled back.
+     */
+    public void testApplyBatch() throws Exception {
+        insertData();
+
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                .withValues(new NoteInfo("Batch0", "Inserted in a batch").getContentValues())
+                .build());
+        operations.add(ContentProviderOperation.newDelete(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1))
+                .build());
+
+        // Applies a successful batch.
+        assertEquals(2, mMockResolver.applyBatch(NotePad.AUTHORITY, operations).length);
+
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+
+        // Appends an assertion that cannot hold, which makes the whole batch fail.
+        operations.add(ContentProviderOperation.newAssertQuery(NotePad.Notes.CONTENT_URI)
+                .withExpectedCount(0)
+                .build());
+        try {
+            mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+            fail("Expected the batch to fail on its assertion");
+        } catch (OperationApplicationException e) {
+            // expected
+        }
+
+        // None of the operations in the failed batch took effect.
+        cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null, null);
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests that change notifications are coalesced. Repeated writes to one note within the
+     * notifier's window send fewer notifications than they request, and a batch that changes
+     * hundreds of notes sends exactly one.
+     */
+    public void testNotificationsCoalesced() throws Exception {
+        final int BATCH_SIZE = 500;
+
+        ChangeNotifier notifier = getProvider().getChangeNotifier();
+
+        ContentValues[] notes = new ContentValues[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            notes[i] = new NoteInfo("Coalesced" + i, "Note " + i).getContentValues();
+        }
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes);
+        notifier.flush();
+
+        // Saves the same note repeatedly, as an autosave would.
+        long requested = notifier.getRequestedCount();
+        long dispatched = notifier.getDispatchedCount();
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
+        ContentValues values = new ContentValues();
+        for (int i = 0; i < 50; i++) {
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Draft " + i);
+            assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        }
+        notifier.flush();
+        assertEquals(50, notifier.getRequestedCount() - requested);
+        assertTrue(notifier.getDispatchedCount() - dispatched < 50);
+
+        // Changes the color of every note in one batch.
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes._ID }, null, null, null);
+        while (cursor.moveToNext()) {
+            operations.add(ContentProviderOperation.newUpdate(
+                    ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE,
+                            cursor.getLong(0)))
+                    .withValue(NotePad.Notes.COLUMN_NAME_BACKGROUND_COLOR, "#FFEEEE")
+                    .build());
+        }
+        cursor.close();
+
+        requested = notifier.getRequestedCount();
+        dispatched = notifier.getDispatchedCount();
+        mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+        assertEquals(BATCH_SIZE, notifier.getRequestedCount() - requested);
+        assertEquals(1, notifier.getDispatchedCount() - dispatched);
+    }
+
+    /*
+     * Tests that updates and deletes notify each changed note on its own URI. An observer of
+     * one note hears of changes to that note only, a write with a WHERE clause notifies every
+     * note it changed, and the batched paths notify each note once.
+     */
+    public void testNoteNotifications() throws Exception {
+        insertData();
+
+        // MockContentResolver drops notifications, so they are sent through the real one
+        getProvider().setChangeNotifierForTest(new ChangeNotifier(
+                getContext().getContentResolver(), NotePad.Notes.CONTENT_URI));
+        ChangeNotifier notifier = getProvider().getChangeNotifier();
+
+        long[] ids = new long[TEST_NOTES.length];
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI,
+                new String[] { NotePad.Notes._ID }, null, null, NotePad.Notes._ID + " ASC");
+        while (cursor.moveToNext()) {
+            ids[cursor.getPosition()] = cursor.getLong(0);
+        }
+        cursor.close();
+        Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, ids[0]);
+        Uri otherUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, ids[1]);
+
+        RecordingObserver noteObserver = new RecordingObserver();
+        RecordingObserver allObserver = new RecordingObserver();
+        getContext().getContentResolver().registerContentObserver(noteUri, false, noteObserver);
+        getContext().getContentResolver().registerContentObserver(NotePad.Notes.CONTENT_URI,
+                true, allObserver);
+        try {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Changed");
+
+            // Another note changes
+            assertEquals(1, mMockResolver.update(otherUri, values, null, null));
+            notifier.flush();
+            assertEquals(Arrays.asList(otherUri), allObserver.await(1));
+            assertEquals(Arrays.<Uri>asList(), noteObserver.await(0));
+
+            // The observed note changes
+            assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+            notifier.flush();
+            assertEquals(Arrays.asList(noteUri), allObserver.await(1));
+            assertEquals(Arrays.asList(noteUri), noteObserver.await(1));
+
+            // An update with a WHERE clause notifies each note it changed
+            String where = NotePad.Notes._ID + " IN (" + ids[0] + "," + ids[2] + "," + ids[3]
+                    + ")";
+            assertEquals(3, mMockResolver.update(NotePad.Notes.CONTENT_URI, values, where,
+                    null));
+            notifier.flush();
+            assertEquals(noteUris(ids[0], ids[2], ids[3]), sorted(allObserver.await(3)));
+            assertEquals(Arrays.asList(noteUri), noteObserver.await(1));
+
+            // So does a delete, which leaves the observed note alone
+            where = NotePad.Notes._ID + " IN (" + ids[4] + "," + ids[5] + ")";
+            assertEquals(2, mMockResolver.delete(NotePad.Notes.CONTENT_URI, where, null));
+            notifier.flush();
+            assertEquals(noteUris(ids[4], ids[5]), sorted(allObserver.await(2)));
+            assertEquals(Arrays.<Uri>asList(), noteObserver.await(0));
+
+            // A batch notifies each note it changed once, even if it changed it twice
+            ArrayList<ContentProviderOperation> operations =
+                    new ArrayList<ContentProviderOperation>();
+            for (long id : new long[] { ids[6], ids[7], ids[6] }) {
+                operations.add(ContentProviderOperation.newUpdate(
+                        ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, id))
+                        .withValues(values)
+                        .build());
+            }
+            mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+            assertEquals(noteUris(ids[6], ids[7]), sorted(allObserver.await(2)));
+            assertEquals(Arrays.<Uri>asList(), noteObserver.await(0));
+
+            ContentValues[] batch = {
+                new NoteInfo("Batch0", "First").getContentValues(),
+                new NoteInfo("Batch1", "Second").getContentValues()
+            };
+            mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, batch);
+            List<Uri> inserted = allObserver.await(2);
+            assertEquals(2, inserted.size());
+            assertEquals(2, new HashSet<Uri>(inserted).size());
+
+            // The observed note is deleted
+            assertEquals(1, mMockResolver.delete(noteUri, null, null));
+            notifier.flush();
+            assertEquals(Arrays.asList(noteUri), allObserver.await(1));
+            assertEquals(Arrays.asList(noteUri), noteObserver.await(1));
+        } finally {
+            getContext().getContentResolver().unregisterContentObserver(noteObserver);
+            getContext().getContentResolver().unregisterContentObserver(allObserver);
+        }
+    }
+
+    // Returns the URIs of the given notes, in the order of their ids.
+    private static List<Uri> noteUris(long... ids) {
+        List<Uri> uris = new ArrayList<Uri>();
+        for (long id : ids) {
+            uris.add(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, id));
+        }
+        return sorted(uris);
+    }
+
+    // Returns the note URIs sorted by their ids.
+    private static List<Uri> sorted(List<Uri> uris) {
+        Collections.sort(uris, new Comparator<Uri>() {
+            @Override
+            public int compare(Uri a, Uri b) {
+                long idA = ContentUris.parseId(a);
+                long idB = ContentUris.parseId(b);
+                return idA < idB ? -1 : (idA == idB ? 0 : 1);
+            }
+        });
+        return uris;
+    }
+
+    // Records the URIs it is notified of. Notifications arrive on a binder thread.
+    private static class RecordingObserver extends ContentObserver {
+        // How long to keep listening once the expected notifications arrived, to catch extras
+        private static final long SETTLE_MILLIS = 200;
+        private static final long TIMEOUT_MILLIS = 5000;
+
+        private final ArrayList<Uri> mUris = new ArrayList<Uri>();
+
+        RecordingObserver() {
+            super(null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public synchronized void onChange(boolean selfChange, Uri uri) {
+            mUris.add(uri);
+            notifyAll();
+        }
+
+        /*
+         * Waits for the expected number of notifications, then a little longer, and returns
+         * every notification received since the last call.
+         */
+        synchronized List<Uri> await(int expected) throws InterruptedException {
+            long deadline = SystemClock.uptimeMillis() + TIMEOUT_MILLIS;
+            while (mUris.size() < expected && SystemClock.uptimeMillis() < deadline) {
+                wait(deadline - SystemClock.uptimeMillis());
+            }
+            deadline = SystemClock.uptimeMillis() + SETTLE_MILLIS;
+            while (SystemClock.uptimeMillis() < deadline) {
+                wait(deadline - SystemClock.uptimeMillis());
+            }
+            List<Uri> uris = new ArrayList<Uri>(mUris);
+            mUris.clear();
+            return uris;
+        }
+    }
+
+    /*
+     * Tests the queue NoteEditor saves notes through. Every save is either written or merged
+     * into a later one, the provider ends up with the latest text, and a delete replaces the
+     * saves queued before it.
+     */
+    public void testNoteSaveQueue() {
+        final int SAVE_COUNT = 200;
+
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Draft", "").getContentValues());
+        NoteSaveQueue queue = new NoteSaveQueue(mMockResolver);
+
+        for (int i = 0; i < SAVE_COUNT; i++) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Draft " + i);
+            queue.save(noteUri, values);
+        }
+        assertTrue(queue.flush(10000));
+
+        assertEquals(SAVE_COUNT, queue.getSaveCount());
+        assertEquals(SAVE_COUNT, queue.getWriteCount() + queue.getCoalescedCount());
+        Log.i(TAG, "Save queue: " + queue.getSaveCount() + " saves, "
+                + queue.getCoalescedCount() + " coalesced");
+
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Draft " + (SAVE_COUNT - 1), cursor.getString(0));
+        cursor.close();
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Never written");
+        queue.save(noteUri, values);
+        queue.delete(noteUri);
+        assertTrue(queue.flush(10000));
+
+        cursor = mMockResolver.query(noteUri, null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests that a failed patch is not silently lost. The queue drops the patches made after
+     * it, which were relative to the lost edits, until the note is saved whole, and the whole
+     * save reaches the provider.
+     */
+    public void testNoteSaveQueuePatchFailure() {
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Draft", "Hello world").getContentValues());
+        NoteSaveQueue queue = new NoteSaveQueue(mMockResolver);
+
+        // Patches past the end of the note, so the batch fails
+        ArrayList<ContentValues> patches = new ArrayList<ContentValues>();
+        patches.add(patch(50, 0, "lost"));
+        queue.patch(noteUri, patches);
+        assertTrue(queue.flush(10000));
+        assertTrue(queue.needsWholeSave(noteUri));
+        assertEquals("Hello world", queryNote(noteUri));
+
+        // A patch relative to the lost edit would corrupt the note, so it is not written
+        patches = new ArrayList<ContentValues>();
+        patches.add(patch(0, 5, "Goodbye"));
+        queue.patch(noteUri, patches);
+        assertTrue(queue.flush(10000));
+        assertEquals("Hello world", queryNote(noteUri));
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Goodbye world, lost");
+        queue.save(noteUri, values);
+        assertFalse(queue.needsWholeSave(noteUri));
+        assertTrue(queue.flush(10000));
+        assertEquals("Goodbye world, lost", queryNote(noteUri));
+
+        // Patches are written again once the note has been saved whole
+        patches = new ArrayList<ContentValues>();
+        patches.add(patch(15, 4, "kept"));
+        queue.patch(noteUri, patches);
+        assertTrue(queue.flush(10000));
+        assertEquals("Goodbye world, kept", queryNote(noteUri));
+    }
+
+    /*
+     * Tests patch updates: replacing, inserting and deleting text in place, offsets counted in
+     * code points, the snippet following the patched text, and invalid patches.
+     */
+    public void testPatch() throws Exception {
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Patched", "Hello world").getContentValues());
+        Uri patchUri = Uri.withAppendedPath(noteUri, NotePad.Notes.PATH_SEGMENT_PATCH);
+
+        assertEquals(1, mMockResolver.update(patchUri, patch(6, 5, "there"), null, null));
+        assertEquals("Hello there", queryNote(noteUri));
+
+        // Two patches applied together, the second relative to the result of the first
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        operations.add(ContentProviderOperation.newUpdate(patchUri)
+                .withValues(patch(0, 0, "😀 ")).build());
+        operations.add(ContentProviderOperation.newUpdate(patchUri)
+                .withValues(patch(2, 6, "")).build());
+        mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+
+        // The emoji is one code point, so the second patch starts right after it and the space
+        assertEquals("😀 there", queryNote(noteUri));
+
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_SNIPPET }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("😀 there", cursor.getString(0));
+        cursor.close();
+
+        try {
+            mMockResolver.update(patchUri, patch(5, 10, "x"), null, null);
+            fail("Expected a patch past the end of the note to fail");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals("😀 there", queryNote(noteUri));
+
+        // Patching a note that does not exist changes nothing
+        Uri missing = Uri.withAppendedPath(
+                ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 9999),
+                NotePad.Notes.PATH_SEGMENT_PATCH);
+        assertEquals(0, mMockResolver.update(missing, patch(0, 0, "x"), null, null));
+    }
+
+    /*
+     * Tests that a patch never leaves more than the first chunk of a note in the notes table.
+     * A short note patched past the chunk length is split as if it had been written whole, and
+     * a patch that grows the first chunk of a chunked note splits it again.
+     */
+    public void testPatchPastChunkLength() {
+        final int LENGTH = 60 * 1024;
+        final int INSERTED = 8 * 1024;
+
+        String text = makeProse(new Random(17), LENGTH);
+        char[] inserted = new char[INSERTED];
+        Arrays.fill(inserted, 'x');
+        String insertedText = new String(inserted);
+
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Growing", text).getContentValues());
+        long noteId = ContentUris.parseId(noteUri);
+        Uri patchUri = Uri.withAppendedPath(noteUri, NotePad.Notes.PATH_SEGMENT_PATCH);
+        assertEquals(0, chunkLayout(noteId).size());
+
+        assertEquals(1, mMockResolver.update(patchUri, patch(LENGTH / 2, 0, insertedText),
+                null, null));
+        text = text.substring(0, LENGTH / 2) + insertedText + text.substring(LENGTH / 2);
+        assertEquals(text, queryNote(noteUri));
+        assertEquals(NoteChunks.CHUNK_LENGTH, headLength(noteId));
+
+        // The same chunks as the same text written whole
+        long wholeId = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Whole", text).getContentValues()));
+        assertEquals(chunkLayout(wholeId), chunkLayout(noteId));
+        assertEquals(1, chunkLayout(noteId).size());
+
+        // Grows the first chunk of the now chunked note
+        assertEquals(1, mMockResolver.update(patchUri, patch(100, 0, insertedText), null,
+                null));
+        text = text.substring(0, 100) + insertedText + text.substring(100);
+        assertEquals(text, queryNote(noteUri));
+        assertEquals(NoteChunks.CHUNK_LENGTH, headLength(noteId));
+        assertEquals(2, chunkLayout(noteId).size());
+    }
+
+    // Returns the length of the part of a note in the notes table.
+    private long headLength(long noteId) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT length(" + NotePad.Notes.COLUMN_NAME_NOTE
+                + ") FROM " + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = ?",
+                new String[] { Long.toString(noteId) });
+    }
+
+    // Returns the sequence number and length of each chunk of a note, in order.
+    private List<String> chunkLayout(long noteId) {
+        Cursor cursor = mDb.query(NoteChunks.TABLE_NAME,
+                new String[] { NoteChunks.COLUMN_NAME_SEQUENCE, NoteChunks.COLUMN_NAME_LENGTH },
+                NoteChunks.COLUMN_NAME_NOTE_ID + " = ?", new String[] { Long.toString(noteId) },
+                null, null, NoteChunks.COLUMN_NAME_SEQUENCE);
+        List<String> layout = new ArrayList<String>();
+        try {
+            while (cursor.moveToNext()) {
+                layout.add(cursor.getLong(0) + ":" + cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return layout;
+    }
+
+    /*
+     * Compares the latency of saving a one-character edit by rewriting the whole note with
+     * saving it as a patch, for a range of note sizes.
+     */
+    public void testPatchBenchmark() {
+        final int[] NOTE_SIZES = { 1024, 16 * 1024, 256 * 1024, 1024 * 1024 };
+        final int SAVES = 10;
+
+        for (int size : NOTE_SIZES) {
+            char[] chars = new char[size];
+            Arrays.fill(chars, 'a');
+            for (int i = 80; i < size; i += 80) {
+                chars[i] = ' ';
+            }
+            String text = new String(chars);
+
+            Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                    new NoteInfo("Large", text).getContentValues());
+            Uri patchUri = Uri.withAppendedPath(noteUri, NotePad.Notes.PATH_SEGMENT_PATCH);
+
+            long start = System.nanoTime();
+            for (int i = 0; i < SAVES; i++) {
+                ContentValues values = new ContentValues();
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.substring(0, size - 1) + i);
+                mMockResolver.update(noteUri, values, null, null);
+            }
+            long wholeMicros = (System.nanoTime() - start) / 1000 / SAVES;
+
+            start = System.nanoTime();
+            for (int i = 0; i < SAVES; i++) {
+                mMockResolver.update(patchUri, patch(size / 2, 1, Integer.toString(i)), null,
+                        null);
+            }
+            long patchMicros = (System.nanoTime() - start) / 1000 / SAVES;
+
+            Log.i(TAG, "Saving an edit to a " + size + " character note: whole note "
+                    + wholeMicros + " us, patch " + patchMicros + " us");
+
+            // Large notes are chunked, so the notes table holds only the start of the text
+            long noteId = ContentUris.parseId(noteUri);
+            assertEquals(Math.min(size, NoteChunks.CHUNK_LENGTH), headLength(noteId));
+            assertEquals(size, headLength(noteId) + NoteChunks.length(mDb, noteId));
+
+            // Each save replaced one character with one digit
+            String note = queryNote(noteUri);
+            assertEquals(size, note.length());
+            assertEquals(text.substring(0, size / 2) + (SAVES - 1)
+                    + text.substring(size / 2 + 1, size - 1) + (SAVES - 1), note);
+
+            mMockResolver.delete(noteUri, null, null);
+        }
+    }
+
+    /*
+     * Stores a 10 MB note, which is too large for a CursorWindow, and checks that it is kept in
+     * chunks, read back whole by its URI, patched across a chunk boundary, and that its chunks
+     * go away when it is shortened or deleted.
+     */
+    public void testLargeNote() {
+        final int NOTE_LENGTH = 10 * 1024 * 1024;
+
+        StringBuilder builder = new StringBuilder(NOTE_LENGTH);
+        for (int line = 0; builder.length() < NOTE_LENGTH; line++) {
+            builder.append("Line ").append(line).append(" of a very large note\n");
+        }
+        builder.setLength(NOTE_LENGTH);
+        String text = builder.toString();
+
+        long start = System.nanoTime();
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Large", text).getContentValues());
+        Log.i(TAG, "Inserted a " + NOTE_LENGTH + " character note in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+
+        // No row of the notes table holds more than the first chunk
+        assertEquals(NoteChunks.CHUNK_LENGTH, DatabaseUtils.longForQuery(mDb, "SELECT max(length("
+                + NotePad.Notes.COLUMN_NAME_NOTE + ")) FROM " + NotePad.Notes.TABLE_NAME, null));
+        assertTrue(DatabaseUtils.queryNumEntries(mDb, NoteChunks.TABLE_NAME) > 0);
+
+        start = System.nanoTime();
+        assertEquals(text, queryNote(noteUri));
+        Log.i(TAG, "Read a " + NOTE_LENGTH + " character note in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+
+        // Lists only get the start of the note, and the snippet
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, new String[] {
+                NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_SNIPPET },
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals(text.substring(0, NoteChunks.CHUNK_LENGTH), cursor.getString(0));
+        assertEquals("Line 0 of a very large note Line 1", cursor.getString(1).substring(0, 34));
+        cursor.close();
+
+        // Replaces text on both sides of the boundary between two chunks
+        int offset = 3 * NoteChunks.CHUNK_LENGTH - 2;
+        Uri patchUri = Uri.withAppendedPath(noteUri, NotePad.Notes.PATH_SEGMENT_PATCH);
+        assertEquals(1, mMockResolver.update(patchUri, patch(offset, 4, "patched"), null, null));
+        text = text.substring(0, offset) + "patched" + text.substring(offset + 4);
+        assertEquals(text, queryNote(noteUri));
+
+        // A patch to the start of the note refreshes the snippet
+        mMockResolver.update(patchUri, patch(0, 4, "First line"), null, null);
+        cursor = mMockResolver.query(noteUri, new String[] {
+                NotePad.Notes.COLUMN_NAME_SNIPPET }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertTrue(cursor.getString(0).startsWith("First line 0 of a very large note"));
+        cursor.close();
+
+        // Shortening the note removes its chunks
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Short again");
+        assertEquals(1, mMockResolver.update(noteUri, values, null, null));
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NoteChunks.TABLE_NAME));
+        assertEquals("Short again", queryNote(noteUri));
+
+        // So does deleting it
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
+        mMockResolver.update(noteUri, values, null, null);
+        assertTrue(DatabaseUtils.queryNumEntries(mDb, NoteChunks.TABLE_NAME) > 0);
+        mMockResolver.delete(noteUri, null, null);
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NoteChunks.TABLE_NAME));
+
+        // Chunks are counted in code points, so a surrogate pair is never split between two
+        // chunks, and a note of one chunk's code points is not split at all
+        char[] pairs = new char[NoteChunks.CHUNK_LENGTH + 1];
+        Arrays.fill(pairs, 'a');
+        pairs[NoteChunks.CHUNK_LENGTH - 1] = '\ud83d';
+        pairs[NoteChunks.CHUNK_LENGTH] = '\ude00';
+        assertEquals(1, NoteChunks.split(new String(pairs)).length);
+        String[] pieces = NoteChunks.split(new String(pairs) + "b");
+        assertEquals(2, pieces.length);
+        assertEquals("b", pieces[1]);
+
+        // Splitting in Java puts the boundaries where SQLite counts them
+        StringBuilder emoji = new StringBuilder();
+        for (int i = 0; i < NoteChunks.CHUNK_LENGTH + 1000; i++) {
+            emoji.append("\ud83d\ude00");
+        }
+        long emojiId = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Emoji", emoji.toString()).getContentValues()));
+        assertEquals(NoteChunks.CHUNK_LENGTH, headLength(emojiId));
+        assertEquals(1000, NoteChunks.length(mDb, emojiId));
+    }
+
+    /*
+     * Builds a 50 MB note by appending to it, a size only a chunked note can reach, and reads
+     * it back through the text/plain stream, which never holds the whole note in memory.
+     */
+    public void testVeryLargeNote() throws IOException {
+        final int PIECE_LENGTH = 1024 * 1024;
+        final int PIECES = 50;
+
+        char[] piece = new char[PIECE_LENGTH];
+        Arrays.fill(piece, 'a');
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Very large", new String(piece)).getContentValues());
+        Uri patchUri = Uri.withAppendedPath(noteUri, NotePad.Notes.PATH_SEGMENT_PATCH);
+
+        long start = System.nanoTime();
+        for (int i = 1; i < PIECES; i++) {
+            Arrays.fill(piece, (char) ('a' + i % 26));
+            mMockResolver.update(patchUri, patch(i * PIECE_LENGTH, 0, new String(piece)), null,
+                    null);
+        }
+        Log.i(TAG, "Appended to a " + PIECES * PIECE_LENGTH + " character note in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+
+        // Patches in the middle of the note only rewrite the chunks they touch
+        start = System.nanoTime();
+        mMockResolver.update(patchUri, patch(20 * PIECE_LENGTH - 2, 4, "WXYZ"), null, null);
+        Log.i(TAG, "Patched a " + PIECES * PIECE_LENGTH + " character note in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+
+        assertTrue(DatabaseUtils.longForQuery(mDb, "SELECT max(length(text)) FROM "
+                + NoteChunks.TABLE_NAME, null) <= NoteChunks.MAX_CHUNK_LENGTH);
+
+        // Reading other columns of the note does not read its text
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_TITLE }, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Very large", cursor.getString(0));
+        cursor.close();
+
+        AssetFileDescriptor descriptor =
+                mMockResolver.openTypedAssetFileDescriptor(noteUri, MIME_TYPE_TEXT, null);
+        BufferedReader reader = new BufferedReader(
+                new FileReader(descriptor.getParcelFileDescriptor().getFileDescriptor()));
+        try {
+            assertEquals("Very large", reader.readLine());
+            assertEquals("", reader.readLine());
+
+            start = System.nanoTime();
+            char[] buffer = new char[8192];
+            long position = 0;
+            int read;
+            while ((read = reader.read(buffer)) > 0) {
+                for (int i = 0; i < read; i++, position++) {
+                    char expected;
+                    if (position == PIECES * PIECE_LENGTH) {
+                        expected = '\n';
+                    } else if (position >= 20 * PIECE_LENGTH - 2
+                            && position < 20 * PIECE_LENGTH + 2) {
+                        expected = "WXYZ".charAt((int) (position - 20 * PIECE_LENGTH + 2));
+                    } else {
+                        expected = (char) ('a' + (position / PIECE_LENGTH) % 26);
+                    }
+                    if (buffer[i] != expected) {
+                        fail("Unexpected character at " + position);
+                    }
+                }
+            }
+            assertEquals(PIECES * PIECE_LENGTH + 1, position);
+            Log.i(TAG, "Streamed a " + PIECES * PIECE_LENGTH + " character note in "
+                    + (System.nanoTime() - start) / 1000000 + " ms");
+        } finally {
+            reader.close();
+            descriptor.close();
+        }
+
+        mMockResolver.delete(noteUri, null, null);
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, NoteChunks.TABLE_NAME));
+    }
+
+    /*
+     * Exports every note as NDJSON and as a zip, and checks that each note comes out once and
+     * whole, including text that needs escaping in JSON and a note stored in chunks.
+     */
+    public void testExport() throws Exception {
+        insertData();
+        String special = "\"Quoted\" \\ back\tslash\nnew line separator \u0001 😀";
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Special", special).getContentValues());
+        char[] large = new char[3 * NoteChunks.CHUNK_LENGTH];
+        Arrays.fill(large, 'x');
+        large[large.length - 1] = '"';
+        String largeNote = new String(large);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Large", largeNote).getContentValues());
+        int noteCount = TEST_NOTES.length + 2;
+
+        AssetFileDescriptor descriptor = mMockResolver.openTypedAssetFileDescriptor(
+                NotePad.Notes.CONTENT_URI, NotePad.Notes.EXPORT_TYPE_NDJSON, null);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ParcelFileDescriptor.AutoCloseInputStream(
+                        descriptor.getParcelFileDescriptor()), StandardCharsets.UTF_8));
+        try {
+            long lastId = 0;
+            int lines = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                JSONObject note = new JSONObject(line);
+                long id = note.getLong(NotePad.Notes._ID);
+                assertTrue(id > lastId);
+                lastId = id;
+                lines++;
+
+                String title = note.getString(NotePad.Notes.COLUMN_NAME_TITLE);
+                if (title.equals("Special")) {
+                    assertEquals(special, note.getString(NotePad.Notes.COLUMN_NAME_NOTE));
+                } else if (title.equals("Large")) {
+                    assertEquals(largeNote, note.getString(NotePad.Notes.COLUMN_NAME_NOTE));
+                }
+            }
+            assertEquals(noteCount, lines);
+        } finally {
+            reader.close();
+        }
+
+        descriptor = mMockResolver.openTypedAssetFileDescriptor(
+                NotePad.Notes.CONTENT_URI, NotePad.Notes.EXPORT_TYPE_ZIP, null);
+        ZipInputStream zip = new ZipInputStream(new ParcelFileDescriptor.AutoCloseInputStream(
+                descriptor.getParcelFileDescriptor()));
+        try {
+            int entries = 0;
+            ZipEntry entry;
+            while ((entry = zip.getNextEntry()) != null) {
+                entries++;
+                assertTrue(entry.getName().endsWith(".txt"));
+
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = zip.read(buffer)) > 0) {
+                    content.write(buffer, 0, read);
+                }
+                String text = new String(content.toByteArray(), StandardCharsets.UTF_8);
+                assertTrue(text.startsWith(NoteExporter.ZIP_TITLE_HEADER));
+                if (text.startsWith(NoteExporter.ZIP_TITLE_HEADER + "Special\n")) {
+                    assertEquals(NoteExporter.ZIP_TITLE_HEADER + "Special\n\n" + special + "\n",
+                            text);
+                } else if (text.startsWith(NoteExporter.ZIP_TITLE_HEADER + "Large\n")) {
+                    assertEquals(NoteExporter.ZIP_TITLE_HEADER + "Large\n\n" + largeNote + "\n",
+                            text);
+                }
+            }
+            assertEquals(noteCount, entries);
+        } finally {
+            zip.close();
+        }
+    }
+
+    /*
+     * Exports 100,000 notes in each format and reports the throughput, and how far the heap
+     * grew while the export ran.
+     */
+    public void testExportBenchmark() throws Exception {
+        final int NOTE_COUNT = 100000;
+        final int BATCH_SIZE = 1000;
+
+        Random random = new Random(7);
+        ContentValues[] batch = new ContentValues[BATCH_SIZE];
+        for (int i = 0; i < NOTE_COUNT; i += BATCH_SIZE) {
+            for (int j = 0; j < BATCH_SIZE; j++) {
+                batch[j] = new NoteInfo("Note" + (i + j), makeProse(random, 500))
+                        .getContentValues();
+            }
+            mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, batch);
+        }
+
+        Runtime runtime = Runtime.getRuntime();
+        for (String type : new String[] {
+                NotePad.Notes.EXPORT_TYPE_NDJSON, NotePad.Notes.EXPORT_TYPE_ZIP }) {
+            runtime.gc();
+            long heapBefore = runtime.totalMemory() - runtime.freeMemory();
+            long heapPeak = heapBefore;
+
+            long start = System.nanoTime();
+            AssetFileDescriptor descriptor = mMockResolver.openTypedAssetFileDescriptor(
+                    NotePad.Notes.CONTENT_URI, type, null);
+            InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(
+                    descriptor.getParcelFileDescriptor());
+            long bytes = 0;
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                for (int reads = 0; (read = in.read(buffer)) > 0; reads++) {
+                    bytes += read;
+                    if (reads % 64 == 0) {
+                        heapPeak = Math.max(heapPeak, runtime.totalMemory() - runtime.freeMemory());
+                    }
+                }
+            } finally {
+                in.close();
+            }
+            long nanos = System.nanoTime() - start;
+
+            assertTrue(bytes > 0);
+            Log.i(TAG, "Exported " + NOTE_COUNT + " notes as " + type + ": " + bytes
+                    + " bytes in " + nanos / 1000000 + " ms, "
+                    + String.format(Locale.ROOT, "%.1f", bytes * 1000.0 / nanos)
+                    + " MB/s, heap grew by at most " + (heapPeak - heapBefore) / 1024 + " KB");
+        }
+    }
+
+    /*
+     * Exports the notes in each format, deletes them, and imports the export back, checking
+     * that every note comes back whole. A malformed line fails the import with its number.
+     */
+    public void testImport() throws Exception {
+        insertData();
+        String special = "\"Quoted\" \\ back\tslash\nnew line separator \u2028\u2029 😀";
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Special", special).getContentValues());
+        char[] large = new char[3 * NoteChunks.CHUNK_LENGTH];
+        Arrays.fill(large, 'y');
+        String largeNote = new String(large);
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Large", largeNote).getContentValues());
+        int noteCount = TEST_NOTES.length + 2;
+
+        for (String type : new String[] {
+                NotePad.Notes.EXPORT_TYPE_NDJSON, NotePad.Notes.EXPORT_TYPE_ZIP }) {
+            byte[] exported = exportNotes(type);
+            mMockResolver.delete(NotePad.Notes.CONTENT_URI, null, null);
+
+            final int[] progressRows = new int[1];
+            ResultReceiver progress = new ResultReceiver(null) {
+                @Override
+                protected void onReceiveResult(int resultCode, Bundle resultData) {
+                    progressRows[0] = (int) resultData.getLong(NotePad.Notes.IMPORT_RESULT_ROWS);
+                }
+            };
+            Bundle result = importNotes(type, exported, progress);
+            assertEquals(noteCount, result.getLong(NotePad.Notes.IMPORT_RESULT_ROWS));
+            assertEquals(noteCount, progressRows[0]);
+
+            Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, new String[] {
+                    NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE,
+                    NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+            try {
+                assertEquals(noteCount, cursor.getCount());
+                while (cursor.moveToNext()) {
+                    String title = cursor.getString(1);
+                    if (title.equals("Special")) {
+                        assertEquals(special, cursor.getString(2));
+                    } else if (title.equals("Large")) {
+                        Uri noteUri = ContentUris.withAppendedId(
+                                NotePad.Notes.CONTENT_ID_URI_BASE, cursor.getLong(0));
+                        assertEquals(largeNote, queryNote(noteUri));
+                    } else {
+                        boolean found = false;
+                        for (NoteInfo note : TEST_NOTES) {
+                            found |= note.title.equals(title)
+                                    && note.note.equals(cursor.getString(2));
+                        }
+                        assertTrue(found);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        // Any other text file is imported whole, titled with its name, even if it has
+        // paragraphs or starts with a line that looks like a title
+        mMockResolver.delete(NotePad.Notes.CONTENT_URI, null, null);
+        String plain = "Packing list\n\nPassport, tickets\n\nCharger\n";
+        String titled = "Title:missing space\n\nStill the text";
+        ByteArrayOutputStream zipped = new ByteArrayOutputStream();
+        ZipOutputStream zipOut = new ZipOutputStream(zipped);
+        zipOut.putNextEntry(new ZipEntry("trips/Holiday.txt"));
+        zipOut.write(plain.getBytes(StandardCharsets.UTF_8));
+        zipOut.closeEntry();
+        zipOut.putNextEntry(new ZipEntry("Other.md"));
+        zipOut.write(titled.getBytes(StandardCharsets.UTF_8));
+        zipOut.closeEntry();
+        zipOut.close();
+        importNotes(NotePad.Notes.EXPORT_TYPE_ZIP, zipped.toByteArray(), null);
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, new String[] {
+                NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE }, null, null,
+                NotePad.Notes.COLUMN_NAME_TITLE + " ASC");
+        try {
+            assertEquals(2, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals("Holiday", cursor.getString(0));
+            assertEquals(plain, cursor.getString(1));
+            assertTrue(cursor.moveToNext());
+            assertEquals("Other", cursor.getString(0));
+            assertEquals(titled, cursor.getString(1));
+        } finally {
+            cursor.close();
+        }
+
+        byte[] malformed = "{\"title\":\"One\"}\n{\"title\":\n".getBytes(StandardCharsets.UTF_8);
+        try {
+            importNotes(NotePad.Notes.EXPORT_TYPE_NDJSON, malformed, null);
+            fail("Imported a malformed line");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().startsWith("Line 2"));
+        }
+    }
+
+    /*
+     * Imports 500,000 notes of generated NDJSON, fed through a pipe as it is generated, and
+     * reports the rate.
+     */
+    public void testImportBenchmark() throws Exception {
+        final int NOTE_COUNT = 500000;
+
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        final OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(11);
+                Writer json = new BufferedWriter(
+                        new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+                try {
+                    for (int i = 0; i < NOTE_COUNT; i++) {
+                        json.write("{\"title\":\"Note" + i + "\",\"note\":"
+                                + JSONObject.quote(makeProse(random, 200)) + "}\n");
+                    }
+                    json.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Import stream stopped", e);
+                }
+            }
+        });
+        writer.start();
+
+        final int[] progressCalls = new int[1];
+        ResultReceiver progress = new ResultReceiver(null) {
+            @Override
+            protected void onReceiveResult(int resultCode, Bundle resultData) {
+                progressCalls[0]++;
+            }
+        };
+        Bundle extras = new Bundle();
+        extras.putParcelable(NotePad.Notes.IMPORT_EXTRA_FILE, pipe[0]);
+        extras.putParcelable(NotePad.Notes.IMPORT_EXTRA_PROGRESS, progress);
+        long start = System.nanoTime();
+        Bundle result = mMockResolver.call(NotePad.Notes.CONTENT_URI,
+                NotePad.Notes.METHOD_IMPORT, NotePad.Notes.EXPORT_TYPE_NDJSON, extras);
+        long nanos = System.nanoTime() - start;
+        writer.join();
+
+        assertEquals(NOTE_COUNT, result.getLong(NotePad.Notes.IMPORT_RESULT_ROWS));
+        assertEquals(NOTE_COUNT, DatabaseUtils.queryNumEntries(mDb, NotePad.Notes.TABLE_NAME));
+        assertTrue(progressCalls[0] > 1);
+        Log.i(TAG, "Imported " + NOTE_COUNT + " notes in " + nanos / 1000000 + " ms, "
+                + Math.round(result.getDouble(NotePad.Notes.IMPORT_RESULT_ROWS_PER_SECOND))
+                + " notes/s, " + progressCalls[0] + " progress reports");
+    }
+
+    // Returns every note exported in the given format.
+    private byte[] exportNotes(String type) throws IOException {
+        AssetFileDescriptor descriptor = mMockResolver.openTypedAssetFileDescriptor(
+                NotePad.Notes.CONTENT_URI, type, null);
+        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(
+                descriptor.getParcelFileDescriptor());
+        ByteArrayOutputStream exported = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                exported.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return exported.toByteArray();
+    }
+
+    // Imports the data in the given format, writing it to the provider through a pipe.
+    private Bundle importNotes(String type, final byte[] data, ResultReceiver progress)
+            throws Exception {
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        final OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    out.write(data);
+                } catch (IOException e) {
+                    // The import stopped reading
+                } finally {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                    }
+                }
+            }
+        });
+        writer.start();
+
+        Bundle extras = new Bundle();
+        extras.putParcelable(NotePad.Notes.IMPORT_EXTRA_FILE, pipe[0]);
+        extras.putParcelable(NotePad.Notes.IMPORT_EXTRA_PROGRESS, progress);
+        try {
+            return mMockResolver.call(NotePad.Notes.CONTENT_URI, NotePad.Notes.METHOD_IMPORT,
+                    type, extras);
+        } finally {
+            writer.join();
+        }
+    }
+
+    /*
+     * Writes and reads the same corpus of large notes with and without compression, and
+     * reports the space the notes take in the database and the read and write throughput.
+     * Compressed notes must read back unchanged and take less space.
+     */
+    public void testCompressionBenchmark() {
+        final int NOTE_COUNT = 30;
+        final int NOTE_LENGTH = 200 * 1024;
+
+        String[] corpus = new String[NOTE_COUNT];
+        Random random = new Random(42);
+        long corpusLength = 0;
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            corpus[i] = makeProse(random, NOTE_LENGTH);
+            corpusLength += corpus[i].length();
+        }
+
+        NotePadProvider.DatabaseHelper helper = getProvider().getOpenHelperForTest();
+        boolean compressed = helper.compressesChunks();
+        long[] usedBytes = new long[2];
+        try {
+            for (int mode = 0; mode < 2; mode++) {
+                helper.setCompressChunks(mode == 1);
+                mMockResolver.delete(NotePad.Notes.CONTENT_URI, null, null);
+                long emptyBytes = usedDatabaseBytes();
+
+                Uri[] noteUris = new Uri[NOTE_COUNT];
+                long start = System.nanoTime();
+                for (int i = 0; i < NOTE_COUNT; i++) {
+                    noteUris[i] = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                            new NoteInfo("Note" + i, corpus[i]).getContentValues());
+                }
+                long writeNanos = System.nanoTime() - start;
+                usedBytes[mode] = usedDatabaseBytes() - emptyBytes;
+
+                start = System.nanoTime();
+                for (int i = 0; i < NOTE_COUNT; i++) {
+                    assertEquals(corpus[i], queryNote(noteUris[i]));
+                }
+                long readNanos = System.nanoTime() - start;
+
+                Log.i(TAG, (mode == 1 ? "Compressed" : "Uncompressed") + ": " + corpusLength
+                        + " characters take " + usedBytes[mode] + " bytes, written at "
+                        + corpusLength * 1000 / writeNanos + " characters/us, read at "
+                        + corpusLength * 1000 / readNanos + " characters/us");
+            }
+        } finally {
+            helper.setCompressChunks(compressed);
+        }
+
+        assertTrue(usedBytes[1] < usedBytes[0]);
+    }
+
+    // Returns the bytes of the database's pages that are in use.
+    private long usedDatabaseBytes() {
+        return (DatabaseUtils.longForQuery(mDb, "PRAGMA page_count", null)
+                - DatabaseUtils.longForQuery(mDb, "PRAGMA freelist_count", null))
+                * DatabaseUtils.longForQuery(mDb, "PRAGMA page_size", null);
+    }
+
+    // Returns about length characters of note-like text: paragraphs of sentences made of
+    // common words, with the odd to-do item and number.
+    private static String makeProse(Random random, int length) {
+        final String[] WORDS = {
+                "the", "of", "and", "to", "a", "in", "is", "that", "for", "it", "with", "as",
+                "was", "on", "be", "at", "by", "this", "have", "from", "or", "we", "not", "but",
+                "what", "all", "were", "when", "your", "can", "said", "there", "use", "each",
+                "which", "she", "do", "how", "their", "if", "will", "up", "other", "about",
+                "out", "many", "then", "them", "these", "so", "some", "her", "would", "make",
+                "like", "into", "time", "has", "look", "more", "write", "go", "see", "number",
+                "way", "could", "people", "than", "first", "water", "been", "call", "who",
+                "now", "find", "long", "down", "day", "did", "get", "come", "made", "may",
+                "meeting", "project", "deadline", "review", "budget", "draft", "schedule",
+                "grocery", "milk", "eggs", "bread", "remember", "tomorrow", "morning",
+                "afternoon", "client", "report", "design", "feedback", "release", "version",
+                "kitchen", "garden", "weekend", "flight", "hotel", "ticket", "birthday",
+        };
+
+        StringBuilder prose = new StringBuilder(length + 200);
+        while (prose.length() < length) {
+            int sentences = 3 + random.nextInt(4);
+            for (int s = 0; s < sentences; s++) {
+                if (random.nextInt(10) == 0) {
+                    prose.append("- [ ] ");
+                }
+                int words = 6 + random.nextInt(13);
+                for (int w = 0; w < words; w++) {
+                    // Squaring skews the choice towards the common words at the start
+                    double skew = random.nextDouble();
+                    String word = WORDS[(int) (skew * skew * WORDS.length)];
+                    if (w == 0) {
+                        prose.append(Character.toUpperCase(word.charAt(0)))
+                                .append(word, 1, word.length());
+                    } else {
+                        prose.append(' ').append(word);
+                    }
+                    if (random.nextInt(40) == 0) {
+                        prose.append(' ').append(random.nextInt(1000));
+                    }
+                }
+                prose.append(". ");
+            }
+            prose.append("\n\n");
+        }
+        prose.setLength(length);
+        return prose.toString();
+    }
+
+    // Returns the values of a patch that replaces length code points at offset with text.
+    private static ContentValues patch(int offset, int length, String text) {
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.PATCH_OFFSET, offset);
+        values.put(NotePad.Notes.PATCH_LENGTH, length);
+        values.put(NotePad.Notes.PATCH_TEXT, text);
+        return values;
+    }
+
+    // Returns the text of the note with the given URI.
+    private String queryNote(Uri noteUri) {
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_NOTE }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Runs several readers and one writer against the provider at the same time, and reports
+     * the p50 and p99 latency of each. With write-ahead logging, readers do not wait for the
+     * writer's transactions to finish.
+     */
+    public void testConcurrentReadersAndWriter() throws Exception {
+        final int READER_COUNT = 4;
+        final int OPERATION_COUNT = 200;
+
+        insertData();
+
+        final long[][] readLatencies = new long[READER_COUNT][OPERATION_COUNT];
+        final long[] writeLatencies = new long[OPERATION_COUNT];
+        final Throwable[] failure = new Throwable[1];
+
+        Thread[] threads = new Thread[READER_COUNT + 1];
+        for (int reader = 0; reader < READER_COUNT; reader++) {
+            final long[] latencies = readLatencies[reader];
+            threads[reader] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < OPERATION_COUNT; i++) {
+                            long start = System.nanoTime();
+                            Cursor cursor = mMockResolver.query(
+                                    NotePad.Notes.CONTENT_URI, null, null, null, null);
+                            cursor.getCount();
+                            cursor.close();
+                            latencies[i] = System.nanoTime() - start;
+                        }
+                    } catch (Throwable t) {
+                        failure[0] = t;
+                    }
+                }
+            });
+        }
+        threads[READER_COUNT] = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ContentValues values = new ContentValues();
+                    Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, 1);
+                    for (int i = 0; i < OPERATION_COUNT; i++) {
+                        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Autosaved text " + i);
+                        long start = System.nanoTime();
+                        mMockResolver.update(noteUri, values, null, null);
+                        writeLatencies[i] = System.nanoTime() - start;
+                    }
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        });
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure[0] != null) {
+            throw new AssertionError(failure[0]);
+        }
+
+        long[] allReads = new long[READER_COUNT * OPERATION_COUNT];
+        for (int reader = 0; reader < READER_COUNT; reader++) {
+            System.arraycopy(readLatencies[reader], 0, allReads, reader * OPERATION_COUNT,
+                    OPERATION_COUNT);
+        }
+        Log.i(TAG, "reads: p50 " + percentileMicros(allReads, 50) + " us, p99 "
+                + percentileMicros(allReads, 99) + " us; writes: p50 "
+                + percentileMicros(writeLatencies, 50) + " us, p99 "
+                + percentileMicros(writeLatencies, 99) + " us");
+    }
+
+    /*
+     * Tests that the provider keeps the snippet column in step with the note content.
+     */
+    public void testSnippets() {
+        Uri noteUri = mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Snippet", "  First line\n\n\tsecond   line  ").getContentValues());
+        assertEquals("First line second line", querySnippet(noteUri));
+
+        // Long notes are cut to a bounded preview.
+        StringBuilder longNote = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            longNote.append("word ");
+        }
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, longNote.toString());
+        mMockResolver.update(noteUri, values, null, null);
+
+        String snippet = querySnippet(noteUri);
+        assertTrue(snippet.length() <= 100);
+        assertTrue(snippet.startsWith("word word"));
+        assertFalse(snippet.endsWith(" "));
+
+        // Updates that do not touch the note leave the snippet alone.
+        values.clear();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Renamed");
+        mMockResolver.update(noteUri, values, null, null);
+        assertEquals(snippet, querySnippet(noteUri));
+    }
+
+    // Returns the snippet column of a single note.
+    private String querySnippet(Uri noteUri) {
+        Cursor cursor = mMockResolver.query(noteUri,
+                new String[] { NotePad.Notes.COLUMN_NAME_SNIPPET }, null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Compares the cost of reading the whole notes list with the note column, as NotesList
+     * used to, and with the snippet column instead, over 20000 notes of about 2 KB each. Logs
+     * the bytes that cross the cursor window and the time to read every row.
+     */
+    public void testListProjectionCost() {
+        final int ROW_COUNT = 20000;
+        final int BATCH_SIZE = 1000;
+
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 2048) {
+            body.append("The quick brown fox jumps over the lazy dog. ");
+        }
+
+        ContentValues[] batch = new ContentValues[BATCH_SIZE];
+        for (int inserted = 0; inserted < ROW_COUNT; inserted += BATCH_SIZE) {
+            for (int index = 0; index < BATCH_SIZE; index++) {
+                batch[index] = new NoteInfo("Note" + (inserted + index), body.toString())
+                        .getContentValues();
+            }
+            mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, batch);
+        }
+
+        String[] fullProjection = {
+            NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+        };
+        String[] listProjection = {
+            NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_SNIPPET, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+        };
+
+        long[] full = readAllRows(fullProjection);
+        long[] list = readAllRows(listProjection);
+
+        Log.i(TAG, "with note: " + full[0] + " bytes in " + full[1] / 1000000 + " ms; "
+                + "with snippet: " + list[0] + " bytes in " + list[1] / 1000000 + " ms");
+        assertTrue(list[0] * 10 < full[0]);
+    }
+
+    // Reads every column of every row of the notes list, and returns the number of text bytes
+    // read and the elapsed time in nanoseconds.
+    private long[] readAllRows(String[] projection) {
+        long start = System.nanoTime();
+        long bytes = 0;
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, projection, null, null,
+                NotePad.Notes.DEFAULT_SORT_ORDER);
+        try {
+            while (cursor.moveToNext()) {
+                bytes += 16;
+                bytes += cursor.getString(1).length() + cursor.getString(2).length();
+            }
+        } finally {
+            cursor.close();
+        }
+        return new long[] { bytes, System.nanoTime() - start };
+    }
+
+    /*
+     * Tests keyset-paginated queries. Paging through the list in either list sort order must
+     * return every note exactly once, in the same order as an unpaged query.
+     */
+    public void testPagedQueries() {
+        insertData();
+
+        // Adds a second note with the same title as Note4, so title pages have a tie to break.
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Note4", "A twin").getContentValues());
+
+        assertPagesMatchList(NotePad.Notes.DEFAULT_SORT_ORDER, 3);
+        assertPagesMatchList(NotePad.Notes.TITLE_SORT_ORDER, 3);
+
+        // Paged queries only support the list sort orders.
+        try {
+            mMockResolver.query(pageUri(3, null), null, null, null,
+                    NotePad.Notes.COLUMN_NAME_CREATE_DATE + " ASC");
+            fail("Expected a paged query with an unsupported sort order to fail");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    // Pages through the notes in the given order and compares the ids with an unpaged query.
+    private void assertPagesMatchList(String sortOrder, int pageSize) {
+        final String[] PAGE_PROJECTION = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+        };
+        boolean byTitle = NotePad.Notes.TITLE_SORT_ORDER.equals(sortOrder);
+
+        ArrayList<Long> expected = new ArrayList<Long>();
+        Cursor cursor = mMockResolver.query(NotePad.Notes.CONTENT_URI, PAGE_PROJECTION, null, null,
+                sortOrder + ", " + NotePad.Notes._ID + (byTitle ? " ASC" : " DESC"));
+        while (cursor.moveToNext()) {
+            expected.add(cursor.getLong(0));
+        }
+        cursor.close();
+
+        ArrayList<Long> paged = new ArrayList<Long>();
+        String after = null;
+        while (true) {
+            cursor = mMockResolver.query(pageUri(pageSize, after), PAGE_PROJECTION, null, null,
+                    sortOrder);
+            assertTrue(cursor.getCount() <= pageSize);
+            if (!cursor.moveToFirst()) {
+                cursor.close();
+                break;
+            }
+            do {
+                paged.add(cursor.getLong(0));
+            } while (cursor.moveToNext());
+
+            cursor.moveToLast();
+            after = (byTitle ? cursor.getString(1) : Long.toString(cursor.getLong(2)))
+                    + "," + cursor.getLong(0);
+            cursor.close();
+        }
+
+        assertEquals(expected, paged);
+    }
+
+    // Builds a paged notes URI.
+    private static Uri pageUri(int pageSize, String after) {
+        Uri.Builder builder = NotePad.Notes.CONTENT_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.PAGE_SIZE_PARAMETER, Integer.toString(pageSize));
+        if (after != null) {
+            builder.appendQueryParameter(NotePad.Notes.PAGE_AFTER_PARAMETER, after);
+        }
+        return builder.build();
+    }
+
+    /*
+     * Checks the query plans of the list queries NotesList runs, in both of its sort orders.
+     * If either one needs a temporary B-tree to sort, the index behind that order is missing
+     * or no longer matches the sort order's collation.
+     */
+    public void testListQueriesUseIndexes() {
+        insertData();
+
+        final String[] LIST_PROJECTION = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+        };
+
+        assertNoSort(LIST_PROJECTION, NotePad.Notes.TITLE_SORT_ORDER);
+        assertNoSort(LIST_PROJECTION, NotePad.Notes.DEFAULT_SORT_ORDER);
+    }
+
+    // Fails if the plan for a full list query in the given order sorts in a temporary B-tree.
+    private void assertNoSort(String[] projection, String sortOrder) {
+        String sql = SQLiteQueryBuilder.buildQueryString(false, NotePad.Notes.TABLE_NAME,
+                projection, null, null, null, sortOrder, null);
+        Cursor plan = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        try {
+            int detailIndex = plan.getColumnIndexOrThrow("detail");
+            while (plan.moveToNext()) {
+                String detail = plan.getString(detailIndex);
+                assertFalse(sortOrder + " sorts without an index: " + detail,
+                        detail.contains("TEMP B-TREE"));
+            }
+        } finally {
+            plan.close();
+        }
+    }
+
+    // Returns the given percentile of a set of latencies in nanoseconds, in microseconds.
+    private static long percentileMicros(long[] nanos, int percentile) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        int index = Math.min(sorted.length - 1, sorted.length * percentile / 100);
+        return sorted[index] / 1000;
+    }
+
+    /*
+     * Tests that the provider honours a cancellation signal. A search cancelled before it runs
+     * must throw instead of returning results.
+     */
+    public void testCancelledSearch() {
+        insertData();
+
+        CancellationSignal signal = new CancellationSignal();
+        signal.cancel();
+        try {
+            mMockResolver.query(searchUri("note"), null, null, null, null, signal);
+            fail("Expected the cancelled search to throw");
+        } catch (OperationCanceledException e) {
+            // expected
+        }
+
+        // The same search runs normally with a fresh signal.
+        Cursor cursor = mMockResolver.query(searchUri("note"), null, null, null, null,
+                new CancellationSignal());
+        assertEquals(TEST_NOTES.length, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests searches that extend an earlier search, which the provider narrows from its cached
+     * result. The results must be the same as those of the full-text index, and writes must
+     * not leave stale results behind.
+     */
+    public void testSearchNarrowing() {
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Meeting", "Agenda for Monday").getContentValues());
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Meet Anna", "Coffee at the station").getContentValues());
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Groceries", "Meat, milk, bread").getContentValues());
+
+        String[] typed = { "m", "me", "mee", "meet", "meeti", "meeting", "meeting a" };
+        int[] expected = { 3, 3, 2, 2, 1, 1, 1 };
+        for (int i = 0; i < typed.length; i++) {
+            Cursor cursor = mMockResolver.query(searchUri(typed[i]), null, null, null, null);
+            assertEquals(typed[i], expected[i], cursor.getCount());
+            cursor.close();
+        }
+
+        // Words only match at their start, so "eet" does not match "Meeting".
+        Cursor cursor = mMockResolver.query(searchUri("meet eet"), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        // Changes a note so that it matches, and checks the cached result is not reused.
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Meeting notes");
+        assertEquals(1, mMockResolver.update(NotePad.Notes.CONTENT_URI, values,
+                NotePad.Notes.COLUMN_NAME_TITLE + " = ?", new String[] { "Groceries" }));
+
+        cursor = mMockResolver.query(searchUri("meeti"), null, null, null, null);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+     * Tests that a search that runs while a batch is written but not yet committed does not
+     * leave its result in the search cache. The search reads the notes from before the batch,
+     * and a search after the commit must see the batch.
+     */
+    public void testSearchDuringBatch() throws Exception {
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Agenda", "Batched meeting").getContentValues());
+
+        final int[] countDuringBatch = new int[1];
+        getProvider().setBeforeBatchCommitForTest(new Runnable() {
+            @Override
+            public void run() {
+                // Searches from another thread, which reads the last committed notes
+                Thread search = new Thread() {
+                    @Override
+                    public void run() {
+                        countDuringBatch[0] = searchIds(searchUri("batched")).size();
+                    }
+                };
+                search.start();
+                try {
+                    search.join();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        try {
+            ContentValues[] batch = {
+                new NoteInfo("Batched one", "First").getContentValues(),
+                new NoteInfo("Batched two", "Second").getContentValues()
+            };
+            mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, batch);
+            assertEquals(1, countDuringBatch[0]);
+            assertEquals(3, searchIds(searchUri("batched")).size());
+
+            ArrayList<ContentProviderOperation> operations =
+                    new ArrayList<ContentProviderOperation>();
+            operations.add(ContentProviderOperation.newInsert(NotePad.Notes.CONTENT_URI)
+                    .withValues(new NoteInfo("Batched three", "Third").getContentValues())
+                    .build());
+            mMockResolver.applyBatch(NotePad.AUTHORITY, operations);
+            assertEquals(3, countDuringBatch[0]);
+            assertEquals(4, searchIds(searchUri("batched")).size());
+        } finally {
+            getProvider().setBeforeBatchCommitForTest(null);
+        }
+    }
+
+    /*
+     * Tests that searches during an import see each batch once it is committed, rather than
+     * a result cached before it.
+     */
+    public void testSearchDuringImport() throws Exception {
+        final int NOTE_COUNT = 2500;
+
+        StringBuilder ndjson = new StringBuilder();
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            ndjson.append("{\"title\":\"Imported ").append(i)
+                    .append("\",\"note\":\"From the archive\"}\n");
+        }
+
+        // The search before each batch commits, from another thread, sees the batches before it
+        final ArrayList<Integer> countsBeforeCommit = new ArrayList<Integer>();
+        getProvider().setBeforeBatchCommitForTest(new Runnable() {
+            @Override
+            public void run() {
+                Thread search = new Thread() {
+                    @Override
+                    public void run() {
+                        countsBeforeCommit.add(searchIds(searchUri("imported")).size());
+                    }
+                };
+                search.start();
+                try {
+                    search.join();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        try {
+            Bundle result = importNotes(NotePad.Notes.EXPORT_TYPE_NDJSON,
+                    ndjson.toString().getBytes(StandardCharsets.UTF_8), null);
+            assertEquals(NOTE_COUNT, result.getLong(NotePad.Notes.IMPORT_RESULT_ROWS));
+        } finally {
+            getProvider().setBeforeBatchCommitForTest(null);
+        }
+
+        // The first batch holds 2000 notes
+        assertEquals(Arrays.asList(0, 2000), countsBeforeCommit);
+        assertEquals(NOTE_COUNT, searchIds(searchUri("imported")).size());
+    }
+
+    /*
+     * Tests relevance ranking of search results. A match in the title outranks several in the
+     * text, which outrank a single match in a long text. Match snippets mark each match, and
+     * pages sorted by relevance join up into the unpaged result.
+     */
+    public void testSearchRanking() {
+        // Notes without the term, so that it is rare enough to rank by
+        for (int i = 0; i < 30; i++) {
+            mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                    new NoteInfo("Filler" + i, "Unrelated words").getContentValues());
+        }
+        StringBuilder longNote = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            longNote.append("a very long note ");
+        }
+        longNote.append("with the budget once");
+        long titleMatch = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Budget review", "Nothing about money").getContentValues()));
+        long textMatches = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Groceries", "budget budget budget for milk").getContentValues()));
+        long longMatch = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Long", longNote.toString()).getContentValues()));
+
+        final String[] RANKED_PROJECTION = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_RELEVANCE,
+            NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET
+        };
+        Cursor cursor = mMockResolver.query(searchUri("budg"), RANKED_PROJECTION, null, null,
+                NotePad.Notes.RELEVANCE_SORT_ORDER);
+        ArrayList<Long> expected = new ArrayList<Long>();
+        try {
+            assertEquals(3, cursor.getCount());
+            double lastRelevance = Double.MAX_VALUE;
+            while (cursor.moveToNext()) {
+                expected.add(cursor.getLong(0));
+                double relevance = cursor.getDouble(1);
+                assertTrue(relevance > 0);
+                assertTrue(relevance < lastRelevance);
+                lastRelevance = relevance;
+            }
+            assertEquals(Arrays.asList(titleMatch, textMatches, longMatch), expected);
+
+            cursor.moveToFirst();
+            assertEquals(NotePad.Notes.MATCH_START + "Budget" + NotePad.Notes.MATCH_END
+                    + " review", cursor.getString(2));
+        } finally {
+            cursor.close();
+        }
+
+        ArrayList<Long> paged = new ArrayList<Long>();
+        String after = null;
+        while (true) {
+            Uri.Builder pageUri = searchUri("budg").buildUpon()
+                    .appendQueryParameter(NotePad.Notes.PAGE_SIZE_PARAMETER, "1");
+            if (after != null) {
+                pageUri.appendQueryParameter(NotePad.Notes.PAGE_AFTER_PARAMETER, after);
+            }
+            cursor = mMockResolver.query(pageUri.build(), RANKED_PROJECTION, null, null,
+                    NotePad.Notes.RELEVANCE_SORT_ORDER);
+            if (!cursor.moveToFirst()) {
+                cursor.close();
+                break;
+            }
+            paged.add(cursor.getLong(0));
+            after = cursor.getDouble(1) + "," + cursor.getLong(0);
+            cursor.close();
+        }
+        assertEquals(expected, paged);
+
+        // A search without terms lists every note, equally relevant
+        cursor = mMockResolver.query(searchUri(""), RANKED_PROJECTION, null, null,
+                NotePad.Notes.RELEVANCE_SORT_ORDER);
+        try {
+            assertEquals(33, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(0.0, cursor.getDouble(1));
+        } finally {
+            cursor.close();
+        }
+
+        // Only searches have a relevance
+        try {
+            mMockResolver.query(NotePad.Notes.CONTENT_URI, null, null, null,
+                    NotePad.Notes.RELEVANCE_SORT_ORDER);
+            fail("Sorted the notes URI by relevance");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /*
+     * Tests that searches ignore case in every script, accents and compatibility forms, and
+     * that Chinese text, which has no spaces between words, matches runs of characters.
+     * The normalized text must follow edits and patches.
+     */
+    public void testNormalizedSearch() {
+        long cafe = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Caf\u00e9 cr\u00e8me", "Stra\u00dfe 5").getContentValues()));
+        long greek = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("\u039f\u0394\u03a5\u03a3\u03a3\u0395\u03a5\u03a3",
+                        "\uff21\uff22\uff23\uff11\uff12\uff13").getContentValues()));
+        long chinese = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Log", "\u4eca\u5929\u7684\u4f1a\u8bae\u8bb0\u5f55")
+                        .getContentValues()));
+
+        assertEquals(Arrays.asList(cafe), searchIds(searchUri("CAFE")));
+        assertEquals(Arrays.asList(cafe), searchIds(searchUri("crem")));
+        assertEquals(Arrays.asList(cafe), searchIds(searchUri("strasse")));
+
+        // Greek in lower case, ending in a final sigma
+        assertEquals(Arrays.asList(greek), searchIds(searchUri(
+                "\u03bf\u03b4\u03c5\u03c3\u03c3\u03b5\u03c5\u03c2")));
+
+        // Full-width letters and digits match their ASCII forms
+        assertEquals(Arrays.asList(greek), searchIds(searchUri("abc12")));
+
+        // Two characters from the middle of the text match, but not in the other order
+        assertEquals(Arrays.asList(chinese), searchIds(searchUri("\u4f1a\u8bae")));
+        assertEquals(Arrays.<Long>asList(), searchIds(searchUri("\u8bae\u4f1a")));
+
+        assertEquals(Arrays.asList(cafe), substringSearch("FE CR"));
+        assertEquals(Arrays.asList(chinese), substringSearch("\u7684\u4f1a"));
+
+        Uri cafeUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_URI, cafe);
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_TITLE, "Cr\u00eape");
+        mMockResolver.update(cafeUri, values, null, null);
+        assertEquals(Arrays.<Long>asList(), searchIds(searchUri("cafe")));
+        assertEquals(Arrays.asList(cafe), searchIds(searchUri("crepe")));
+
+        mMockResolver.update(Uri.withAppendedPath(cafeUri, NotePad.Notes.PATH_SEGMENT_PATCH),
+                patch(0, 6, "\u00c9cole"), null, null);
+        assertEquals(Arrays.<Long>asList(), searchIds(searchUri("strasse")));
+        assertEquals(Arrays.asList(cafe), searchIds(searchUri("ecole")));
+        assertEquals(Arrays.asList(cafe), substringSearch("cole 5"));
+    }
+
+    /*
+     * Tests that a note only keeps a normalized copy of its text while it needs one: plain
+     * ASCII is searched as it is, whatever its case, and a patch that brings in or takes out
+     * the last accent adds or removes the copy.
+     */
+    public void testNormalizedTextStorage() {
+        long plain = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Meeting NOTES", "Cafe at noon").getContentValues()));
+        long accented = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Trip", "Caf\u00e9 at dawn").getContentValues()));
+
+        assertEquals(Arrays.asList(null, null), normalizedText(plain));
+        assertEquals(Arrays.asList(null, "cafe at dawn"), normalizedText(accented));
+        assertEquals(Arrays.asList(plain, accented), searchIds(searchUri("CAF\u00c9")));
+        assertEquals(Arrays.asList(plain), searchIds(searchUri("meeting notes")));
+        assertEquals(Arrays.asList(plain, accented), substringSearch("afe at"));
+
+        Uri patchUri = Uri.withAppendedPath(ContentUris.withAppendedId(
+                NotePad.Notes.CONTENT_URI, plain), NotePad.Notes.PATH_SEGMENT_PATCH);
+        mMockResolver.update(patchUri, patch(8, 4, "m\u00efdi"), null, null);
+        assertEquals(Arrays.asList(null, "cafe at midi"), normalizedText(plain));
+        assertEquals(Arrays.asList(plain), searchIds(searchUri("midi")));
+        assertEquals(Arrays.<Long>asList(), searchIds(searchUri("noon")));
+
+        mMockResolver.update(patchUri, patch(8, 4, "once"), null, null);
+        assertEquals(Arrays.asList(null, null), normalizedText(plain));
+        assertEquals(Arrays.asList(plain), searchIds(searchUri("ONCE")));
+        assertEquals(Arrays.<Long>asList(), searchIds(searchUri("midi")));
+        assertEquals(Arrays.asList(plain), substringSearch("t onc"));
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Plain dawn");
+        mMockResolver.update(ContentUris.withAppendedId(NotePad.Notes.CONTENT_URI, accented),
+                values, null, null);
+        assertEquals(Arrays.asList(null, null), normalizedText(accented));
+        assertEquals(Arrays.asList(accented), searchIds(searchUri("dawn")));
+        assertEquals(Arrays.asList(plain), searchIds(searchUri("cafe")));
+    }
+
+    /*
+     * Tests that match snippets show the original text of notes that are searched in their
+     * normalized form, with the matches marked where they are in the original.
+     */
+    public void testMatchSnippetOfOriginalText() {
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Caf\u00e9 cr\u00e8me", "Stra\u00dfe 5").getContentValues());
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Log", "\u4eca\u5929\u7684\u4f1a\u8bae\u8bb0\u5f55")
+                        .getContentValues());
+
+        String start = NotePad.Notes.MATCH_START;
+        String end = NotePad.Notes.MATCH_END;
+        assertEquals(start + "Caf\u00e9" + end + " cr\u00e8me", matchSnippet("CAFE"));
+        assertEquals(start + "Stra\u00dfe" + end + " 5", matchSnippet("strasse"));
+
+        // FTS4 marks each character of the run, FTS5 the run as a whole
+        String chinese = matchSnippet("\u4f1a\u8bae");
+        assertTrue(chinese, chinese.startsWith("\u4eca\u5929\u7684" + start + "\u4f1a"));
+        assertTrue(chinese, chinese.endsWith("\u8bae" + end + "\u8bb0\u5f55"));
+        assertEquals("\u4eca\u5929\u7684\u4f1a\u8bae\u8bb0\u5f55",
+                chinese.replace(start, "").replace(end, ""));
+    }
+
+    // Returns the match snippet of the only note a search finds.
+    private String matchSnippet(String query) {
+        Cursor cursor = mMockResolver.query(searchUri(query), new String[] {
+                NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET }, null, null,
+                NotePad.Notes.RELEVANCE_SORT_ORDER);
+        try {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            return cursor.getString(1);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // Returns the normalized title and text stored for a note, null where it keeps none.
+    private List<String> normalizedText(long noteId) {
+        Cursor cursor = mDb.query(NotePad.Notes.TABLE_NAME, new String[] {
+                SearchText.COLUMN_NAME_TITLE, SearchText.COLUMN_NAME_NOTE },
+                NotePad.Notes._ID + " = ?", new String[] { Long.toString(noteId) },
+                null, null, null);
+        try {
+            assertTrue(cursor.moveToFirst());
+            return Arrays.asList(cursor.getString(0), cursor.getString(1));
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /*
+     * Tests the search language: phrases, OR, NOT, grouping and the title, color and date
+     * fields. Malformed searches must not fail, searches must still rank by the words every
+     * result contains, and a repeated search must reuse its compiled form.
+     */
+    public void testStructuredSearch() {
+        long budget = insertSearchNote("Budget review", "Quarterly numbers for the team",
+                "#FF0000", new GregorianCalendar(2024, Calendar.MARCH, 10));
+        long groceries = insertSearchNote("Groceries", "Review the budget for milk and eggs",
+                "#00FF00", new GregorianCalendar(2024, Calendar.FEBRUARY, 1));
+        long trip = insertSearchNote("Trip", "Book the review of the hotel",
+                "#ffa500", new GregorianCalendar(2024, Calendar.MARCH, 1));
+        long draft = insertSearchNote("Budget draft", "Ideas",
+                "#FFFFFF", new GregorianCalendar(2024, Calendar.JANUARY, 15));
+        List<Long> all = Arrays.asList(budget, groceries, trip, draft);
+
+        assertEquals(Arrays.asList(budget, groceries), searchIds(searchUri("budget review")));
+        assertEquals(Arrays.asList(budget), searchIds(searchUri("\"budget review\"")));
+        assertEquals(all, searchIds(searchUri("budget OR trip")));
+        assertEquals(Arrays.asList(budget, groceries), searchIds(searchUri("budget -draft")));
+        assertEquals(Arrays.asList(budget, groceries), searchIds(searchUri("budget NOT draft")));
+        assertEquals(Arrays.asList(budget, trip),
+                searchIds(searchUri("(budget OR book) AND review -milk")));
+
+        // Operators are only recognized in upper case
+        assertEquals(Arrays.<Long>asList(), searchIds(searchUri("budget or trip")));
+
+        assertEquals(Arrays.asList(budget, draft), searchIds(searchUri("title:budget")));
+        assertEquals(Arrays.asList(budget), searchIds(searchUri("title:REV")));
+        assertEquals(Arrays.asList(budget), searchIds(searchUri("title:\"budget review\"")));
+        assertEquals(Arrays.asList(draft), searchIds(searchUri("title:\"budget draft\"")));
+
+        // A quoted title keeps its words in order, with FTS4 as well as FTS5
+        assertEquals(Arrays.<Long>asList(), searchIds(searchUri("title:\"review budget\"")));
+        assertEquals(Arrays.<Long>asList(), searchIds(searchUri("title:\"draft budget\"")));
+
+        assertEquals(Arrays.asList(budget), searchIds(searchUri("color:red")));
+        assertEquals(Arrays.asList(trip), searchIds(searchUri("color:Orange")));
+        assertEquals(Arrays.asList(groceries), searchIds(searchUri("color:00ff00")));
+
+        assertEquals(Arrays.asList(groceries, draft),
+                searchIds(searchUri("before:2024-03-01")));
+        assertEquals(Arrays.asList(budget, trip), searchIds(searchUri("after:2024-03-01")));
+        assertEquals(Arrays.asList(groceries, trip),
+                searchIds(searchUri("after:2024-02-01 before:2024-03-02")));
+        assertEquals(Arrays.asList(budget, draft),
+                searchIds(searchUri("budget -(review after:2024-01-01 before:2024-03-01)")));
+
+        // Malformed searches are read as well as they can be
+        assertEquals(Arrays.asList(budget), searchIds(searchUri("\"budget review")));
+        assertEquals(Arrays.asList(budget, groceries, draft),
+                searchIds(searchUri("(budget OR")));
+        assertEquals(Arrays.asList(budget, groceries, draft),
+                searchIds(searchUri(") budget ( AND")));
+        assertEquals(all, searchIds(searchUri("OR NOT")));
+        assertEquals(all, searchIds(searchUri("title: color:")));
+        assertEquals(Arrays.<Long>asList(), searchIds(searchUri("color:nocolor")));
+        assertEquals(Arrays.<Long>asList(), searchIds(searchUri("before:2024-02-30")));
+
+        // Ranked by the words every result contains, filtered by the rest
+        final String[] RANKED_PROJECTION = {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_RELEVANCE
+        };
+        Cursor cursor = mMockResolver.query(searchUri("budget -title:draft color:red"),
+                RANKED_PROJECTION, null, null, NotePad.Notes.RELEVANCE_SORT_ORDER);
+        try {
+            assertEquals(1, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(budget, cursor.getLong(0));
+            assertTrue(cursor.getDouble(1) > 0);
+        } finally {
+            cursor.close();
+        }
+        cursor = mMockResolver.query(searchUri("budget OR trip"), RANKED_PROJECTION, null, null,
+                NotePad.Notes.RELEVANCE_SORT_ORDER);
+        try {
+            assertEquals(4, cursor.getCount());
+            while (cursor.moveToNext()) {
+                assertEquals(0.0, cursor.getDouble(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // A repeated search is compiled once, and searches of the same shape share their SQL
+        NotePadProvider provider = getProvider();
+        assertSame(provider.compileSearch("budget OR title:draft"),
+                provider.compileSearch("  budget  OR title:draft "));
+        assertEquals(provider.compileSearch("budget OR title:draft").where(),
+                provider.compileSearch("milk OR title:list").where());
+    }
+
+    // Inserts a note with a color and a modification date, and returns its id.
+    private long insertSearchNote(String title, String text, String color, Calendar modified) {
+        NoteInfo info = new NoteInfo(title, text);
+        info.setModificationDate(modified.getTimeInMillis());
+        ContentValues values = info.getContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_BACKGROUND_COLOR, color);
+        return ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI, values));
+    }
+
+    /*
+     * Tests substring searches, which match in the middle of words. The results must be the
+     * same with and without the trigram index, and must follow edits and deletes, which
+     * update the index before they return.
+     */
+    public void testSubstringSearch() {
+        NotePadProvider.DatabaseHelper helper = getProvider().getOpenHelperForTest();
+        long part = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Order", "Replace part XAB-12345 by Friday").getContentValues()));
+        long discount = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Sale", "Everything 50% off_today").getContentValues()));
+        long title = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("ab-1234 spares", "In the garage").getContentValues()));
+
+        // Ends with the index, so the edits below go through its triggers
+        for (boolean indexed : new boolean[] { false, true }) {
+            helper.setTrigramIndexEnabled(helper.getWritableDatabase(), indexed);
+
+            assertEquals(Arrays.asList(part, title), substringSearch("AB-1234"));
+            assertEquals(Arrays.asList(part), substringSearch("b-12345 by"));
+            assertEquals(Arrays.asList(part, discount, title), substringSearch("a"));
+
+            // LIKE wildcards in the search are matched as themselves
+            assertEquals(Arrays.asList(discount), substringSearch("0%"));
+            assertEquals(Arrays.asList(discount), substringSearch("f_t"));
+            assertEquals(Arrays.<Long>asList(), substringSearch("f%t"));
+
+            // Words that start with a search term are not enough
+            assertEquals(Arrays.<Long>asList(), substringSearch("garage door"));
+        }
+
+        ContentValues values = new ContentValues();
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, "Replace part XAB-999");
+        mMockResolver.update(ContentUris.withAppendedId(NotePad.Notes.CONTENT_URI, part), values,
+                null, null);
+        mMockResolver.delete(ContentUris.withAppendedId(NotePad.Notes.CONTENT_URI, discount),
+                null, null);
+        assertEquals(0, DatabaseUtils.queryNumEntries(mDb, TrigramIndex.PENDING_TABLE_NAME));
+        assertEquals(Arrays.asList(title), substringSearch("ab-1234"));
+        assertEquals(Arrays.asList(part), substringSearch("ab-99"));
+        assertEquals(Arrays.<Long>asList(), substringSearch("0% off"));
+
+        // An empty search lists every note
+        assertEquals(Arrays.asList(part, title), substringSearch(" "));
+    }
+
+    /*
+     * Tests fuzzy searches, which find words despite typos, ranked by how many trigrams they
+     * share with the search.
+     */
+    public void testFuzzySearch() {
+        NotePadProvider.DatabaseHelper helper = getProvider().getOpenHelperForTest();
+        helper.setTrigramIndexEnabled(helper.getWritableDatabase(), true);
+
+        long receive = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Mail", "Did you receive the parcel?").getContentValues()));
+        long recipe = ContentUris.parseId(mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Recipe", "Receive it, then the rest").getContentValues()));
+        mMockResolver.insert(NotePad.Notes.CONTENT_URI,
+                new NoteInfo("Garden", "Water the plants").getContentValues());
+
+        Cursor cursor = mMockResolver.query(fuzzyUri("recieve the parcel", 0.4), new String[] {
+                NotePad.Notes._ID, NotePad.Notes.COLUMN_NAME_RELEVANCE }, null, null,
+                NotePad.Notes.RELEVANCE_SORT_ORDER);
+        try {
+            assertEquals(2, cursor.getCount());
+            assertTrue(cursor.moveToFirst());
+            assertEquals(receive, cursor.getLong(0));
+            double best = cursor.getDouble(1);
+            assertTrue(cursor.moveToNext());
+            assertEquals(recipe, cursor.getLong(0));
+            assertTrue(cursor.getDouble(1) < best);
+            assertTrue(best <= 1.0);
+        } finally {
+            cursor.close();
+        }
+
+        // A typo costs "recieve" four of its seven trigrams
+        cursor = mMockResolver.query(fuzzyUri("recieve", 0.4), null, null, null, null);
+        assertEquals(2, cursor.getCount());
+        cursor.close();
+        cursor = mMockResolver.query(fuzzyUri("recieve", 0.9), null, null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+
+        try {
+            mMockResolver.query(fuzzyUri("recieve", 1.5), null, null, null, null);
+            fail("Accepted a similarity over 1");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        helper.setTrigramIndexEnabled(helper.getWritableDatabase(), false);
+        try {
+            mMockResolver.query(fuzzyUri("recieve", 0.4), null, null, null, null);
+            fail("Ran a fuzzy search without the trigram index");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+
+    /*
+     * Compares the latency of substring searches for part numbers in 100,000 notes with the
+     * trigram index and with a LIKE scan of every note.
+     */
+    public void testSubstringSearchBenchmark() {
+        final int NOTE_COUNT = 100000;
+        final int SEARCHES = 50;
+
+        Random random = new Random(23);
+        ContentValues[] notes = new ContentValues[NOTE_COUNT];
+        for (int i = 0; i < NOTE_COUNT; i++) {
+            notes[i] = new NoteInfo("Order " + i, "Ship part PN-" + (1000000 + i) + " to "
+                    + makeProse(random, 40)).getContentValues();
+        }
+        mMockResolver.bulkInsert(NotePad.Notes.CONTENT_URI, notes);
+
+        // Builds the index once the notes are in, to time indexing every note at once
+        NotePadProvider.DatabaseHelper helper = getProvider().getOpenHelperForTest();
+        long start = System.nanoTime();
+        helper.setTrigramIndexEnabled(helper.getWritableDatabase(), true);
+        Log.i(TAG, "Indexed trigrams of " + NOTE_COUNT + " notes in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+
+        for (boolean indexed : new boolean[] { true, false }) {
+            helper.setTrigramIndexEnabled(helper.getWritableDatabase(), indexed);
+            substringSearch("warm-up");
+
+            long[] nanos = new long[SEARCHES];
+            for (int i = 0; i < SEARCHES; i++) {
+                int target = random.nextInt(NOTE_COUNT);
+                // The part number without its first digit, which no other note contains
+                String fragment = Integer.toString(1000000 + target).substring(1);
+                start = System.nanoTime();
+                List<Long> ids = substringSearch(fragment);
+                nanos[i] = System.nanoTime() - start;
+                assertEquals(fragment, 1, ids.size());
+            }
+            Log.i(TAG, (indexed ? "Trigram index" : "LIKE scan") + ": p50 "
+                    + percentileMicros(nanos, 50) + " us, p99 " + percentileMicros(nanos, 99)
+                    + " us per substring search of " + NOTE_COUNT + " notes");
+        }
+    }
+
+    // Returns the ids of the notes a substring search matches, in increasing order.
+    private List<Long> substringSearch(String fragment) {
+        return searchIds(searchUri(fragment).buildUpon()
+                .appendQueryParameter(NotePad.Notes.SEARCH_MODE_PARAMETER,
+                        NotePad.Notes.SEARCH_MODE_SUBSTRING)
+                .build());
+    }
+
+    // Returns the ids of the notes a search URI matches, in increasing order.
+    private List<Long> searchIds(Uri uri) {
+        Cursor cursor = mMockResolver.query(uri, new String[] { NotePad.Notes._ID }, null, null,
+                NotePad.Notes._ID + " ASC");
+        List<Long> ids = new ArrayList<Long>();
+        try {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return ids;
+    }
+
+    // Builds a fuzzy search URI for the given query text and similarity.
+    private static Uri fuzzyUri(String query, double similarity) {
+        return searchUri(query).buildUpon()
+                .appendQueryParameter(NotePad.Notes.SEARCH_MODE_PARAMETER,
+                        NotePad.Notes.SEARCH_MODE_FUZZY)
+                .appendQueryParameter(NotePad.Notes.SIMILARITY_PARAMETER,
+                        Double.toString(similarity))
+                .build();
+    }
+
+    // Builds a search URI for the given query text.
+    private static Uri searchUri(String query) {
+        return NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER, query)
+                .build();
+    }
+
     // A utility for converting note data to a ContentValues map.
     private static class NoteInfo {
         String title;
@@ -832,6 +3070,11 @@ public class NotePadProviderTest extends ProviderTestCase2<NotePadProvider> {
             v.put(NotePad.Notes.COLUMN_NAME_NOTE, note);
             v.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, createDate);
             v.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, modDate);
+
+            // The search columns, which the provider fills in itself but a direct insert
+            // into the database has to supply
+            v.put(SearchText.COLUMN_NAME_TITLE, SearchText.storedForm(title));
+            v.put(SearchText.COLUMN_NAME_NOTE, SearchText.storedForm(note));
             return v;
 
         }
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Debug;
+import android.test.AndroidTestCase;
+import android.text.Spanned;
+import android.text.style.StyleSpan;
+import android.text.format.DateFormat;
+import android.view.View;
+import android.widget.TextView;
+
+/**
+ * Tests {@link NotesListAdapter}, the adapter behind the rows of NotesList.
+ */
+public class NotesListAdapterTest extends AndroidTestCase {
+
+    // Number of rows in the simulated fling
+    private static final int FLING_ROW_COUNT = 10000;
+
+    // Number of row views the list recycles while flinging
+    private static final int RECYCLED_VIEW_COUNT = 12;
+
+    private SQLiteDatabase mDb;
+    private Cursor mCursor;
+    private NotesListAdapter mAdapter;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        // An in-memory notes table, queried into the same kind of cursor the provider returns
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE " + NotePad.Notes.TABLE_NAME + " ("
+                + NotePad.Notes._ID + " INTEGER PRIMARY KEY,"
+                + NotePad.Notes.COLUMN_NAME_TITLE + " TEXT,"
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER"
+                + ");");
+
+        SQLiteStatement insert = mDb.compileStatement("INSERT INTO " + NotePad.Notes.TABLE_NAME
+                + " (" + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ") VALUES (?, ?)");
+        mDb.beginTransaction();
+        try {
+            for (int i = 0; i < FLING_ROW_COUNT; i++) {
+                insert.bindString(1, "Note title " + i);
+
+                // Every note in a different minute, so the formatter's minute cache never hits
+                insert.bindLong(2, 1262304000000L + i * 61000L);
+                insert.executeInsert();
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+
+        mCursor = queryNotes();
+        assertEquals(FLING_ROW_COUNT, mCursor.getCount());
+
+        mAdapter = new NotesListAdapter(getContext());
+        mAdapter.swapCursor(mCursor);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mAdapter.swapCursor(null);
+        mCursor.close();
+        mDb.close();
+        super.tearDown();
+    }
+
+    /*
+     * Tests that rows show the title and the same timestamp text DateFormat produced before.
+     */
+    public void testBindView() {
+        View view = mAdapter.getView(1234, null, null);
+        TextView title = (TextView) view.findViewById(android.R.id.text1);
+        TextView timestamp = (TextView) view.findViewById(R.id.timestamp_text);
+
+        assertEquals("Note title 1234", title.getText().toString());
+        assertEquals(DateFormat.format("yyyy-MM-dd HH:mm:ss", 1262304000000L + 1234 * 61000L)
+                .toString(), timestamp.getText().toString());
+
+        // Rebinding a recycled view replaces its text entirely
+        mAdapter.getView(7, view, null);
+        assertEquals("Note title 7", title.getText().toString());
+    }
+
+    /*
+     * Tests the row diff that NotesList runs when it reloads. Editing one note must report
+     * only that note's position, and adding a note must ask for a full refresh.
+     */
+    public void testChangedPositions() {
+        NotesListAdapter.RowKeys before = NotesListAdapter.RowKeys.read(mCursor);
+        assertEquals(FLING_ROW_COUNT, before.size());
+        assertEquals(0, NotesListAdapter.RowKeys.read(requery()).changedPositions(before).length);
+
+        // A note saved by the editor gets a new modification date
+        mDb.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " = 0 WHERE "
+                + NotePad.Notes._ID + " = 5000");
+        int[] changed = NotesListAdapter.RowKeys.read(requery()).changedPositions(before);
+        assertEquals(1, changed.length);
+        assertEquals(4999, changed[0]);
+
+        // A note renamed by the title editor keeps its modification date
+        mDb.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                + NotePad.Notes.COLUMN_NAME_TITLE + " = 'Renamed' WHERE "
+                + NotePad.Notes._ID + " = 10");
+        changed = NotesListAdapter.RowKeys.read(requery()).changedPositions(before);
+        assertEquals(2, changed.length);
+        assertEquals(9, changed[0]);
+        assertEquals(4999, changed[1]);
+
+        mDb.execSQL("INSERT INTO " + NotePad.Notes.TABLE_NAME + " ("
+                + NotePad.Notes.COLUMN_NAME_TITLE + ") VALUES ('New')");
+        assertNull(NotesListAdapter.RowKeys.read(requery()).changedPositions(before));
+    }
+
+    /*
+     * Tests that a match snippet loses its match markers, and that each match is highlighted.
+     */
+    public void testHighlightMatches() {
+        String snippet = "…the " + NotePad.Notes.MATCH_START + "budget" + NotePad.Notes.MATCH_END
+                + " for " + NotePad.Notes.MATCH_START + "Budgets" + NotePad.Notes.MATCH_END;
+        CharSequence text = NotesListAdapter.highlightMatches(snippet);
+        assertEquals("…the budget for Budgets", text.toString());
+
+        Spanned spanned = (Spanned) text;
+        StyleSpan[] spans = spanned.getSpans(0, spanned.length(), StyleSpan.class);
+        assertEquals(2, spans.length);
+        assertEquals(5, spanned.getSpanStart(spans[0]));
+        assertEquals(11, spanned.getSpanEnd(spans[0]));
+        assertEquals(16, spanned.getSpanStart(spans[1]));
+        assertEquals(23, spanned.getSpanEnd(spans[1]));
+
+        assertEquals("", NotesListAdapter.highlightMatches(null).toString());
+    }
+
+    // Queries every note, in id order.
+    private Cursor queryNotes() {
+        return mDb.query(NotePad.Notes.TABLE_NAME, new String[] {
+                NotePad.Notes._ID,
+                NotePad.Notes.COLUMN_NAME_TITLE,
+                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE },
+                null, null, null, null, NotePad.Notes._ID);
+    }
+
+    // Queries the notes again, and swaps the result into the adapter in place of mCursor.
+    private Cursor requery() {
+        Cursor cursor = queryNotes();
+        mAdapter.swapCursor(cursor);
+        mCursor.close();
+        mCursor = cursor;
+        return cursor;
+    }
+
+    /*
+     * Simulates a fling through every row, binding each one to a recycled view as ListView
+     * does, and counts the objects allocated on this thread. Once the recycled views exist,
+     * binding a row must not allocate.
+     */
+    public void testFlingDoesNotAllocate() {
+        View[] views = new View[RECYCLED_VIEW_COUNT];
+        for (int i = 0; i < views.length; i++) {
+            views[i] = mAdapter.getView(i, null, null);
+        }
+
+        // Warms up the cursor window, which is filled on first use
+        for (int i = 0; i < views.length; i++) {
+            mAdapter.getView(i, views[i], null);
+        }
+
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        for (int position = 0; position < FLING_ROW_COUNT; position++) {
+            mAdapter.getView(position, views[position % views.length], null);
+        }
+        int allocations = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+
+        // Allows for a few one-off allocations, such as a buffer growing, but none per row
+        assertTrue(allocations + " allocations for " + FLING_ROW_COUNT + " rows",
+                allocations < FLING_ROW_COUNT / 100);
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+
+/**
+ * Coalesces the change notifications NotePadProvider sends. Notifications requested within
+ * {@link #WINDOW_MILLIS} of each other are held, deduplicated and sent together, so a burst
+ * of writes produces one round of observer callbacks instead of one per write.
+ *
+ * <p>Notifying the collection URI also reaches observers of every note in it, so once the
+ * collection URI is pending, note URIs are dropped. When more than
+ * {@link #MAX_PENDING_URIS} note URIs are pending, they are replaced by the collection URI.
+ */
+class ChangeNotifier {
+
+    /**
+     * How long a notification may be held for others to join it, in milliseconds
+     */
+    static final long WINDOW_MILLIS = 100;
+
+    private static final int MAX_PENDING_URIS = 100;
+
+    private final ContentResolver mResolver;
+    private final Uri mCollectionUri;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final LinkedHashSet<Uri> mPending = new LinkedHashSet<Uri>();
+    private boolean mFlushScheduled;
+
+    // Notifications requested by the provider, and notifications actually sent
+    private long mRequestedCount;
+    private long mDispatchedCount;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param resolver the resolver notifications are sent through
+     * @param collectionUri the URI whose notification covers every other URI requested
+     */
+    ChangeNotifier(ContentResolver resolver, Uri collectionUri) {
+        mResolver = resolver;
+        mCollectionUri = collectionUri;
+    }
+
+    /**
+     * Requests a notification for the given URI. It is sent by the next flush, which runs at
+     * most {@link #WINDOW_MILLIS} from now.
+     */
+    void requestChange(Uri uri) {
+        synchronized (this) {
+            mRequestedCount++;
+            addPending(uri);
+            if (mFlushScheduled) {
+                return;
+            }
+            mFlushScheduled = true;
+        }
+        mHandler.postDelayed(mFlushRunnable, WINDOW_MILLIS);
+    }
+
+    /**
+     * Requests notifications for all of the given URIs, and sends everything pending right
+     * away. Used when a transaction commits, since its changes are already complete.
+     */
+    void requestChangesAndFlush(Collection<Uri> uris) {
+        synchronized (this) {
+            mRequestedCount += uris.size();
+            for (Uri uri : uris) {
+                addPending(uri);
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Sends every pending notification now.
+     */
+    void flush() {
+        Uri[] uris;
+        synchronized (this) {
+            uris = mPending.toArray(new Uri[mPending.size()]);
+            mPending.clear();
+            mDispatchedCount += uris.length;
+            if (mFlushScheduled) {
+                mHandler.removeCallbacks(mFlushRunnable);
+                mFlushScheduled = false;
+            }
+        }
+
+        // Sends outside the lock; notifyChange() is a call into the system process
+        for (Uri uri : uris) {
+            mResolver.notifyChange(uri, null);
+        }
+    }
+
+    synchronized long getRequestedCount() {
+        return mRequestedCount;
+    }
+
+    synchronized long getDispatchedCount() {
+        return mDispatchedCount;
+    }
+
+    private void addPending(Uri uri) {
+        if (mPending.contains(mCollectionUri)) {
+            return;
+        }
+        if (uri.equals(mCollectionUri) || mPending.size() >= MAX_PENDING_URIS) {
+            mPending.clear();
+            mPending.add(mCollectionUri);
+            return;
+        }
+        mPending.add(uri);
+    }
+}
@@ -0,0 +1,477 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.util.ArrayList;
+
+/**
+ * Stores the text of large notes in pieces, so that no row NotePadProvider reads is too big
+ * for a CursorWindow. The first {@link #CHUNK_LENGTH} characters of a note stay in the note
+ * column of the notes table, which is what lists, snippets and the search index read. The
+ * rest is split into rows of the chunks table, in the order of their sequence numbers.
+ *
+ * <p>Chunks may be stored compressed, see {@link NoteCompressor}: a chunk is a blob if it is
+ * compressed and text if it is not, so notes written with and without compression can be
+ * read alike. The part of a note in the notes table is never compressed, since the search
+ * index and the lists read it directly.
+ *
+ * <p>Chunk lengths are counted in code points, like SQLite's length() and patch offsets.
+ * Sequence numbers are spaced {@link #SEQUENCE_STEP} apart, so that a patch that grows a
+ * chunk can split it without renumbering the chunks after it.
+ */
+final class NoteChunks {
+
+    /**
+     * The table holding the chunks of large notes
+     */
+    static final String TABLE_NAME = "note_chunks";
+
+    static final String COLUMN_NAME_NOTE_ID = "note_id";
+    static final String COLUMN_NAME_SEQUENCE = "seq";
+
+    // Declared before the text, so reading it does not load the text's overflow pages
+    static final String COLUMN_NAME_LENGTH = "length";
+    private static final String COLUMN_NAME_TEXT = "text";
+
+    /**
+     * Length, in code points, of the pieces a large note is split into. Notes no longer than
+     * this are stored whole in the notes table.
+     */
+    static final int CHUNK_LENGTH = 64 * 1024;
+
+    /**
+     * Patches may grow a chunk up to this length before it is split again. The part of a note
+     * in the notes table is split as soon as it grows past {@link #CHUNK_LENGTH}, so it is the
+     * same whether the note was patched or written whole.
+     */
+    static final int MAX_CHUNK_LENGTH = 4 * CHUNK_LENGTH;
+
+    private static final long SEQUENCE_STEP = 1 << 16;
+
+    private static final String ID_WHERE = COLUMN_NAME_NOTE_ID + " = ?";
+
+    /**
+     * An expression, for queries of the notes table, that is 1 if the note has chunks
+     */
+    static final String HAS_CHUNKS_EXPRESSION = "EXISTS (SELECT 1 FROM " + TABLE_NAME + " WHERE "
+            + COLUMN_NAME_NOTE_ID + " = " + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID
+            + ")";
+
+    private NoteChunks() {
+    }
+
+    /**
+     * Creates the chunks table, and the trigger that deletes a note's chunks with the note.
+     */
+    static void createTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_NAME + " ("
+                + COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL,"
+                + COLUMN_NAME_SEQUENCE + " INTEGER NOT NULL,"
+                + COLUMN_NAME_LENGTH + " INTEGER NOT NULL,"
+                + COLUMN_NAME_TEXT + " TEXT NOT NULL,"
+                + "PRIMARY KEY (" + COLUMN_NAME_NOTE_ID + ", " + COLUMN_NAME_SEQUENCE + ")"
+                + ");");
+        db.execSQL("CREATE TRIGGER " + TABLE_NAME + "_ad AFTER DELETE ON "
+                + NotePad.Notes.TABLE_NAME + " BEGIN DELETE FROM " + TABLE_NAME + " WHERE "
+                + COLUMN_NAME_NOTE_ID + " = old." + NotePad.Notes._ID + "; END;");
+    }
+
+    /**
+     * Splits the text of a note into the part stored in the notes table, followed by the
+     * chunks stored in the chunks table.
+     *
+     * @return the pieces; a single piece, the text itself, if the note is short or null
+     */
+    static String[] split(String note) {
+        // Counts code points, as chunkInPlace() and patches do, so every way of chunking a
+        // note puts the boundaries in the same places and never inside a surrogate pair
+        int remaining = note != null ? codePointLength(note) : 0;
+        if (remaining <= CHUNK_LENGTH) {
+            return new String[] { note };
+        }
+
+        ArrayList<String> pieces = new ArrayList<String>(remaining / CHUNK_LENGTH + 1);
+        int start = 0;
+        while (remaining > 0) {
+            int count = Math.min(CHUNK_LENGTH, remaining);
+            int end = note.offsetByCodePoints(start, count);
+            pieces.add(note.substring(start, end));
+            start = end;
+            remaining -= count;
+        }
+        return pieces.toArray(new String[pieces.size()]);
+    }
+
+    /**
+     * Replaces the chunks of every note selected by a WHERE clause on the notes table. Must be
+     * called in a transaction, before the notes themselves are updated, since the update may
+     * change which notes the clause selects.
+     *
+     * @param pieces the note as returned by {@link #split(String)}; the first piece is not
+     *        written here, it belongs in the notes table
+     * @param compress whether to compress the chunks
+     */
+    static void replace(SQLiteDatabase db, String where, String[] whereArgs, String[] pieces,
+            boolean compress) {
+        String notes = "SELECT " + NotePad.Notes._ID + " FROM " + NotePad.Notes.TABLE_NAME
+                + (where != null ? " WHERE " + where : "");
+        Object[] args = whereArgs != null ? whereArgs : new Object[0];
+
+        db.execSQL("DELETE FROM " + TABLE_NAME + " WHERE " + COLUMN_NAME_NOTE_ID + " IN ("
+                + notes + ")", args);
+
+        String insert = "INSERT INTO " + TABLE_NAME + " (" + COLUMN_NAME_NOTE_ID + ", "
+                + COLUMN_NAME_SEQUENCE + ", " + COLUMN_NAME_LENGTH + ", " + COLUMN_NAME_TEXT
+                + ") SELECT " + NotePad.Notes._ID + ", ?, ?, ? FROM " + NotePad.Notes.TABLE_NAME
+                + (where != null ? " WHERE " + where : "");
+        Object[] insertArgs = new Object[args.length + 3];
+        System.arraycopy(args, 0, insertArgs, 3, args.length);
+        for (int i = 1; i < pieces.length; i++) {
+            insertArgs[0] = i * SEQUENCE_STEP;
+            insertArgs[1] = codePointLength(pieces[i]);
+            insertArgs[2] = chunkValue(pieces[i], compress);
+            db.execSQL(insert, insertArgs);
+        }
+    }
+
+    /**
+     * Writes the chunks of a note that was just inserted.
+     *
+     * @param pieces the note as returned by {@link #split(String)}
+     * @param compress whether to compress the chunks
+     */
+    static void insert(SQLiteDatabase db, long noteId, String[] pieces, boolean compress) {
+        for (int i = 1; i < pieces.length; i++) {
+            insertChunk(db, noteId, i * SEQUENCE_STEP, pieces[i], compress);
+        }
+    }
+
+    /**
+     * Moves everything after the first {@link #CHUNK_LENGTH} code points of a note stored
+     * whole in the notes table into chunks. The text is cut up by SQLite, so the note is never
+     * read into memory, which matters for notes written before chunking existed: those may be
+     * too large to read at all.
+     *
+     * @param noteLength the length of the note, in code points
+     */
+    static void chunkInPlace(SQLiteDatabase db, long noteId, long noteLength) {
+        String copy = "INSERT INTO " + TABLE_NAME + " (" + COLUMN_NAME_NOTE_ID + ", "
+                + COLUMN_NAME_SEQUENCE + ", " + COLUMN_NAME_LENGTH + ", " + COLUMN_NAME_TEXT
+                + ") SELECT " + NotePad.Notes._ID + ", ?, length(substr("
+                + NotePad.Notes.COLUMN_NAME_NOTE + ", ?, " + CHUNK_LENGTH + ")), substr("
+                + NotePad.Notes.COLUMN_NAME_NOTE + ", ?, " + CHUNK_LENGTH + ") FROM "
+                + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " = ?";
+
+        // substr() counts from 1
+        long sequence = SEQUENCE_STEP;
+        for (long start = CHUNK_LENGTH + 1; start <= noteLength; start += CHUNK_LENGTH) {
+            db.execSQL(copy, new Object[] { sequence, start, start, noteId });
+            sequence += SEQUENCE_STEP;
+        }
+
+        db.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                + NotePad.Notes.COLUMN_NAME_NOTE + " = substr(" + NotePad.Notes.COLUMN_NAME_NOTE
+                + ", 1, " + CHUNK_LENGTH + ") WHERE " + NotePad.Notes._ID + " = ?",
+                new Object[] { noteId });
+    }
+
+    /**
+     * Returns the length, in code points, of the part of a note stored in chunks.
+     */
+    static long length(SQLiteDatabase db, long noteId) {
+        return DatabaseUtils.longForQuery(db, "SELECT ifnull(sum(" + COLUMN_NAME_LENGTH
+                + "), 0) FROM " + TABLE_NAME + " WHERE " + ID_WHERE, new String[] { Long.toString(noteId) });
+    }
+
+    /**
+     * Returns up to the first length characters of the whole text of a note.
+     *
+     * @param head the part of the note stored in the notes table
+     */
+    static String readStart(SQLiteDatabase db, long noteId, String head, int length) {
+        if (head != null && head.length() >= length) {
+            return head.substring(0, length);
+        }
+
+        StringBuilder start = new StringBuilder(head != null ? head : "");
+        Cursor c = queryChunks(db, noteId);
+        try {
+            while (start.length() < length && c.moveToNext()) {
+                start.append(chunkText(c));
+            }
+        } finally {
+            c.close();
+        }
+        if (start.length() > length) {
+            start.setLength(length);
+        }
+        return start.toString();
+    }
+
+    /**
+     * Replaces part of the text of a chunked note. Only the chunks the patch overlaps are
+     * read and written. The part of the note in the notes table counts as the first chunk; if
+     * the patch changes it, it is returned so the caller can write it.
+     *
+     * @param head the part of the note stored in the notes table
+     * @param offset the offset of the patch in the whole note, in code points
+     * @param length the number of code points the patch replaces
+     * @param compress whether to compress the chunks the patch writes
+     * @return the new part of the note for the notes table, or null if it did not change
+     */
+    static String patch(SQLiteDatabase db, long noteId, String head, long offset, long length,
+            String text, boolean compress) {
+        if (head == null) {
+            head = "";
+        }
+
+        // The sequence number and length of every piece of the note, the head first
+        ArrayList<long[]> pieces = new ArrayList<long[]>();
+        pieces.add(new long[] { 0, codePointLength(head) });
+        Cursor c = db.query(TABLE_NAME, new String[] { COLUMN_NAME_SEQUENCE, COLUMN_NAME_LENGTH },
+                ID_WHERE, new String[] { Long.toString(noteId) }, null, null,
+                COLUMN_NAME_SEQUENCE);
+        try {
+            while (c.moveToNext()) {
+                pieces.add(new long[] { c.getLong(0), c.getLong(1) });
+            }
+        } finally {
+            c.close();
+        }
+
+        // Finds the pieces holding the first and last code points the patch touches. A patch
+        // that only inserts at the boundary of two pieces goes into the earlier one.
+        long end = offset + length;
+        int first = -1;
+        int last = -1;
+        long firstStart = 0;
+        long pieceStart = 0;
+        for (int i = 0; i < pieces.size(); i++) {
+            long pieceEnd = pieceStart + pieces.get(i)[1];
+            if (first < 0 && (offset < pieceEnd
+                    || (offset == pieceEnd && (length == 0 || i == pieces.size() - 1)))) {
+                first = i;
+                firstStart = pieceStart;
+            }
+            if (first >= 0 && end <= pieceEnd) {
+                last = i;
+                break;
+            }
+            pieceStart = pieceEnd;
+        }
+        if (first < 0 || last < 0) {
+            throw new IllegalArgumentException("Patch at " + offset + " is past the end of note "
+                    + noteId);
+        }
+
+        // Splices the patch into the text of the pieces it touches
+        StringBuilder spliced = new StringBuilder();
+        for (int i = first; i <= last; i++) {
+            spliced.append(i == 0 ? head : readChunk(db, noteId, pieces.get(i)[0]));
+        }
+        int spliceStart = spliced.offsetByCodePoints(0, (int) (offset - firstStart));
+        int spliceEnd = spliced.offsetByCodePoints(spliceStart, (int) length);
+        spliced.replace(spliceStart, spliceEnd, text);
+
+        // A piece that has grown too long is split, and the new chunks numbered between it
+        // and the piece after it. The part in the notes table may not grow at all.
+        int limit = first == 0 ? CHUNK_LENGTH : MAX_CHUNK_LENGTH;
+        String[] replacement = spliced.codePointCount(0, spliced.length()) > limit
+                ? split(spliced.toString())
+                : new String[] { spliced.toString() };
+        if (last + 1 < pieces.size()
+                && pieces.get(last + 1)[0] - pieces.get(first)[0] < replacement.length) {
+            renumber(db, noteId, pieces);
+        }
+        long low = pieces.get(first)[0];
+        long high = last + 1 < pieces.size()
+                ? pieces.get(last + 1)[0]
+                : low + replacement.length * SEQUENCE_STEP;
+
+        for (int i = first + 1; i <= last; i++) {
+            deleteChunk(db, noteId, pieces.get(i)[0]);
+        }
+
+        String newHead = null;
+        if (first == 0) {
+            newHead = replacement[0];
+        } else {
+            deleteChunk(db, noteId, low);
+            insertChunk(db, noteId, low, replacement[0], compress);
+        }
+        for (int i = 1; i < replacement.length; i++) {
+            insertChunk(db, noteId, low + (high - low) * i / replacement.length,
+                    replacement[i], compress);
+        }
+        return newHead;
+    }
+
+    /**
+     * Spreads the sequence numbers of a note's chunks {@link #SEQUENCE_STEP} apart again,
+     * once a run of splits has used up the room between two of them. Only the numbers are
+     * rewritten, not the text.
+     *
+     * @param pieces the sequence number and length of every piece, the head first; the
+     *        sequence numbers are updated to the new ones
+     */
+    private static void renumber(SQLiteDatabase db, long noteId, ArrayList<long[]> pieces) {
+        String[] idArgs = { Long.toString(noteId) };
+
+        // Moves every number below zero first, so that no two chunks ever share one
+        db.execSQL("UPDATE " + TABLE_NAME + " SET " + COLUMN_NAME_SEQUENCE + " = -"
+                + COLUMN_NAME_SEQUENCE + " - 1 WHERE " + ID_WHERE, idArgs);
+
+        ContentValues values = new ContentValues();
+        for (int i = 1; i < pieces.size(); i++) {
+            long[] piece = pieces.get(i);
+            values.put(COLUMN_NAME_SEQUENCE, i * SEQUENCE_STEP);
+            db.update(TABLE_NAME, values, ID_WHERE + " AND " + COLUMN_NAME_SEQUENCE + " = ?",
+                    new String[] { idArgs[0], Long.toString(-piece[0] - 1) });
+            piece[0] = i * SEQUENCE_STEP;
+        }
+    }
+
+    private static Cursor queryChunks(SQLiteDatabase db, long noteId) {
+        return db.query(TABLE_NAME, new String[] { COLUMN_NAME_TEXT }, ID_WHERE,
+                new String[] { Long.toString(noteId) }, null, null, COLUMN_NAME_SEQUENCE);
+    }
+
+    private static String readChunk(SQLiteDatabase db, long noteId, long sequence) {
+        Cursor c = db.query(TABLE_NAME, new String[] { COLUMN_NAME_TEXT },
+                ID_WHERE + " AND " + COLUMN_NAME_SEQUENCE + " = ?",
+                new String[] { Long.toString(noteId), Long.toString(sequence) },
+                null, null, null);
+        try {
+            if (!c.moveToFirst()) {
+                throw new SQLException("Missing chunk " + sequence + " of note " + noteId);
+            }
+            return chunkText(c);
+        } finally {
+            c.close();
+        }
+    }
+
+    // Returns the text of the chunk in column 0 of the cursor's current row
+    private static String chunkText(Cursor c) {
+        return c.getType(0) == Cursor.FIELD_TYPE_BLOB
+                ? NoteCompressor.decompress(c.getBlob(0))
+                : c.getString(0);
+    }
+
+    // Returns the value to store for the text of a chunk: a compressed blob, or the text
+    // itself if it is not to be compressed or does not get smaller
+    private static Object chunkValue(String text, boolean compress) {
+        byte[] compressed = compress ? NoteCompressor.compress(text) : null;
+        return compressed != null ? compressed : text;
+    }
+
+    private static void insertChunk(SQLiteDatabase db, long noteId, long sequence, String text,
+            boolean compress) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_NAME_NOTE_ID, noteId);
+        values.put(COLUMN_NAME_SEQUENCE, sequence);
+        values.put(COLUMN_NAME_LENGTH, codePointLength(text));
+        Object value = chunkValue(text, compress);
+        if (value instanceof byte[]) {
+            values.put(COLUMN_NAME_TEXT, (byte[]) value);
+        } else {
+            values.put(COLUMN_NAME_TEXT, (String) value);
+        }
+        db.insertOrThrow(TABLE_NAME, null, values);
+    }
+
+    private static void deleteChunk(SQLiteDatabase db, long noteId, long sequence) {
+        db.delete(TABLE_NAME, ID_WHERE + " AND " + COLUMN_NAME_SEQUENCE + " = ?",
+                new String[] { Long.toString(noteId), Long.toString(sequence) });
+    }
+
+    private static int codePointLength(String text) {
+        return text != null ? text.codePointCount(0, text.length()) : 0;
+    }
+
+    /**
+     * The cursor returned for a single note. The note column of the underlying cursor holds
+     * only the part of the note in the notes table; the chunks are read and appended when the
+     * cursor is made. The caller makes it in the transaction that queried the note, so the
+     * part in the notes table and the chunks always come from the same write.
+     */
+    static class NoteCursor extends CursorWrapper {
+        private final int mNoteColumn;
+
+        // The whole note, or null if there is no note or it has no text
+        private final String mNote;
+
+        NoteCursor(Cursor cursor, SQLiteDatabase db, long noteId) {
+            super(cursor);
+            mNoteColumn = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
+            mNote = cursor.moveToFirst() ? readNote(db, noteId, cursor.getString(mNoteColumn))
+                    : null;
+            cursor.moveToPosition(-1);
+        }
+
+        private static String readNote(SQLiteDatabase db, long noteId, String head) {
+            if (head == null) {
+                return null;
+            }
+            Cursor c = queryChunks(db, noteId);
+            try {
+                if (c.getCount() == 0) {
+                    return head;
+                }
+                StringBuilder note = new StringBuilder(head.length()
+                        + c.getCount() * CHUNK_LENGTH);
+                note.append(head);
+                while (c.moveToNext()) {
+                    note.append(chunkText(c));
+                }
+                return note.toString();
+            } finally {
+                c.close();
+            }
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            if (columnIndex != mNoteColumn || mNote == null) {
+                return super.getString(columnIndex);
+            }
+            return mNote;
+        }
+
+        @Override
+        public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+            if (columnIndex != mNoteColumn || mNote == null) {
+                super.copyStringToBuffer(columnIndex, buffer);
+                return;
+            }
+            if (buffer.data == null || buffer.data.length < mNote.length()) {
+                buffer.data = mNote.toCharArray();
+            } else {
+                mNote.getChars(0, mNote.length(), buffer.data, 0);
+            }
+            buffer.sizeCopied = mNote.length();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+/**
+ * The palette of note background colors: the colors the editor's color picker offers, and
+ * the names searches for "color:" a name find them by. Kept apart from the editor so that
+ * the provider can read it without depending on an activity.
+ */
+final class NoteColors {
+
+    /**
+     * The names of the colors, in the order the picker shows them
+     */
+    static final String[] NAMES = {
+            "Red", "Green", "Blue", "Yellow", "Purple", "Orange",
+            "Pink", "Cyan", "Magenta", "Brown", "Grey", "Teal"
+    };
+
+    /**
+     * The colors as they are stored, "#RRGGBB", in the same order as {@link #NAMES}
+     */
+    static final String[] VALUES = {
+            "#FF0000", "#00FF00", "#0000FF", "#FFFF00", "#800080", "#FFA500", // 红、绿、蓝、黄、紫、橙
+            "#FFC0CB", "#00FFFF", "#FF00FF", "#A52A2A", "#808080", "#008080"  // 粉红、青、品红、棕、灰、青绿色
+    };
+
+    private NoteColors() {
+    }
+
+    /**
+     * Returns the stored value of the color with the given name, ignoring case, or null if
+     * the palette has no color by that name
+     */
+    static String valueOf(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equalsIgnoreCase(name)) {
+                return VALUES[i];
+            }
+        }
+        return null;
+    }
+}
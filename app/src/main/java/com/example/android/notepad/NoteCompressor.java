@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.SQLException;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses note text with Deflate, primed with a dictionary of common English words so
+ * that short texts compress too. A compressed text is a blob: a format byte followed by a
+ * zlib stream of the text's UTF-8 bytes. Plain text is stored as text, so readers tell the
+ * two apart by the type of the value.
+ *
+ * <p>Only the chunks of a note past its first {@link NoteChunks#CHUNK_LENGTH} characters are
+ * compressed; the part in the notes table stays plain text for the search index and lists.
+ * A typical note is shorter than one chunk, so it is stored uncompressed and gains nothing
+ * from this class.
+ */
+final class NoteCompressor {
+
+    // Deflate with DICTIONARY_V1, and with DICTIONARY_V2. A new dictionary needs a new
+    // format, since old blobs can only be inflated with the dictionary they were written with.
+    private static final byte FORMAT_DEFLATE_V1 = 1;
+    private static final byte FORMAT_DEFLATE_V2 = 2;
+
+    // Deflate finds matches closer to the end of the dictionary with shorter codes, so the
+    // most common words come last
+    private static final byte[] DICTIONARY_V1 = (
+            "because between through during without against another however important "
+            + "something nothing everything remember tomorrow yesterday meeting project "
+            + "question answer problem change number people little always should would "
+            + "could which their there these those other about after again where while "
+            + "before first still under never every since until think thing today need "
+            + "call email phone list todo done idea note notes when what will with have "
+            + "this that from they were been more some your then than them into only "
+            + "also just like make know time year good over back well most very even "
+            + "much here there's it's don't I'm can't doesn't isn't "
+            + "- [ ] - [x] * 1. 2. 3. http://www. https://www. .com "
+            + "The The the and for are but not you all any can had her was one our out "
+            + "day get has him his how man new now old see two way who boy did its let "
+            + "put say she too use of to in is it on be as at by or an if so no up we my "
+            + "the and of to a in is that for it with as on was be at this ").getBytes(
+            StandardCharsets.UTF_8);
+
+    // DICTIONARY_V1 without its repeated words, which only took up room in the window. Each
+    // word is kept where it was last, nearest the end.
+    private static final byte[] DICTIONARY_V2 = (
+            "because between through during without against another however important "
+            + "something nothing everything remember tomorrow yesterday meeting project "
+            + "question answer problem change number people little always should would "
+            + "could which their these those other about after again where while "
+            + "before first still under never every since until think thing today need "
+            + "call email phone list todo done idea note notes when what will have "
+            + "from they were been more some your then than them into only "
+            + "also just like make know time year good over back well most very even "
+            + "much here there's it's don't I'm can't doesn't isn't "
+            + "- [ ] - [x] * 1. 2. 3. http://www. https://www. .com "
+            + "The are but not you all any can had her one our out "
+            + "day get has him his how man new now old see two way who boy did its let "
+            + "put say she too use by or an if so no up we my "
+            + "the and of to a in is that for it with as on was be at this ").getBytes(
+            StandardCharsets.UTF_8);
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private NoteCompressor() {
+    }
+
+    /**
+     * Returns the text compressed, or null if compressing it does not make it smaller.
+     */
+    static byte[] compress(String text) {
+        byte[] input = text.getBytes(StandardCharsets.UTF_8);
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setDictionary(DICTIONARY_V2);
+            deflater.setInput(input);
+            deflater.finish();
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 2 + 16);
+            output.write(FORMAT_DEFLATE_V2);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                output.write(buffer, 0, deflater.deflate(buffer));
+                if (output.size() >= input.length) {
+                    return null;
+                }
+            }
+            return output.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Returns the text of a blob written by {@link #compress(String)}.
+     *
+     * @throws SQLException if the blob is not a compressed text
+     */
+    static String decompress(byte[] compressed) {
+        byte[] dictionary;
+        if (compressed.length > 0 && compressed[0] == FORMAT_DEFLATE_V2) {
+            dictionary = DICTIONARY_V2;
+        } else if (compressed.length > 0 && compressed[0] == FORMAT_DEFLATE_V1) {
+            dictionary = DICTIONARY_V1;
+        } else {
+            throw new SQLException("Unknown compressed text format");
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed, 1, compressed.length - 1);
+            ByteArrayOutputStream output = new ByteArrayOutputStream(compressed.length * 4);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(dictionary);
+                    } else if (inflater.needsInput()) {
+                        throw new SQLException("Truncated compressed text");
+                    }
+                }
+                output.write(buffer, 0, inflated);
+            }
+            return new String(output.toByteArray(), StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new SQLException("Corrupt compressed text", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
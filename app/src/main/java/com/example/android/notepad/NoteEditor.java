@@ -2,14 +2,17 @@ package com.example.android.notepad;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.app.LoaderManager;
 import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.ComponentName;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.CursorLoader;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.content.Loader;
 import android.content.res.Resources;
 import android.database.Cursor;
 import android.graphics.Canvas;
@@ -17,7 +20,11 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.Handler;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.AttributeSet;
 import android.util.Log;
 import android.view.Menu;
@@ -30,7 +37,7 @@ import android.widget.ArrayAdapter;
 import android.widget.EditText;
 import android.widget.GridView;
 
-public class NoteEditor extends Activity {
+public class NoteEditor extends Activity implements LoaderManager.LoaderCallbacks<Cursor> {
     // For logging and debugging purposes
     private static final String TAG = "NoteEditor";
     String[] PROJECTION =
@@ -41,6 +48,15 @@ public class NoteEditor extends Activity {
                     NotePad.Notes.COLUMN_NAME_BACKGROUND_COLOR // 新增的背景颜色列
             };
 
+    // What the loader reads once the text is shown: the note without its text, which is
+    // never read again and would otherwise be copied on every reload
+    private static final String[] RELOAD_PROJECTION =
+            new String[] {
+                    NotePad.Notes._ID,
+                    NotePad.Notes.COLUMN_NAME_TITLE,
+                    NotePad.Notes.COLUMN_NAME_BACKGROUND_COLOR
+            };
+
     // A label for the saved state of the activity
     private static final String ORIGINAL_CONTENT = "origContent";
 
@@ -49,6 +65,12 @@ public class NoteEditor extends Activity {
     private static final int STATE_EDIT = 0;
     private static final int STATE_INSERT = 1;
 
+    // The id of the loader that reads the note
+    private static final int NOTE_LOADER = 0;
+
+    // While the user types, the note is saved at most this often
+    private static final long AUTOSAVE_INTERVAL_MILLIS = 5000;
+
     // Global mutable variables
     private int mState;
     private Uri mUri;
@@ -56,6 +78,65 @@ public class NoteEditor extends Activity {
     private EditText mText;
     private String mOriginalContent;
 
+    // Whether the note text has been put into the editor. Later loads only refresh the title
+    // and color, so they never overwrite what the user is typing.
+    private boolean mNoteShown;
+
+    // Whether the user has edited the text since it was last saved or loaded. Kept up to date
+    // by mAutosaveWatcher, so checking for unsaved changes never reads the whole note.
+    private boolean mDirty;
+
+    // The text as last saved whole or loaded, to recognize edits that were undone by hand.
+    // Null once the note has been saved with patches.
+    private String mSavedText;
+
+    // The edits since the last save, which are saved as patches rather than a whole note
+    private final NotePatchRecorder mPatchRecorder = new NotePatchRecorder();
+
+    // Writes the note in the background, see NoteSaveQueue
+    private NoteSaveQueue mSaveQueue;
+
+    private final Handler mHandler = new Handler();
+
+    // Saves the note while the user is typing. Scheduled by the first edit after a save, so
+    // a user who types continuously gets a save every AUTOSAVE_INTERVAL_MILLIS.
+    private boolean mAutosaveScheduled;
+    private final Runnable mAutosaveRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mAutosaveScheduled = false;
+            saveIfDirty(null);
+        }
+    };
+    private final TextWatcher mAutosaveWatcher = new TextWatcher() {
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            if (mNoteShown) {
+                mPatchRecorder.beforeTextChanged(s, start, count);
+            }
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+            if (mNoteShown) {
+                mPatchRecorder.onTextChanged(s, start, count);
+            }
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+            // Ignores the text being put into the editor, which is not an edit
+            if (!mNoteShown) {
+                return;
+            }
+            mDirty = true;
+            if (!mAutosaveScheduled) {
+                mAutosaveScheduled = true;
+                mHandler.postDelayed(mAutosaveRunnable, AUTOSAVE_INTERVAL_MILLIS);
+            }
+        }
+    };
+
     /**
      * Defines a custom EditText View that draws lines between each line of text that is displayed.
      */
@@ -118,58 +199,81 @@ public class NoteEditor extends Activity {
             return;
         }
 
-        mCursor = managedQuery(
-                mUri, PROJECTION, null, null, null);
-
-        if (Intent.ACTION_PASTE.equals(action)) {
-            performPaste();
-            mState = STATE_EDIT;
-        }
-
         setContentView(R.layout.note_editor);
 
         mText = (EditText) findViewById(R.id.note);
+        mText.addTextChangedListener(mAutosaveWatcher);
+        mSaveQueue = NoteSaveQueue.getInstance(this);
 
         if (savedInstanceState != null) {
             mOriginalContent = savedInstanceState.getString(ORIGINAL_CONTENT);
         }
+
+        // The note is read in the background. A paste writes the note first, so that the
+        // first load already sees the pasted text.
+        if (Intent.ACTION_PASTE.equals(action)) {
+            performPaste();
+        } else {
+            getLoaderManager().initLoader(NOTE_LOADER, null, this);
+        }
     }
 
     @Override
-    protected void onResume() {
-        super.onResume();
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        return new CursorLoader(this, mUri, PROJECTION, null, null, null);
+    }
 
-        if (mCursor != null) {
-            mCursor.requery();
-            mCursor.moveToFirst();
-
-            if (mState == STATE_EDIT) {
-                int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
-                String title = mCursor.getString(colTitleIndex);
-                Resources res = getResources();
-                String text = String.format(res.getString(R.string.title_edit), title);
-                setTitle(text);
-            } else if (mState == STATE_INSERT) {
-                setTitle(getText(R.string.title_create));
-            }
+    @Override
+    public void onLoadFinished(Loader<Cursor> loader, Cursor cursor) {
+        if (cursor != null && cursor.moveToFirst()) {
+            mCursor = cursor;
+            showNote();
+            ((CursorLoader) loader).setProjection(RELOAD_PROJECTION);
+        } else {
+            mCursor = null;
+            setTitle(getText(R.string.error_title));
+            mText.setText(getText(R.string.error_message));
+        }
+    }
+
+    @Override
+    public void onLoaderReset(Loader<Cursor> loader) {
+        mCursor = null;
+    }
+
+    /**
+     * Shows the note at the current position of mCursor. The loader reloads the note whenever
+     * it changes, including after this editor saves it, so the text is only set the first time.
+     */
+    private void showNote() {
+        if (mState == STATE_EDIT) {
+            int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
+            String title = mCursor.getString(colTitleIndex);
+            Resources res = getResources();
+            String text = String.format(res.getString(R.string.title_edit), title);
+            setTitle(text);
+        } else if (mState == STATE_INSERT) {
+            setTitle(getText(R.string.title_create));
+        }
 
+        // The text of a large note is costly to copy, so it is only read the first time
+        if (!mNoteShown) {
             int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
             String note = mCursor.getString(colNoteIndex);
             mText.setTextKeepState(note);
-
-            // Get the background color from the database
-            int colBgColorIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_BACKGROUND_COLOR);
-            String bgColor = mCursor.getString(colBgColorIndex);
-            if (bgColor != null) {
-                updateBackgroundColor(bgColor);
-            }
-
+            mNoteShown = true;
+            mSavedText = note;
+            mPatchRecorder.reset(note);
             if (mOriginalContent == null) {
                 mOriginalContent = note;
             }
-        } else {
-            setTitle(getText(R.string.error_title));
-            mText.setText(getText(R.string.error_message));
+        }
+
+        // Get the background color from the database
+        int colBgColorIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_BACKGROUND_COLOR);
+        String bgColor = mCursor.getString(colBgColorIndex);
+        if (bgColor != null) {
+            updateBackgroundColor(bgColor);
         }
     }
 
@@ -182,22 +286,62 @@ public class NoteEditor extends Activity {
     protected void onPause() {
         super.onPause();
 
-        if (mCursor != null) {
-            String text = mText.getText().toString();
-            int length = text.length();
+        mHandler.removeCallbacks(mAutosaveRunnable);
+        mAutosaveScheduled = false;
 
-            if (isFinishing() && (length == 0)) {
+        if (mCursor != null) {
+            if (isFinishing() && mText.length() == 0) {
                 setResult(RESULT_CANCELED);
                 deleteNote();
             } else if (mState == STATE_EDIT) {
-                updateNote(text, null);
+                saveIfDirty(null);
             } else if (mState == STATE_INSERT) {
-                updateNote(text, text);
-                mState = STATE_EDIT;
+                // A new note is titled with its text, if it has been given any
+                saveIfDirty(mText.getText().toString());
             }
         }
     }
 
+    /**
+     * Queues a save of the text if the user has edited it since it was last saved, or if the
+     * last save failed. Pausing, autosaving and the save menu all come here, so an unchanged
+     * note is never rewritten: its modification date stays put and the notes list is not
+     * refreshed for nothing.
+     *
+     * @param title the title for a new note, or null to take it from the text
+     */
+    private void saveIfDirty(String title) {
+        if (mCursor == null) {
+            return;
+        }
+
+        // If an earlier save failed, the edits it carried are lost and the text is saved whole
+        boolean saveWhole = mSaveQueue.needsWholeSave(mUri);
+        if (!mDirty && !saveWhole) {
+            return;
+        }
+        mDirty = false;
+
+        // Sends only the edits, which is much less than the whole text of a large note. A new
+        // note still needs its title, so its first save is made whole.
+        if (mState == STATE_EDIT && !saveWhole && !mPatchRecorder.isOverflowed()) {
+            mSaveQueue.patch(mUri, mPatchRecorder.takePatches());
+            mSavedText = null;
+            return;
+        }
+
+        String text = mText.getText().toString();
+        mPatchRecorder.reset(text);
+        if (!saveWhole && text.equals(mSavedText)) {
+            // Edited, then changed back
+            return;
+        }
+
+        updateNote(text, title);
+        mSavedText = text;
+        mState = STATE_EDIT;
+    }
+
     @Override
     public boolean onCreateOptionsMenu(Menu menu) {
         MenuInflater inflater = getMenuInflater();
@@ -215,14 +359,17 @@ public class NoteEditor extends Activity {
 
     @Override
     public boolean onPrepareOptionsMenu(Menu menu) {
-        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-        String savedNote = mCursor.getString(colNoteIndex);
-        String currentNote = mText.getText().toString();
-        if (savedNote.equals(currentNote)) {
+        if (mCursor == null) {
+            // The note has not loaded yet, so there is nothing to revert
             menu.findItem(R.id.menu_revert).setVisible(false);
-        } else {
-            menu.findItem(R.id.menu_revert).setVisible(true);
+            return super.onPrepareOptionsMenu(menu);
         }
+
+        // Reverting is offered while the text differs from the note as it was opened, even
+        // once the edits have been saved. Comparing with the editor's own text avoids a copy.
+        boolean edited = mOriginalContent != null
+                && !mOriginalContent.contentEquals(mText.getText());
+        menu.findItem(R.id.menu_revert).setVisible(edited);
         return super.onPrepareOptionsMenu(menu);
     }
 
@@ -230,8 +377,7 @@ public class NoteEditor extends Activity {
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
             case R.id.menu_save:
-                String text = mText.getText().toString();
-                updateNote(text, null);
+                saveIfDirty(null);
                 finish();
                 break;
             case R.id.menu_delete:
@@ -249,40 +395,79 @@ public class NoteEditor extends Activity {
         return super.onOptionsItemSelected(item);
     }
 
+    /**
+     * Reads the clipboard into the new note, then starts loading the note. Reading a clip
+     * can mean querying a provider, so it happens in the background.
+     */
     private final void performPaste() {
         ClipboardManager clipboard = (ClipboardManager) getSystemService(Context.CLIPBOARD_SERVICE);
-        ContentResolver cr = getContentResolver();
-        ClipData clip = clipboard.getPrimaryClip();
-        if (clip != null) {
-            String text = null;
-            String title = null;
-            ClipData.Item item = clip.getItemAt(0);
-            Uri uri = item.getUri();
-
-            if (uri != null && NotePad.Notes.CONTENT_ITEM_TYPE.equals(cr.getType(uri))) {
-                Cursor orig = cr.query(uri, PROJECTION, null, null, null);
-                if (orig != null) {
-                    if (orig.moveToFirst()) {
-                        int colNoteIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
-                        int colTitleIndex = mCursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
-                        text = orig.getString(colNoteIndex);
-                        title = orig.getString(colTitleIndex);
+        final ContentResolver cr = getContentResolver();
+        final ClipData clip = clipboard.getPrimaryClip();
+        if (clip == null) {
+            mState = STATE_EDIT;
+            getLoaderManager().initLoader(NOTE_LOADER, null, this);
+            return;
+        }
+
+        final Uri noteUri = mUri;
+        new AsyncTask<Void, Void, Void>() {
+            @Override
+            protected Void doInBackground(Void... params) {
+                String text = null;
+                String title = null;
+                ClipData.Item item = clip.getItemAt(0);
+                Uri uri = item.getUri();
+
+                if (uri != null && NotePad.Notes.CONTENT_ITEM_TYPE.equals(cr.getType(uri))) {
+                    Cursor orig = cr.query(uri, PROJECTION, null, null, null);
+                    if (orig != null) {
+                        if (orig.moveToFirst()) {
+                            int colNoteIndex = orig.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE);
+                            int colTitleIndex = orig.getColumnIndex(NotePad.Notes.COLUMN_NAME_TITLE);
+                            text = orig.getString(colNoteIndex);
+                            title = orig.getString(colTitleIndex);
+                        }
+                        orig.close();
                     }
-                    orig.close();
                 }
+                if (text == null) {
+                    text = item.coerceToText(NoteEditor.this).toString();
+                }
+
+                // Writes here rather than through the save queue, so the note is complete
+                // before the loader first reads it
+                cr.update(noteUri, noteValues(text, title, true), null, null);
+                return null;
             }
-            if (text == null) {
-                text = item.coerceToText(this).toString();
+
+            @Override
+            protected void onPostExecute(Void result) {
+                if (isDestroyed()) {
+                    return;
+                }
+                mState = STATE_EDIT;
+                getLoaderManager().initLoader(NOTE_LOADER, null, NoteEditor.this);
             }
-            updateNote(text, title);
-        }
+        }.execute();
     }
 
+    /**
+     * Queues a save of the note. The write happens on the save queue's thread.
+     */
     private final void updateNote(String text, String title) {
+        mSaveQueue.save(mUri, noteValues(text, title, mState == STATE_INSERT));
+    }
+
+    /**
+     * Returns the values that save the given text. The first save of a new note also gives
+     * it a title, taken from the start of the text if none is given.
+     */
+    private static ContentValues noteValues(String text, String title, boolean newNote) {
         ContentValues values = new ContentValues();
         values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, System.currentTimeMillis());
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
 
-        if (mState == STATE_INSERT) {
+        if (newNote) {
             if (title == null) {
                 int length = text.length();
                 title = text.substring(0, Math.min(30, length));
@@ -294,14 +479,8 @@ public class NoteEditor extends Activity {
                 }
             }
             values.put(NotePad.Notes.COLUMN_NAME_TITLE, title);
-            values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
-            values.put(NotePad.Notes.COLUMN_NAME_BACKGROUND_COLOR, "#FFFFFF"); // 默认白色背景
-
-            mUri = getContentResolver().insert(NotePad.Notes.CONTENT_URI, values);
-        } else {
-            values.put(NotePad.Notes.COLUMN_NAME_NOTE, text);
-            getContentResolver().update(mUri, values, null, null);
         }
+        return values;
     }
 
     private final void cancelNote() {
@@ -310,7 +489,7 @@ public class NoteEditor extends Activity {
 
     private final void deleteNote() {
         if (mUri != null) {
-            getContentResolver().delete(mUri, null, null);
+            mSaveQueue.delete(mUri);
         }
     }
 
@@ -319,15 +498,8 @@ public class NoteEditor extends Activity {
     }
     private void showColorPickerDialog() {
         // 定义颜色名称数组和对应的 Hex 值
-        final String[] colorNames = {
-                "Red", "Green", "Blue", "Yellow", "Purple", "Orange",
-                "Pink", "Cyan", "Magenta", "Brown", "Grey", "Teal"
-        };
-
-        final String[] colorHexValues = {
-                "#FF0000", "#00FF00", "#0000FF", "#FFFF00", "#800080", "#FFA500", // 红、绿、蓝、黄、紫、橙
-                "#FFC0CB", "#00FFFF", "#FF00FF", "#A52A2A", "#808080", "#008080"  // 粉红、青、品红、棕、灰、青绿色
-        };
+        final String[] colorNames = NoteColors.NAMES;
+        final String[] colorHexValues = NoteColors.VALUES;
 
         // 创建一个GridView的适配器，显示每个颜色块
         GridView gridView = new GridView(this);
@@ -372,7 +544,7 @@ public class NoteEditor extends Activity {
                 // 将背景颜色更新到数据库
                 ContentValues values = new ContentValues();
                 values.put(NotePad.Notes.COLUMN_NAME_BACKGROUND_COLOR, newColorHex);
-                getContentResolver().update(mUri, values, null, null);
+                mSaveQueue.save(mUri, values);
             }
         });
 
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentProvider.PipeDataWriter;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes every note to a pipe, as newline-delimited JSON or as a zip of text files, see
+ * {@link NotePad.Notes#EXPORT_TYPE_NDJSON} and {@link NotePad.Notes#EXPORT_TYPE_ZIP}.
+ *
+ * <p>Notes are read in pages of {@link #PAGE_SIZE}, in _id order, and written as they are
+ * read, so memory use does not depend on the number of notes. The chunks of large notes are
+ * streamed one at a time. Each page is a separate query, so a note changed during the export
+ * appears as it was when its page was read.
+ */
+class NoteExporter implements PipeDataWriter<SQLiteDatabase> {
+
+    // For logging and debugging
+    private static final String TAG = "NoteExporter";
+
+    /**
+     * Starts each file of the zip export, followed by the note's title and a blank line, so
+     * the import can tell an exported note from any other text file
+     */
+    static final String ZIP_TITLE_HEADER = "Title: ";
+
+    private static final int PAGE_SIZE = 256;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String[] PROJECTION = new String[] {
+            NotePad.Notes._ID,
+            NotePad.Notes.COLUMN_NAME_TITLE,
+            NotePad.Notes.COLUMN_NAME_NOTE,
+            NotePad.Notes.COLUMN_NAME_CREATE_DATE,
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
+            NotePad.Notes.COLUMN_NAME_BACKGROUND_COLOR,
+            NoteChunks.HAS_CHUNKS_EXPRESSION,
+    };
+    private static final int ID_INDEX = 0;
+    private static final int TITLE_INDEX = 1;
+    private static final int NOTE_INDEX = 2;
+    private static final int CREATE_DATE_INDEX = 3;
+    private static final int MODIFICATION_DATE_INDEX = 4;
+    private static final int BACKGROUND_COLOR_INDEX = 5;
+    private static final int HAS_CHUNKS_INDEX = 6;
+
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+            Bundle opts, SQLiteDatabase db) {
+        OutputStream out = new BufferedOutputStream(
+                new FileOutputStream(output.getFileDescriptor()), BUFFER_SIZE);
+        try {
+            if (NotePad.Notes.EXPORT_TYPE_ZIP.equals(mimeType)) {
+                writeZip(db, out);
+            } else {
+                writeNdjson(db, out);
+            }
+        } catch (IOException e) {
+            // Usually the reader closed the pipe before the end
+            Log.w(TAG, "Export of " + uri + " stopped", e);
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static void writeNdjson(SQLiteDatabase db, OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        Writer escaping = new JsonEscapingWriter(writer);
+        long lastId = Long.MIN_VALUE;
+        Cursor c;
+        while ((c = queryPage(db, lastId)) != null) {
+            try {
+                while (c.moveToNext()) {
+                    lastId = c.getLong(ID_INDEX);
+                    writer.write("{\"" + NotePad.Notes._ID + "\":" + lastId);
+                    writeJsonField(writer, escaping, NotePad.Notes.COLUMN_NAME_TITLE,
+                            c.getString(TITLE_INDEX));
+
+                    writer.write(",\"" + NotePad.Notes.COLUMN_NAME_NOTE + "\":");
+                    String head = c.getString(NOTE_INDEX);
+                    if (head == null) {
+                        writer.write("null");
+                    } else {
+                        writer.write('"');
+                        escaping.write(head);
+                        if (c.getInt(HAS_CHUNKS_INDEX) != 0) {
+                            NoteChunks.writeTo(db, lastId, escaping);
+                        }
+                        writer.write('"');
+                    }
+
+                    writer.write(",\"" + NotePad.Notes.COLUMN_NAME_CREATE_DATE + "\":"
+                            + c.getLong(CREATE_DATE_INDEX));
+                    writer.write(",\"" + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + "\":"
+                            + c.getLong(MODIFICATION_DATE_INDEX));
+                    writeJsonField(writer, escaping, NotePad.Notes.COLUMN_NAME_BACKGROUND_COLOR,
+                            c.getString(BACKGROUND_COLOR_INDEX));
+                    writer.write("}\n");
+                }
+            } finally {
+                c.close();
+            }
+        }
+        writer.flush();
+    }
+
+    private static void writeZip(SQLiteDatabase db, OutputStream out) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(out);
+
+        // Flushed after each entry but never closed, since that would close the zip
+        Writer writer = new OutputStreamWriter(zip, StandardCharsets.UTF_8);
+        long lastId = Long.MIN_VALUE;
+        Cursor c;
+        while ((c = queryPage(db, lastId)) != null) {
+            try {
+                while (c.moveToNext()) {
+                    lastId = c.getLong(ID_INDEX);
+                    ZipEntry entry = new ZipEntry("note-" + lastId + ".txt");
+                    entry.setTime(c.getLong(MODIFICATION_DATE_INDEX));
+                    zip.putNextEntry(entry);
+
+                    // The layout of the text/plain stream of a single note, after a header
+                    String title = c.getString(TITLE_INDEX);
+                    writer.write(ZIP_TITLE_HEADER);
+                    writer.write(title != null ? title : "");
+                    writer.write("\n\n");
+                    String head = c.getString(NOTE_INDEX);
+                    if (head != null) {
+                        writer.write(head);
+                        if (c.getInt(HAS_CHUNKS_INDEX) != 0) {
+                            NoteChunks.writeTo(db, lastId, writer);
+                        }
+                    }
+                    writer.write('\n');
+                    writer.flush();
+                    zip.closeEntry();
+                }
+            } finally {
+                c.close();
+            }
+        }
+        zip.finish();
+    }
+
+    /**
+     * Returns the page of notes after the given id, or null if there are none left.
+     */
+    private static Cursor queryPage(SQLiteDatabase db, long afterId) {
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, PROJECTION,
+                NotePad.Notes._ID + " > ?", new String[] { Long.toString(afterId) },
+                null, null, NotePad.Notes._ID, Integer.toString(PAGE_SIZE));
+        if (c.getCount() == 0) {
+            c.close();
+            return null;
+        }
+        return c;
+    }
+
+    private static void writeJsonField(Writer writer, Writer escaping, String name, String value)
+            throws IOException {
+        writer.write(",\"" + name + "\":");
+        if (value == null) {
+            writer.write("null");
+            return;
+        }
+        writer.write('"');
+        escaping.write(value);
+        writer.write('"');
+    }
+
+    /**
+     * Escapes everything written through it for use inside a JSON string, so that text can be
+     * written in pieces without being held whole.
+     */
+    private static class JsonEscapingWriter extends FilterWriter {
+
+        private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+        JsonEscapingWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    // Line and paragraph separators end lines in JavaScript, so are escaped too
+                    if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+                        out.write("\\u");
+                        out.write(HEX_DIGITS[(c >> 12) & 0xf]);
+                        out.write(HEX_DIGITS[(c >> 8) & 0xf]);
+                        out.write(HEX_DIGITS[(c >> 4) & 0xf]);
+                        out.write(HEX_DIGITS[c & 0xf]);
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            // Copies runs that need no escaping in one call
+            int run = off;
+            int end = off + len;
+            for (int i = off; i < end; i++) {
+                char c = cbuf[i];
+                if (c < 0x20 || c == '"' || c == '\\' || c == '\u2028' || c == '\u2029') {
+                    out.write(cbuf, run, i - run);
+                    write(c);
+                    run = i + 1;
+                }
+            }
+            out.write(cbuf, run, end - run);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            int run = off;
+            int end = off + len;
+            for (int i = off; i < end; i++) {
+                char c = str.charAt(i);
+                if (c < 0x20 || c == '"' || c == '\\' || c == '\u2028' || c == '\u2029') {
+                    out.write(str, run, i - run);
+                    write(c);
+                    run = i + 1;
+                }
+            }
+            out.write(str, run, end - run);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.os.Bundle;
+import android.os.ResultReceiver;
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads notes from a stream in one of the formats written by {@link NoteExporter}, and hands
+ * them to a {@link BatchWriter} in batches.
+ *
+ * <p>The stream is parsed as it is read, and only the batch being filled is held in memory,
+ * so the number of notes in the stream does not matter. A batch ends after
+ * {@link #BATCH_ROWS} notes, or sooner if its notes hold more than {@link #BATCH_CHARS}
+ * characters between them.
+ */
+class NoteImporter {
+
+    /**
+     * Writes a batch of notes, usually in a single transaction.
+     */
+    interface BatchWriter {
+        void writeBatch(ArrayList<ContentValues> batch);
+    }
+
+    private static final int BATCH_ROWS = 2000;
+
+    private static final int BATCH_CHARS = 8 * 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final BatchWriter mWriter;
+    private final ResultReceiver mProgress;
+
+    private final ArrayList<ContentValues> mBatch = new ArrayList<ContentValues>(BATCH_ROWS);
+    private int mBatchChars;
+    private long mRows;
+    private long mStartTime;
+
+    /**
+     * @param progress sent a Bundle with the number of notes imported and the import rate
+     *                 after each batch, or null
+     */
+    NoteImporter(BatchWriter writer, ResultReceiver progress) {
+        mWriter = writer;
+        mProgress = progress;
+    }
+
+    /**
+     * Imports newline-delimited JSON, one note object per line. Fields other than the note's
+     * columns, including its _id, are ignored.
+     *
+     * @return the number of notes imported
+     * @throws IllegalArgumentException if a line is not a JSON object
+     */
+    long importNdjson(InputStream in) throws IOException {
+        start();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(in, StandardCharsets.UTF_8), BUFFER_SIZE);
+        String line;
+        int lineNumber = 0;
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+
+            ContentValues values = new ContentValues();
+            try {
+                JSONObject json = new JSONObject(line);
+                putString(values, json, NotePad.Notes.COLUMN_NAME_TITLE);
+                putString(values, json, NotePad.Notes.COLUMN_NAME_NOTE);
+                putLong(values, json, NotePad.Notes.COLUMN_NAME_CREATE_DATE);
+                putLong(values, json, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+                putString(values, json, NotePad.Notes.COLUMN_NAME_BACKGROUND_COLOR);
+            } catch (JSONException e) {
+                throw new IllegalArgumentException("Line " + lineNumber + ": " + e.getMessage());
+            }
+            add(values);
+        }
+        finish();
+        return mRows;
+    }
+
+    /**
+     * Imports a zip of text files. A file that starts with the export's title header, a blank
+     * line and the note text gives that title and text; any other file is taken whole as the
+     * note text, titled with the file's name, so no text file loses any of its text. Notes are
+     * dated with their file's time.
+     *
+     * @return the number of notes imported
+     */
+    long importZip(InputStream in) throws IOException {
+        start();
+        ZipInputStream zip = new ZipInputStream(in);
+        ZipEntry entry;
+        char[] buffer = new char[BUFFER_SIZE];
+        while ((entry = zip.getNextEntry()) != null) {
+            if (entry.isDirectory()) {
+                continue;
+            }
+
+            // Not closed, since that would close the zip
+            Reader reader = new InputStreamReader(zip, StandardCharsets.UTF_8);
+            StringBuilder text = new StringBuilder();
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, read);
+            }
+
+            // An exported note is the header and title on the first line, then a blank line
+            ContentValues values = new ContentValues();
+            String header = NoteExporter.ZIP_TITLE_HEADER;
+            int separator = text.indexOf("\n\n");
+            if (separator >= 0 && text.indexOf("\n") == separator
+                    && text.lastIndexOf(header, 0) == 0) {
+                int end = text.length();
+                if (end > separator + 2 && text.charAt(end - 1) == '\n') {
+                    end--;
+                }
+                values.put(NotePad.Notes.COLUMN_NAME_TITLE,
+                        text.substring(header.length(), separator));
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.substring(separator + 2, end));
+            } else {
+                values.put(NotePad.Notes.COLUMN_NAME_TITLE, titleOf(entry.getName()));
+                values.put(NotePad.Notes.COLUMN_NAME_NOTE, text.toString());
+            }
+
+            long time = entry.getTime();
+            if (time != -1) {
+                values.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE, time);
+                values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, time);
+            }
+            add(values);
+            zip.closeEntry();
+        }
+        finish();
+        return mRows;
+    }
+
+    /**
+     * Returns the number of notes written so far, which is also the number committed if the
+     * import stops part way.
+     */
+    long getRows() {
+        return mRows;
+    }
+
+    /**
+     * Returns the number of notes written so far and the rate they were written at.
+     */
+    Bundle getResult() {
+        long elapsed = Math.max(SystemClock.elapsedRealtime() - mStartTime, 1);
+        Bundle result = new Bundle();
+        result.putLong(NotePad.Notes.IMPORT_RESULT_ROWS, mRows);
+        result.putDouble(NotePad.Notes.IMPORT_RESULT_ROWS_PER_SECOND, mRows * 1000.0 / elapsed);
+        return result;
+    }
+
+    private void start() {
+        mBatch.clear();
+        mBatchChars = 0;
+        mRows = 0;
+        mStartTime = SystemClock.elapsedRealtime();
+    }
+
+    private void add(ContentValues values) {
+        mBatch.add(values);
+        mBatchChars += length(values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE))
+                + length(values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE));
+        if (mBatch.size() >= BATCH_ROWS || mBatchChars >= BATCH_CHARS) {
+            writeBatch();
+        }
+    }
+
+    private void finish() {
+        if (!mBatch.isEmpty()) {
+            writeBatch();
+        }
+    }
+
+    private void writeBatch() {
+        mWriter.writeBatch(mBatch);
+        mRows += mBatch.size();
+        mBatch.clear();
+        mBatchChars = 0;
+        if (mProgress != null) {
+            mProgress.send(0, getResult());
+        }
+    }
+
+    private static void putString(ContentValues values, JSONObject json, String name)
+            throws JSONException {
+        if (json.has(name) && !json.isNull(name)) {
+            values.put(name, json.getString(name));
+        }
+    }
+
+    private static void putLong(ContentValues values, JSONObject json, String name)
+            throws JSONException {
+        if (json.has(name) && !json.isNull(name)) {
+            values.put(name, json.getLong(name));
+        }
+    }
+
+    /**
+     * Returns a file's name without its directory or extension.
+     */
+    private static String titleOf(String path) {
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    private static int length(String s) {
+        return s != null ? s.length() : 0;
+    }
+}
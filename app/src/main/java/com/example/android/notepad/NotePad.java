@@ -78,6 +78,11 @@ public final class NotePad {
          */
         private static final String PATH_LIVE_FOLDER = "/live_folders/notes";
 
+        /**
+         * Path part for the full-text search URI
+         */
+        private static final String PATH_SEARCH = "/notes/search";
+
         /**
          * The content:// style URL for this table
          */
@@ -103,6 +108,127 @@ public final class NotePad {
         public static final Uri LIVE_FOLDER_URI
                 = Uri.parse(SCHEME + AUTHORITY + PATH_LIVE_FOLDER);
 
+        /**
+         * The content:// style URL for full-text searches over the notes table. The search
+         * terms are passed in the {@link #SEARCH_QUERY_PARAMETER} query parameter, e.g.
+         * <code>content://com.google.provider.NotePad/notes/search?q=meeting</code>.
+         * Searches ignore case and accents in every script, and treat compatibility forms of
+         * a character, such as full-width letters, as the character itself. In Chinese and
+         * Japanese text every character is a word, so a search matches its characters in
+         * order anywhere in the text.
+         */
+        public static final Uri SEARCH_URI = Uri.parse(SCHEME + AUTHORITY + PATH_SEARCH);
+
+        /**
+         * Name of the query parameter on {@link #SEARCH_URI} that holds the search terms
+         */
+        public static final String SEARCH_QUERY_PARAMETER = "q";
+
+        /**
+         * Name of the query parameter on {@link #SEARCH_URI} that selects how the search is
+         * matched: {@link #SEARCH_MODE_WORDS}, the default, {@link #SEARCH_MODE_SUBSTRING} or
+         * {@link #SEARCH_MODE_FUZZY}.
+         */
+        public static final String SEARCH_MODE_PARAMETER = "mode";
+
+        /**
+         * Search mode that matches notes containing words that start with each search term.
+         * The search can also use:
+         * <ul>
+         * <li><code>"a phrase"</code>, the words next to each other and in order</li>
+         * <li><code>a OR b</code>, either; <code>a AND b</code> is the same as <code>a b</code>
+         * </li>
+         * <li><code>NOT a</code> or <code>-a</code>, notes without the word</li>
+         * <li>parentheses to group, as in <code>(a OR b) c</code>; NOT binds tightest, then AND,
+         * then OR</li>
+         * <li><code>title:word</code> or <code>title:"a phrase"</code>, in the title only</li>
+         * <li><code>color:red</code> or <code>color:#FFE0E0</code>, notes with that
+         * {@link #COLUMN_NAME_BACKGROUND_COLOR}</li>
+         * <li><code>before:2024-03-01</code> and <code>after:2024-03-01</code>, notes last
+         * modified before that day, or on or after it, in local time</li>
+         * </ul>
+         * Operators are only recognized in upper case. Input that does not parse is never an
+         * error: unclosed quotes and parentheses are closed at the end, stray operators are
+         * ignored, and a field that does not hold a color or a date is searched as words. Only
+         * the words and phrases that every result must contain are ranked, so the results of
+         * a search such as <code>a OR b</code> all have a {@link #COLUMN_NAME_RELEVANCE} of 0.
+         */
+        public static final String SEARCH_MODE_WORDS = "words";
+
+        /**
+         * Search mode that matches notes whose title or text contains the search as it is,
+         * anywhere, even in the middle of a word, ignoring case and accents. Useful
+         * for part numbers and other codes. As in the other modes, only the first 64K
+         * characters of a large note are searched. Results have a relevance of 0.
+         */
+        public static final String SEARCH_MODE_SUBSTRING = "substring";
+
+        /**
+         * Search mode that tolerates typos: it matches notes that share at least
+         * {@link #SIMILARITY_PARAMETER} of the three-character sequences of the search's
+         * words, and their {@link #COLUMN_NAME_RELEVANCE} is the share they have. Only
+         * available when the provider keeps its trigram index; otherwise the query throws
+         * {@link UnsupportedOperationException}.
+         */
+        public static final String SEARCH_MODE_FUZZY = "fuzzy";
+
+        /**
+         * Name of the query parameter that sets the least share of a fuzzy search's
+         * three-character sequences a note must have, greater than 0 and at most 1. The default
+         * is {@link #DEFAULT_SIMILARITY}.
+         */
+        public static final String SIMILARITY_PARAMETER = "similarity";
+
+        /**
+         * The default for {@link #SIMILARITY_PARAMETER}
+         */
+        public static final double DEFAULT_SIMILARITY = 0.4;
+
+        /**
+         * Name of the query parameter on {@link #CONTENT_URI} and {@link #SEARCH_URI} that
+         * limits the result to one page of at most this many notes. Paged queries must use
+         * {@link #DEFAULT_SORT_ORDER} or {@link #TITLE_SORT_ORDER}, or for searches
+         * {@link #RELEVANCE_SORT_ORDER}.
+         */
+        public static final String PAGE_SIZE_PARAMETER = "limit";
+
+        /**
+         * Name of the query parameter that starts a page after the last note of the previous
+         * page. The value is that note's sort key and id, separated by a comma: its
+         * modification date for {@link #DEFAULT_SORT_ORDER}, its title for
+         * {@link #TITLE_SORT_ORDER}, or its relevance for {@link #RELEVANCE_SORT_ORDER}.
+         * For example <code>notes?limit=50&amp;after=1262304000000,42</code>.
+         */
+        public static final String PAGE_AFTER_PARAMETER = "after";
+
+        /**
+         * Path segment that, appended to a note URI, gives the URI for patching that note, e.g.
+         * <code>notes/42/patch</code>. An update of a patch URI replaces part of the note text
+         * in place, as given by {@link #PATCH_OFFSET}, {@link #PATCH_LENGTH} and
+         * {@link #PATCH_TEXT}, so a small edit of a large note does not send the whole note.
+         * Several patches can be applied atomically with
+         * {@link android.content.ContentResolver#applyBatch}.
+         */
+        public static final String PATH_SEGMENT_PATCH = "patch";
+
+        /**
+         * Patch value: the offset of the replaced text in the note, in Unicode code points
+         * <P>Type: INTEGER</P>
+         */
+        public static final String PATCH_OFFSET = "patch_offset";
+
+        /**
+         * Patch value: the length of the replaced text, in Unicode code points
+         * <P>Type: INTEGER</P>
+         */
+        public static final String PATCH_LENGTH = "patch_length";
+
+        /**
+         * Patch value: the text that replaces it, which may be empty
+         * <P>Type: TEXT</P>
+         */
+        public static final String PATCH_TEXT = "patch_text";
+
         /*
          * MIME type definitions
          */
@@ -119,10 +245,71 @@ public final class NotePad {
          */
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.google.note";
 
+        /**
+         * Stream type of {@link #CONTENT_URI} for exporting every note as newline-delimited
+         * JSON: one object per note, with the note's columns as its fields. Open it with
+         * {@link android.content.ContentResolver#openTypedAssetFileDescriptor}.
+         */
+        public static final String EXPORT_TYPE_NDJSON = "application/x-ndjson";
+
+        /**
+         * Stream type of {@link #CONTENT_URI} for exporting every note as a zip file, with one
+         * text file per note: a first line of "Title: " and the title, a blank line, and the
+         * text. Importing a zip takes any file without that first line whole as the note
+         * text, titled with the file's name.
+         */
+        public static final String EXPORT_TYPE_ZIP = "application/zip";
+
+        /**
+         * Provider method that imports notes from a stream in one of the export formats,
+         * {@link #EXPORT_TYPE_NDJSON} or {@link #EXPORT_TYPE_ZIP}, given as the argument. Call it
+         * with {@link android.content.ContentResolver#call} on {@link #CONTENT_URI}, passing
+         * the stream in {@link #IMPORT_EXTRA_FILE}. The notes get new ids. The result holds
+         * {@link #IMPORT_RESULT_ROWS} and {@link #IMPORT_RESULT_ROWS_PER_SECOND}.
+         */
+        public static final String METHOD_IMPORT = "import";
+
+        /**
+         * Import extra: the {@link android.os.ParcelFileDescriptor} to read the notes from,
+         * such as the read side of a pipe. The provider closes it.
+         */
+        public static final String IMPORT_EXTRA_FILE = "file";
+
+        /**
+         * Optional import extra: a {@link android.os.ResultReceiver} that is sent a Bundle with
+         * {@link #IMPORT_RESULT_ROWS} and {@link #IMPORT_RESULT_ROWS_PER_SECOND} after each
+         * batch of notes is committed.
+         */
+        public static final String IMPORT_EXTRA_PROGRESS = "progress";
+
+        /**
+         * Import result: the number of notes imported so far
+         * <P>Type: long</P>
+         */
+        public static final String IMPORT_RESULT_ROWS = "rows";
+
+        /**
+         * Import result: the number of notes imported per second so far
+         * <P>Type: double</P>
+         */
+        public static final String IMPORT_RESULT_ROWS_PER_SECOND = "rows_per_second";
+
         /**
          * The default sort order for this table
          */
         public static final String DEFAULT_SORT_ORDER = "modified DESC";
+
+        /**
+         * Sort order by title, in the user's locale. The provider keeps an index with the same
+         * collation, so lists in this order are read from the index instead of being sorted.
+         */
+        public static final String TITLE_SORT_ORDER = "title COLLATE LOCALIZED ASC";
+
+        /**
+         * Sort order for {@link #SEARCH_URI} by {@link #COLUMN_NAME_RELEVANCE}, most relevant
+         * first. Paged queries can use it too; their page key is the relevance and the id.
+         */
+        public static final String RELEVANCE_SORT_ORDER = "relevance DESC";
         public static final String COLUMN_NAME_BACKGROUND_COLOR = "background_color"; // 新增列用于存储背景颜色
 
         /*
@@ -136,7 +323,10 @@ public final class NotePad {
         public static final String COLUMN_NAME_TITLE = "title";
 
         /**
-         * Column name of the note content
+         * Column name of the note content. A query of a single note's URI returns the whole
+         * note. Queries of the notes URI return only the first 64K characters of very large
+         * notes, and so does the search index; read such a note by its own URI, or as a
+         * text/plain stream, to get all of it.
          * <P>Type: TEXT</P>
          */
         public static final String COLUMN_NAME_NOTE = "note";
@@ -152,5 +342,43 @@ public final class NotePad {
          * <P>Type: INTEGER (long from System.curentTimeMillis())</P>
          */
         public static final String COLUMN_NAME_MODIFICATION_DATE = "modified";
+
+        /**
+         * Column name for a short preview of the note content: its first characters, with runs
+         * of whitespace collapsed to single spaces. The provider maintains this column whenever
+         * the note content is written, so lists can show a preview without reading the note.
+         * <P>Type: TEXT (read-only)</P>
+         */
+        public static final String COLUMN_NAME_SNIPPET = "snippet";
+
+        /**
+         * Column name for how well a note matches a search on {@link #SEARCH_URI}: its BM25
+         * score over the title and the note text, with a match in the title counting ten
+         * times as much as one in the text. Higher is more relevant. The score is rounded to
+         * three decimal places. A search without any terms gives every note 0.
+         * <P>Type: REAL (read-only, search results only)</P>
+         */
+        public static final String COLUMN_NAME_RELEVANCE = "relevance";
+
+        /**
+         * Column name for a short extract of a note around its matches for a search on
+         * {@link #SEARCH_URI}, from the title or the text, whichever matches best. Each match
+         * is enclosed in {@link #MATCH_START} and {@link #MATCH_END}, so the extract gives the
+         * offsets of the matches in it. The extract is of the note's original text, although
+         * the matches are found regardless of case and accents. A search without any terms
+         * gives the note's {@link #COLUMN_NAME_SNIPPET}.
+         * <P>Type: TEXT (read-only, search results only)</P>
+         */
+        public static final String COLUMN_NAME_MATCH_SNIPPET = "match_snippet";
+
+        /**
+         * Marks the start of a match in {@link #COLUMN_NAME_MATCH_SNIPPET}
+         */
+        public static final String MATCH_START = "\u0002";
+
+        /**
+         * Marks the end of a match in {@link #COLUMN_NAME_MATCH_SNIPPET}
+         */
+        public static final String MATCH_END = "\u0003";
     }
 }
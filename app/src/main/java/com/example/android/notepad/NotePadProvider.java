@@ -22,33 +22,45 @@ import com.example.android.notepad.NotePad;
 
 import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.ContentProvider.PipeDataWriter;
 import android.content.res.AssetFileDescriptor;
 import android.content.res.Resources;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.ParcelFileDescriptor;
+import android.os.ResultReceiver;
 import android.provider.LiveFolders;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Locale;
 
 /**
  * Provides access to a database of notes. Each note has a title, the note
@@ -67,7 +79,47 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     /**
      * The database version
      */
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 7;
+
+    /**
+     * Maximum length, in characters, of the snippet column
+     */
+    private static final int SNIPPET_LENGTH = 100;
+
+    /**
+     * Number of characters at the start of a note that a patch reads back to refresh the
+     * snippet. Enough for a full snippet unless the note starts with a lot of whitespace.
+     */
+    private static final int SNIPPET_SOURCE_LENGTH = 4096;
+
+    /**
+     * The full-text index over the title and note columns, kept in sync with the notes table
+     * by triggers
+     */
+    private static final String SEARCH_TABLE_NAME = "notes_fts";
+
+    /**
+     * The view the full-text index reads the text of each note through, which has the text
+     * as it is searched in the columns of {@link SearchText}
+     */
+    private static final String SEARCH_VIEW_NAME = "notes_search_text";
+
+    /**
+     * Searches that match at most this many notes are kept in the search result cache, so
+     * that typing more of the search can narrow them without the full-text index
+     */
+    private static final int SEARCH_CACHE_ROW_LIMIT = 2000;
+
+    /**
+     * The number of compiled searches kept, which covers the searches typed in a session
+     */
+    private static final int SEARCH_PLAN_CACHE_SIZE = 64;
+
+    /**
+     * Updates and deletes that change at most this many notes notify each note's URI;
+     * larger ones notify the notes URI once
+     */
+    private static final int MAX_ROW_NOTIFICATIONS = 100;
 
     /**
      * A projection map used to select columns from the database
@@ -79,6 +131,11 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
      */
     private static HashMap<String, String> sLiveFolderProjectionMap;
 
+    /**
+     * The projection map of a search without any terms, which matches every note equally
+     */
+    private static HashMap<String, String> sUnrankedSearchProjectionMap;
+
     /**
      * Standard projection for the interesting columns of a normal note.
      */
@@ -103,6 +160,12 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // The incoming URI matches the Live Folder URI pattern
     private static final int LIVE_FOLDER_NOTES = 3;
 
+    // The incoming URI matches the Notes search URI pattern
+    private static final int SEARCH = 4;
+
+    // The incoming URI matches the Note patch URI pattern
+    private static final int NOTE_PATCH = 5;
+
     /**
      * A UriMatcher instance
      */
@@ -111,6 +174,27 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     // Handle to a new DatabaseHelper.
     private DatabaseHelper mOpenHelper;
 
+    // Ids matched by recent searches, so that typing more of a search can skip the index
+    private final SearchResultCache mSearchCache = new SearchResultCache();
+
+    // Compiled searches by their text, so a repeated search is not parsed again
+    private final LruCache<String, SearchQuery> mSearchPlans =
+            new LruCache<String, SearchQuery>(SEARCH_PLAN_CACHE_SIZE);
+
+    // Run by bulkInsert() and applyBatch() just before they commit, so that tests can act
+    // while a batch is written but not yet committed
+    private volatile Runnable mBeforeBatchCommit;
+
+    // Holds back change notifications for a short window, so bursts of writes notify once
+    private ChangeNotifier mChangeNotifier;
+
+    // The URIs changed by the bulkInsert() or applyBatch() running on the current thread.
+    // They are notified when the batch commits, and dropped if it rolls back.
+    private final ThreadLocal<ArrayList<Uri>> mBatchChanges = new ThreadLocal<ArrayList<Uri>>();
+
+    // Writes the streams that export every note
+    private final NoteExporter mExporter = new NoteExporter();
+
 
     /**
      * A block that instantiates and sets static objects
@@ -134,6 +218,14 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // live folder operation
         sUriMatcher.addURI(NotePad.AUTHORITY, "live_folders/notes", LIVE_FOLDER_NOTES);
 
+        // Add a pattern that routes URIs terminated with "notes/search" to a full-text search
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/search", SEARCH);
+
+        // Add a pattern that routes URIs terminated with "notes", an integer and "patch" to a
+        // note patch operation
+        sUriMatcher.addURI(NotePad.AUTHORITY, "notes/#/" + NotePad.Notes.PATH_SEGMENT_PATCH,
+                NOTE_PATCH);
+
         /*
          * Creates and initializes a projection map that returns all columns
          */
@@ -151,6 +243,9 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         // Maps "note" to "note"
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_NOTE);
 
+        // Maps "snippet" to "snippet"
+        sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_SNIPPET, NotePad.Notes.COLUMN_NAME_SNIPPET);
+
         // Maps "created" to "created"
         sNotesProjectionMap.put(NotePad.Notes.COLUMN_NAME_CREATE_DATE,
                 NotePad.Notes.COLUMN_NAME_CREATE_DATE);
@@ -160,6 +255,13 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE,
                 NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
 
+        // A search without terms has the search columns, but nothing to rank by or highlight
+        sUnrankedSearchProjectionMap = new HashMap<String, String>(sNotesProjectionMap);
+        sUnrankedSearchProjectionMap.put(NotePad.Notes.COLUMN_NAME_RELEVANCE,
+                "0 AS " + NotePad.Notes.COLUMN_NAME_RELEVANCE);
+        sUnrankedSearchProjectionMap.put(NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET,
+                NotePad.Notes.COLUMN_NAME_SNIPPET + " AS " + NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET);
+
         /*
          * Creates an initializes a projection map for handling Live Folders
          */
@@ -178,10 +280,144 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
    static class DatabaseHelper extends SQLiteOpenHelper {
 
+       /**
+        * Number of rows an upgrade step rewrites between two progress reports
+        */
+       private static final int UPGRADE_BATCH_SIZE = 5000;
+
+       /**
+        * Receives progress reports while an existing database is upgraded. Steps that only
+        * change the schema report once; steps that rewrite rows report after every batch.
+        */
+       interface UpgradeListener {
+           void onUpgradeProgress(int toVersion, long rowsDone, long rowsTotal);
+       }
+
+       private volatile UpgradeListener mUpgradeListener;
+
+       // Whether the database uses write-ahead logging, and the log size, in pages, at which
+       // SQLite checkpoints it automatically
+       private final boolean mWriteAheadLogging;
+       private final int mAutoCheckpointPages;
+
+       // Whether new chunks of large notes are stored compressed
+       private volatile boolean mCompressChunks;
+
+       // Whether the search index is an FTS5 table rather than FTS4, read when the database
+       // is opened
+       private volatile boolean mSearchIndexFts5;
+
+       // Whether the database should have the trigram index, and whether it has it
+       private final boolean mTrigramIndexConfigured;
+       private volatile boolean mTrigramIndex;
+
        DatabaseHelper(Context context) {
+           this(context, DATABASE_NAME);
+       }
+
+       DatabaseHelper(Context context, String name) {
 
            // calls the super constructor, requesting the default cursor factory.
-           super(context, DATABASE_NAME, null, DATABASE_VERSION);
+           super(context, name, null, DATABASE_VERSION);
+
+           Resources res = context.getResources();
+           mWriteAheadLogging = res.getBoolean(R.bool.config_notes_write_ahead_logging);
+           mAutoCheckpointPages = res.getInteger(R.integer.config_notes_wal_autocheckpoint_pages);
+           mCompressChunks = res.getBoolean(R.bool.config_notes_compress_chunks);
+           mTrigramIndexConfigured = res.getBoolean(R.bool.config_notes_trigram_index);
+
+           // In WAL mode readers no longer wait for the writer, and the framework gives the
+           // database a pool of connections so queries on different threads run in parallel.
+           setWriteAheadLoggingEnabled(mWriteAheadLogging);
+       }
+
+       @Override
+       public void onConfigure(SQLiteDatabase db) {
+           if (mWriteAheadLogging) {
+               DatabaseUtils.longForQuery(db,
+                       "PRAGMA wal_autocheckpoint=" + mAutoCheckpointPages, null);
+           }
+       }
+
+       /**
+        * Checkpoints the write-ahead log without waiting for readers. Called after large
+        * batches, so the log does not stay large until the next automatic checkpoint.
+        */
+       void checkpoint(SQLiteDatabase db) {
+           if (mWriteAheadLogging) {
+               DatabaseUtils.longForQuery(db, "PRAGMA wal_checkpoint(PASSIVE)", null);
+           }
+       }
+
+       /**
+        * Returns whether chunks of large notes are written compressed. Chunks are read the
+        * same way either way, so changing this only affects what is written from then on.
+        */
+       boolean compressesChunks() {
+           return mCompressChunks;
+       }
+
+       void setCompressChunks(boolean compress) {
+           mCompressChunks = compress;
+       }
+
+       void setUpgradeListener(UpgradeListener listener) {
+           mUpgradeListener = listener;
+       }
+
+       /**
+        * Returns whether the search index was created as an FTS5 table. The index is created
+        * with whatever the SQLite of the device that created it supported.
+        */
+       boolean searchIndexIsFts5() {
+           return mSearchIndexFts5;
+       }
+
+       @Override
+       public void onOpen(SQLiteDatabase db) {
+           mSearchIndexFts5 = DatabaseUtils.longForQuery(db, "SELECT count(*) FROM sqlite_master"
+                   + " WHERE name = ? AND sql LIKE '%USING fts5%'",
+                   new String[] { SEARCH_TABLE_NAME }) > 0;
+
+           // The index is created or dropped to match the configuration, and catches up on
+           // any notes an upgrade changed, so searches never have to index anything
+           mTrigramIndex = TrigramIndex.exists(db);
+           if (!db.isReadOnly()) {
+               if (mTrigramIndex != mTrigramIndexConfigured) {
+                   setTrigramIndexEnabled(db, mTrigramIndexConfigured);
+               } else if (mTrigramIndex) {
+                   TrigramIndex.update(db);
+               }
+           }
+       }
+
+       /**
+        * Returns whether the database has the trigram index, which serves substring and fuzzy
+        * searches. Without it, substring searches scan the notes and fuzzy searches fail.
+        */
+       boolean hasTrigramIndex() {
+           return mTrigramIndex;
+       }
+
+       /**
+        * Creates and builds, or drops, the trigram index
+        */
+       void setTrigramIndexEnabled(SQLiteDatabase db, boolean enabled) {
+           db.beginTransaction();
+           try {
+               if (enabled && !TrigramIndex.exists(db)) {
+                   TrigramIndex.create(db);
+               } else if (!enabled) {
+                   TrigramIndex.drop(db);
+               }
+               db.setTransactionSuccessful();
+           } finally {
+               db.endTransaction();
+           }
+           if (enabled) {
+               TrigramIndex.update(db);
+           }
+           mTrigramIndex = enabled;
        }
 
 
@@ -194,19 +430,407 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                    + NotePad.Notes.COLUMN_NAME_NOTE + " TEXT,"
                    + NotePad.Notes.COLUMN_NAME_CREATE_DATE + " INTEGER,"
                    + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " INTEGER,"
-                   + NotePad.Notes.COLUMN_NAME_BACKGROUND_COLOR + " TEXT"  // 添加 background_color 字段
+                   + NotePad.Notes.COLUMN_NAME_BACKGROUND_COLOR + " TEXT,"  // 添加 background_color 字段
+                   + NotePad.Notes.COLUMN_NAME_SNIPPET + " TEXT,"
+                   + SearchText.COLUMN_NAME_TITLE + " TEXT,"
+                   + SearchText.COLUMN_NAME_NOTE + " TEXT"
                    + ");");
+
+           createSearchIndex(db, true);
+           createIndexes(db);
+           NoteChunks.createTable(db);
+       }
+
+       /**
+        * Creates the indexes behind the list sort orders and the date columns, so that lists
+        * are read in index order instead of being sorted on every load.
+        */
+       static void createIndexes(SQLiteDatabase db) {
+           db.execSQL("CREATE INDEX notes_modified_index ON " + NotePad.Notes.TABLE_NAME + " ("
+                   + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + ");");
+           db.execSQL("CREATE INDEX notes_created_index ON " + NotePad.Notes.TABLE_NAME + " ("
+                   + NotePad.Notes.COLUMN_NAME_CREATE_DATE + ");");
+
+           // Must use the same collation as NotePad.Notes.TITLE_SORT_ORDER. The framework
+           // reindexes LOCALIZED indexes itself when the device locale changes.
+           db.execSQL("CREATE INDEX notes_title_index ON " + NotePad.Notes.TABLE_NAME + " ("
+                   + NotePad.Notes.COLUMN_NAME_TITLE + " COLLATE LOCALIZED);");
+       }
+
+       /**
+        * Creates the full-text index and the triggers that keep it in sync with the notes
+        * table. The index is an external-content table, so the text is not stored twice. FTS5
+        * is used when the platform SQLite provides it, otherwise the index falls back to FTS4.
+        * Current databases index the text as {@link SearchText} searches it, which they read
+        * through {@link #SEARCH_VIEW_NAME}; the upgrade to version 3 indexed the original
+        * title and note columns.
+        *
+        * @param normalized whether to index the searched text rather than the original
+        */
+       static void createSearchIndex(SQLiteDatabase db, boolean normalized) {
+           String content = NotePad.Notes.TABLE_NAME;
+           String columns = NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE;
+           String newValues = "new." + NotePad.Notes._ID + ", new."
+                   + NotePad.Notes.COLUMN_NAME_TITLE + ", new." + NotePad.Notes.COLUMN_NAME_NOTE;
+           String oldValues = "old." + NotePad.Notes._ID + ", old."
+                   + NotePad.Notes.COLUMN_NAME_TITLE + ", old." + NotePad.Notes.COLUMN_NAME_NOTE;
+
+           // Only changes to the indexed columns need to touch the index
+           String onUpdate = " UPDATE OF " + columns + " ON " + NotePad.Notes.TABLE_NAME;
+
+           if (normalized) {
+               // The index reads external content by column name, so the searched text is
+               // given names of its own by a view. FTS4 looks rows up by a rowid column.
+               db.execSQL("CREATE VIEW " + SEARCH_VIEW_NAME + " AS SELECT " + NotePad.Notes._ID
+                       + " AS rowid, " + NotePad.Notes._ID + ", " + SearchText.TITLE + " AS "
+                       + SearchText.COLUMN_NAME_TITLE + ", " + SearchText.NOTE + " AS "
+                       + SearchText.COLUMN_NAME_NOTE + " FROM " + NotePad.Notes.TABLE_NAME);
+               content = SEARCH_VIEW_NAME;
+               columns = SearchText.COLUMN_NAME_TITLE + ", " + SearchText.COLUMN_NAME_NOTE;
+               newValues = "new." + NotePad.Notes._ID + ", " + SearchText.title("new") + ", "
+                       + SearchText.note("new");
+               oldValues = "old." + NotePad.Notes._ID + ", " + SearchText.title("old") + ", "
+                       + SearchText.note("old");
+
+               // The searched text changes with the original wherever there is no normalized
+               // copy, so a change to either is a change to the indexed text
+               onUpdate = " UPDATE OF " + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                       + NotePad.Notes.COLUMN_NAME_NOTE + ", " + columns + " ON "
+                       + NotePad.Notes.TABLE_NAME;
+           }
+
+           try {
+               db.execSQL("CREATE VIRTUAL TABLE " + SEARCH_TABLE_NAME + " USING fts5("
+                       + columns + ", content='" + content + "', content_rowid='"
+                       + NotePad.Notes._ID + "');");
+           } catch (SQLiteException e) {
+               Log.i(TAG, "FTS5 is not available, using FTS4 for the search index");
+
+               db.execSQL("CREATE VIRTUAL TABLE " + SEARCH_TABLE_NAME + " USING fts4("
+                       + "content=\"" + content + "\", " + columns + ");");
+
+               // FTS4 reads the old values back from the content table, so stale rows have to be
+               // removed before the notes table changes.
+               String deleteOld = "DELETE FROM " + SEARCH_TABLE_NAME + " WHERE docid = old."
+                       + NotePad.Notes._ID + "; ";
+               String insertNew = "INSERT INTO " + SEARCH_TABLE_NAME + "(docid, " + columns
+                       + ") VALUES (" + newValues + "); ";
+
+               db.execSQL("CREATE TRIGGER " + SEARCH_TABLE_NAME + "_bd BEFORE DELETE ON "
+                       + NotePad.Notes.TABLE_NAME + " BEGIN " + deleteOld + "END;");
+               db.execSQL("CREATE TRIGGER " + SEARCH_TABLE_NAME + "_bu BEFORE" + onUpdate
+                       + " BEGIN " + deleteOld + "END;");
+               db.execSQL("CREATE TRIGGER " + SEARCH_TABLE_NAME + "_au AFTER" + onUpdate
+                       + " BEGIN " + insertNew + "END;");
+               db.execSQL("CREATE TRIGGER " + SEARCH_TABLE_NAME + "_ai AFTER INSERT ON "
+                       + NotePad.Notes.TABLE_NAME + " BEGIN " + insertNew + "END;");
+               return;
+           }
+
+           String deleteOld = "INSERT INTO " + SEARCH_TABLE_NAME + "(" + SEARCH_TABLE_NAME
+                   + ", rowid, " + columns + ") VALUES ('delete', " + oldValues + "); ";
+           String insertNew = "INSERT INTO " + SEARCH_TABLE_NAME + "(rowid, " + columns
+                   + ") VALUES (" + newValues + "); ";
+
+           db.execSQL("CREATE TRIGGER " + SEARCH_TABLE_NAME + "_ad AFTER DELETE ON "
+                   + NotePad.Notes.TABLE_NAME + " BEGIN " + deleteOld + "END;");
+           db.execSQL("CREATE TRIGGER " + SEARCH_TABLE_NAME + "_au AFTER" + onUpdate
+                   + " BEGIN " + deleteOld + insertNew + "END;");
+           db.execSQL("CREATE TRIGGER " + SEARCH_TABLE_NAME + "_ai AFTER INSERT ON "
+                   + NotePad.Notes.TABLE_NAME + " BEGIN " + insertNew + "END;");
+       }
+
+       /**
+        * Drops the full-text index and its triggers, whichever kind of index it is
+        */
+       private static void dropSearchIndex(SQLiteDatabase db) {
+           for (String trigger : new String[] { "_ai", "_au", "_ad", "_bu", "_bd" }) {
+               db.execSQL("DROP TRIGGER IF EXISTS " + SEARCH_TABLE_NAME + trigger);
+           }
+           db.execSQL("DROP TABLE IF EXISTS " + SEARCH_TABLE_NAME);
+           db.execSQL("DROP VIEW IF EXISTS " + SEARCH_VIEW_NAME);
+       }
+
+       /**
+        * Indexes every existing note into an empty full-text index over the original title and
+        * note columns, as the upgrade to version 3 creates it, in batches of
+        * {@link #UPGRADE_BATCH_SIZE} rows so progress can be reported on large tables.
+        */
+       private void populateSearchIndex(SQLiteDatabase db, int toVersion) {
+           long total = DatabaseUtils.queryNumEntries(db, NotePad.Notes.TABLE_NAME);
+           long done = 0;
+           long lastId = Long.MIN_VALUE;
+
+           String copy = searchIndexCopy(NotePad.Notes.TABLE_NAME,
+                   NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE);
+
+           while (done < total) {
+               long batchEnd = upgradeBatchEnd(db, lastId);
+               db.execSQL(copy, new Object[] { lastId, batchEnd });
+
+               done = batchEnd == Long.MAX_VALUE ? total : done + UPGRADE_BATCH_SIZE;
+               lastId = batchEnd;
+               reportUpgradeProgress(toVersion, done, total);
+           }
+       }
+
+       /**
+        * Returns the statement that copies the notes with ids in a range into the full-text
+        * index. The columns are read from the given table or view, by the names the index
+        * gives them.
+        */
+       private static String searchIndexCopy(String source, String columns) {
+           return "INSERT INTO " + SEARCH_TABLE_NAME + "(rowid, " + columns + ") SELECT "
+                   + NotePad.Notes._ID + ", " + columns + " FROM " + source + " WHERE "
+                   + NotePad.Notes._ID + " > ? AND " + NotePad.Notes._ID + " <= ?";
+       }
+
+       /**
+        * Returns the last id of the batch of {@link #UPGRADE_BATCH_SIZE} notes that follows
+        * the given id, or Long.MAX_VALUE if the batch reaches the end of the table.
+        */
+       private static long upgradeBatchEnd(SQLiteDatabase db, long lastId) {
+           Cursor c = db.rawQuery("SELECT " + NotePad.Notes._ID + " FROM "
+                   + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " > ?"
+                   + " ORDER BY " + NotePad.Notes._ID
+                   + " LIMIT 1 OFFSET " + (UPGRADE_BATCH_SIZE - 1),
+                   new String[] { Long.toString(lastId) });
+           try {
+               return c.moveToFirst() ? c.getLong(0) : Long.MAX_VALUE;
+           } finally {
+               c.close();
+           }
+       }
+
+       /**
+        * Computes the snippet of every existing note, in batches of
+        * {@link #UPGRADE_BATCH_SIZE} rows. Only the start of each note is read, since the
+        * snippet never needs more.
+        */
+       private void populateSnippets(SQLiteDatabase db, int toVersion) {
+           long total = DatabaseUtils.queryNumEntries(db, NotePad.Notes.TABLE_NAME);
+           long done = 0;
+           long lastId = Long.MIN_VALUE;
+
+           // Leaves room for whitespace that collapses away
+           int sourceLength = SNIPPET_LENGTH * 4;
+           SQLiteStatement update = db.compileStatement("UPDATE " + NotePad.Notes.TABLE_NAME
+                   + " SET " + NotePad.Notes.COLUMN_NAME_SNIPPET + " = ? WHERE "
+                   + NotePad.Notes._ID + " = ?");
+           long[] ids = new long[UPGRADE_BATCH_SIZE];
+           String[] snippets = new String[UPGRADE_BATCH_SIZE];
+
+           while (true) {
+               int rows = 0;
+               Cursor c = db.rawQuery("SELECT " + NotePad.Notes._ID + ", substr("
+                       + NotePad.Notes.COLUMN_NAME_NOTE + ", 1, " + sourceLength + ") FROM "
+                       + NotePad.Notes.TABLE_NAME + " WHERE " + NotePad.Notes._ID + " > ?"
+                       + " ORDER BY " + NotePad.Notes._ID + " LIMIT " + UPGRADE_BATCH_SIZE,
+                       new String[] { Long.toString(lastId) });
+               try {
+                   while (c.moveToNext()) {
+                       ids[rows] = c.getLong(0);
+                       snippets[rows] = makeSnippet(c.getString(1));
+                       rows++;
+                   }
+               } finally {
+                   c.close();
+               }
+
+               if (rows == 0) {
+                   break;
+               }
+
+               for (int i = 0; i < rows; i++) {
+                   update.bindString(1, snippets[i]);
+                   update.bindLong(2, ids[i]);
+                   update.executeUpdateDelete();
+               }
+
+               lastId = ids[rows - 1];
+               done += rows;
+               reportUpgradeProgress(toVersion, done, total);
+           }
+           update.close();
+       }
+
+       /**
+        * Splits every note longer than {@link NoteChunks#CHUNK_LENGTH} into chunks. Progress is
+        * reported after each note, since a single large note can take a while.
+        */
+       private void chunkLargeNotes(SQLiteDatabase db, int toVersion) {
+           // Only the ids and lengths are read; the large notes may not fit in a CursorWindow
+           Cursor c = db.rawQuery("SELECT " + NotePad.Notes._ID + ", length("
+                   + NotePad.Notes.COLUMN_NAME_NOTE + ") FROM " + NotePad.Notes.TABLE_NAME
+                   + " WHERE length(" + NotePad.Notes.COLUMN_NAME_NOTE + ") > "
+                   + NoteChunks.CHUNK_LENGTH, null);
+           long[][] notes = new long[c.getCount()][];
+           try {
+               while (c.moveToNext()) {
+                   notes[c.getPosition()] = new long[] { c.getLong(0), c.getLong(1) };
+               }
+           } finally {
+               c.close();
+           }
+
+           for (int i = 0; i < notes.length; i++) {
+               NoteChunks.chunkInPlace(db, notes[i][0], notes[i][1]);
+               reportUpgradeProgress(toVersion, i + 1, notes.length);
+           }
+           if (notes.length == 0) {
+               reportUpgradeProgress(toVersion, 0, 0);
+           }
+       }
+
+       /**
+        * Computes the normalized title and text of every existing note, and fills the empty
+        * full-text index over them, in batches of {@link #UPGRADE_BATCH_SIZE} rows. Each batch
+        * is indexed before its normalized text is written, so the index triggers only reindex
+        * the few notes that need a normalized copy. Only those notes are written.
+        */
+       private void populateNormalizedText(SQLiteDatabase db, int toVersion) {
+           long total = DatabaseUtils.queryNumEntries(db, NotePad.Notes.TABLE_NAME);
+           long done = 0;
+           long lastId = Long.MIN_VALUE;
+
+           String copy = searchIndexCopy(SEARCH_VIEW_NAME,
+                   SearchText.COLUMN_NAME_TITLE + ", " + SearchText.COLUMN_NAME_NOTE);
+           SQLiteStatement update = db.compileStatement("UPDATE " + NotePad.Notes.TABLE_NAME
+                   + " SET " + SearchText.COLUMN_NAME_TITLE + " = ?, "
+                   + SearchText.COLUMN_NAME_NOTE + " = ? WHERE " + NotePad.Notes._ID + " = ?");
+           try {
+               while (done < total) {
+                   long batchEnd = upgradeBatchEnd(db, lastId);
+                   db.execSQL(copy, new Object[] { lastId, batchEnd });
+
+                   Cursor c = db.rawQuery("SELECT " + NotePad.Notes._ID + ", "
+                           + NotePad.Notes.COLUMN_NAME_TITLE + ", "
+                           + NotePad.Notes.COLUMN_NAME_NOTE + " FROM " + NotePad.Notes.TABLE_NAME
+                           + " WHERE " + NotePad.Notes._ID + " > ? AND " + NotePad.Notes._ID
+                           + " <= ?", new String[] {
+                                   Long.toString(lastId), Long.toString(batchEnd) });
+                   try {
+                       while (c.moveToNext()) {
+                           String title = SearchText.storedForm(c.getString(1));
+                           String note = SearchText.storedForm(c.getString(2));
+                           if (title != null || note != null) {
+                               bindNullable(update, 1, title);
+                               bindNullable(update, 2, note);
+                               update.bindLong(3, c.getLong(0));
+                               update.executeUpdateDelete();
+                           }
+                       }
+                   } finally {
+                       c.close();
+                   }
+
+                   done = batchEnd == Long.MAX_VALUE ? total : done + UPGRADE_BATCH_SIZE;
+                   lastId = batchEnd;
+                   reportUpgradeProgress(toVersion, done, total);
+               }
+           } finally {
+               update.close();
+           }
+       }
+
+       private static void bindNullable(SQLiteStatement statement, int index, String value) {
+           if (value == null) {
+               statement.bindNull(index);
+           } else {
+               statement.bindString(index, value);
+           }
+       }
+
+       private void reportUpgradeProgress(int toVersion, long rowsDone, long rowsTotal) {
+           UpgradeListener listener = mUpgradeListener;
+           if (listener != null) {
+               listener.onUpgradeProgress(toVersion, rowsDone, rowsTotal);
+           }
        }
 
 
        @Override
        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+           Log.i(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+
+           // SQLiteOpenHelper runs onUpgrade() inside a single transaction, so if any step
+           // fails the database is left untouched at oldVersion. Each step moves the schema
+           // forward by exactly one version and must keep existing notes.
+           for (int version = oldVersion + 1; version <= newVersion; version++) {
+               long start = System.currentTimeMillis();
+               upgradeTo(db, version, newVersion);
+               Log.i(TAG, "Upgraded to version " + version + " in "
+                       + (System.currentTimeMillis() - start) + " ms");
+           }
+       }
 
-           // 继续其他升级操作
-           Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-                   + newVersion + ", which will destroy all old data");
-           db.execSQL("DROP TABLE IF EXISTS notes");
-           onCreate(db);
+       /**
+        * Runs the single upgrade step that takes the schema from version - 1 to version.
+        * Steps that cannot be written as ALTER TABLE statements should copy the rows into a
+        * new table and rename it over the old one.
+        *
+        * @param newVersion the version the whole upgrade ends at
+        */
+       private void upgradeTo(SQLiteDatabase db, int version, int newVersion) {
+           switch (version) {
+
+               // Version 2 adds the background color. The default is part of the column
+               // definition, so existing rows are not rewritten.
+               case 2:
+                   db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                           + NotePad.Notes.COLUMN_NAME_BACKGROUND_COLOR
+                           + " TEXT DEFAULT '#FFFFFF';");
+                   reportUpgradeProgress(version, 0, 0);
+                   break;
+
+               // Version 3 adds the full-text index, which has to be filled from the notes
+               // that already exist. Version 7 replaces the index, so an upgrade that goes on
+               // to it leaves the index to that step rather than building it twice.
+               case 3:
+                   if (newVersion < 7) {
+                       createSearchIndex(db, false);
+                       populateSearchIndex(db, version);
+                   } else {
+                       reportUpgradeProgress(version, 0, 0);
+                   }
+                   break;
+
+               // Version 4 adds the sort and date indexes.
+               case 4:
+                   createIndexes(db);
+                   reportUpgradeProgress(version, 0, 0);
+                   break;
+
+               // Version 5 adds the snippet column, computed for every existing note.
+               case 5:
+                   db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                           + NotePad.Notes.COLUMN_NAME_SNIPPET + " TEXT;");
+                   populateSnippets(db, version);
+                   break;
+
+               // Version 6 adds the chunks table, and moves the existing large notes into it.
+               case 6:
+                   NoteChunks.createTable(db);
+                   chunkLargeNotes(db, version);
+                   break;
+
+               // Version 7 adds the normalized search columns, and rebuilds the full-text index
+               // over them. The trigram index is dropped too; it is rebuilt over them when the
+               // database is opened.
+               case 7:
+                   dropSearchIndex(db);
+                   TrigramIndex.drop(db);
+                   db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                           + SearchText.COLUMN_NAME_TITLE + " TEXT;");
+                   db.execSQL("ALTER TABLE " + NotePad.Notes.TABLE_NAME + " ADD COLUMN "
+                           + SearchText.COLUMN_NAME_NOTE + " TEXT;");
+                   createSearchIndex(db, true);
+                   populateNormalizedText(db, version);
+                   break;
+
+               default:
+                   throw new IllegalStateException("No upgrade step to version " + version);
+           }
        }
 
    }
@@ -217,18 +841,271 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
 
 
        mOpenHelper = new DatabaseHelper(getContext());
+       mChangeNotifier = new ChangeNotifier(getContext().getContentResolver(),
+               NotePad.Notes.CONTENT_URI);
+       mOpenHelper.setUpgradeListener(new DatabaseHelper.UpgradeListener() {
+           @Override
+           public void onUpgradeProgress(int toVersion, long rowsDone, long rowsTotal) {
+               Log.i(TAG, "Upgrading to version " + toVersion + ": " + rowsDone + "/"
+                       + rowsTotal + " rows");
+           }
+       });
+
+       // Opening the database runs any pending upgrade. Start that on a background thread
+       // so a long migration is under way before the first query arrives, instead of
+       // starting on the main thread when NotesList first loads.
+       new Thread(new Runnable() {
+           @Override
+           public void run() {
+               try {
+                   mOpenHelper.getWritableDatabase();
+               } catch (SQLiteException e) {
+                   // The next caller opens the database again and sees the error
+                   Log.e(TAG, "Unable to open database", e);
+               }
+           }
+       }, TAG + "-open").start();
 
        // Assumes that any failures will be reported by a thrown exception.
        return true;
    }
 
+    /**
+     * Splits free text typed by the user into search terms, normalized the same way as the
+     * search columns, as described by {@link SearchText#terms(String)}. Punctuation is
+     * dropped.
+     *
+     * @param query the raw search text, may be null
+     * @return the terms, empty if the text contains no searchable terms
+     */
+    static String[] searchTerms(String query) {
+        return SearchText.terms(query);
+    }
+
+    /**
+     * Converts free text typed by the user into an FTS MATCH expression. Every term returned
+     * by {@link #searchTerms(String)} becomes a prefix term, or for a run of ideographs a
+     * phrase of them, and all terms must match. User input can never produce an FTS syntax
+     * error.
+     *
+     * @param query the raw search text, may be null
+     * @return the MATCH expression, or null if the text contains no searchable terms
+     */
+    static String buildMatchExpression(String query) {
+        return buildMatchExpression(searchTerms(query));
+    }
+
+    private static String buildMatchExpression(String[] terms) {
+        StringBuilder match = new StringBuilder();
+        for (String term : terms) {
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+
+            // Terms are in lower case, which keeps terms like "or" and "not" from being read
+            // as operators
+            match.append(SearchQuery.matchTerm(term));
+        }
+        return match.length() > 0 ? match.toString() : null;
+    }
+
+    /**
+     * Returns the compiled search, from the cache of compiled searches if the same search ran
+     * recently
+     */
+    SearchQuery compileSearch(String query) {
+        // Opening the database finds out which kind of index it has
+        mOpenHelper.getReadableDatabase();
+        boolean fts5 = mOpenHelper.searchIndexIsFts5();
+        String key = (fts5 ? "5:" : "4:") + SearchQuery.cacheKey(query);
+        SearchQuery search = mSearchPlans.get(key);
+        if (search == null) {
+            search = SearchQuery.compile(query, SEARCH_TABLE_NAME, fts5);
+            mSearchPlans.put(key, search);
+        }
+        return search;
+    }
+
+    /**
+     * Returns a WHERE clause that limits the notes table to the notes matching the search
+     * terms. Uses the search result cache when it can answer, which is the case for a repeated
+     * search and for most searches that add characters to an earlier one. Otherwise runs the
+     * search against the full-text index and caches the result if it is small enough.
+     */
+    private String searchWhere(SQLiteDatabase db, String[] terms,
+            CancellationSignal cancellationSignal) {
+        long[] ids = mSearchCache.get(terms);
+        if (ids != null) {
+            return idListWhere(ids);
+        }
+
+        String matchExpression = buildMatchExpression(terms);
+        String matchWhere = NotePad.Notes._ID + " IN (SELECT rowid FROM " + SEARCH_TABLE_NAME
+                + " WHERE " + SEARCH_TABLE_NAME + " MATCH "
+                + DatabaseUtils.sqlEscapeString(matchExpression) + ")";
+
+        // Reads at most one id past the limit, so a broad search costs no more than a narrow
+        // one here; broad searches are left to the full-text index.
+        long generation = mSearchCache.generation();
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME,
+                new String[] {
+                        NotePad.Notes._ID,
+                        SearchText.TITLE,
+                        SearchText.NOTE },
+                matchWhere, null, null, null, null,
+                Integer.toString(SEARCH_CACHE_ROW_LIMIT + 1), cancellationSignal);
+        try {
+            if (c.getCount() > SEARCH_CACHE_ROW_LIMIT) {
+                return matchWhere;
+            }
+
+            ids = new long[c.getCount()];
+            String[] texts = new String[c.getCount()];
+            while (c.moveToNext()) {
+                ids[c.getPosition()] = c.getLong(0);
+                texts[c.getPosition()] = c.getString(1) + "\n" + c.getString(2);
+            }
+            mSearchCache.put(generation, terms, ids, texts);
+        } finally {
+            c.close();
+        }
+        return idListWhere(ids);
+    }
+
+    /**
+     * Returns whether the projection asks for a column that only a ranked search provides
+     */
+    private static boolean projectionRanks(String[] projection) {
+        if (projection == null) {
+            return false;
+        }
+        for (String column : projection) {
+            if (NotePad.Notes.COLUMN_NAME_RELEVANCE.equals(column)
+                    || NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET.equals(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the projection map of a ranked search, with the given expressions for its
+     * relevance and match snippet columns
+     */
+    private static HashMap<String, String> rankedProjectionMap(String relevance,
+            String matchSnippet) {
+        HashMap<String, String> projectionMap = new HashMap<String, String>(sNotesProjectionMap);
+        projectionMap.put(NotePad.Notes.COLUMN_NAME_RELEVANCE,
+                relevance + " AS " + NotePad.Notes.COLUMN_NAME_RELEVANCE);
+        projectionMap.put(NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET,
+                matchSnippet + " AS " + NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET);
+        return projectionMap;
+    }
+
+    /**
+     * Returns a WHERE clause selecting the notes whose title or indexed text contains the
+     * fragment, both normalized. LIKE decides, and with the trigram index it only checks the
+     * notes that have every trigram of the fragment; without it, it scans every note.
+     */
+    private String substringWhere(String fragment) {
+        fragment = SearchText.normalize(fragment);
+        String pattern = DatabaseUtils.sqlEscapeString("%" + fragment.replace("\\", "\\\\")
+                .replace("%", "\\%").replace("_", "\\_") + "%");
+        String likeWhere = "(" + SearchText.TITLE + " LIKE " + pattern
+                + " ESCAPE '\\' OR " + SearchText.NOTE + " LIKE " + pattern
+                + " ESCAPE '\\')";
+        if (!mOpenHelper.hasTrigramIndex()) {
+            return likeWhere;
+        }
+
+        String candidatesWhere = TrigramIndex.fragmentWhere(mOpenHelper.getReadableDatabase(),
+                fragment);
+        return candidatesWhere != null ? candidatesWhere + " AND " + likeWhere : likeWhere;
+    }
+
+    /**
+     * Sets up the query builder for a fuzzy search, joining the notes that share enough of
+     * the search's trigrams, and returns the expression for their relevance
+     */
+    private String setFuzzySearch(SQLiteQueryBuilder qb, String query, double similarity) {
+        long[] trigrams = TrigramIndex.wordTrigrams(query != null
+                ? SearchText.normalize(query) : "");
+
+        // A search without any words returns the whole list, like an empty search
+        if (trigrams.length == 0) {
+            qb.setProjectionMap(sUnrankedSearchProjectionMap);
+            return "0";
+        }
+        if (!mOpenHelper.hasTrigramIndex()) {
+            throw new UnsupportedOperationException("Fuzzy search needs the trigram index");
+        }
+
+        // The tolerance keeps a similarity like 0.5 of 4 trigrams from rounding up to 3
+        int minShared = Math.max(1, (int) Math.ceil(similarity * trigrams.length - 1e-6));
+        qb.setTables(NotePad.Notes.TABLE_NAME + " JOIN "
+                + TrigramIndex.sharedTrigramsTable(trigrams, minShared) + " ON "
+                + SearchRanking.ID_COLUMN + " = " + NotePad.Notes._ID);
+        String relevance = "round(" + SearchRanking.TABLE_ALIAS + ".ranked_shared * 1.0 / "
+                + trigrams.length + ", 3)";
+        qb.setProjectionMap(rankedProjectionMap(relevance, NotePad.Notes.COLUMN_NAME_SNIPPET));
+        return relevance;
+    }
+
+    /**
+     * Returns the similarity threshold of a fuzzy search URI
+     */
+    private static double similarity(Uri uri) {
+        String value = uri.getQueryParameter(NotePad.Notes.SIMILARITY_PARAMETER);
+        if (value == null) {
+            return NotePad.Notes.DEFAULT_SIMILARITY;
+        }
+        double similarity = Double.parseDouble(value);
+        if (!(similarity > 0 && similarity <= 1)) {
+            throw new IllegalArgumentException("Similarity out of range: " + value);
+        }
+        return similarity;
+    }
+
+    private static String idListWhere(long[] ids) {
+        StringBuilder where = new StringBuilder(NotePad.Notes._ID).append(" IN (");
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                where.append(',');
+            }
+            where.append(ids[i]);
+        }
+        return where.append(')').toString();
+    }
+
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        return query(uri, projection, selection, selectionArgs, sortOrder, null);
+    }
+
+    /**
+     * Queries the provider. If the cancellation signal fires while the query runs, SQLite stops
+     * and the query throws {@link android.os.OperationCanceledException}, so a search the user
+     * has already typed past does not keep running.
+     */
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder, CancellationSignal cancellationSignal) {
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
         qb.setTables(NotePad.Notes.TABLE_NAME);
 
-        switch (sUriMatcher.match(uri)) {
+        // The expression for the relevance of a search result, or null if this is not a search
+        String relevance = null;
+
+        // The arguments of the placeholders in the search's WHERE clause
+        String[] searchArgs = null;
+
+        // Whether this is a search ranked by the full-text index, whose match snippets may
+        // have to be rewritten in the original text
+        boolean ranked = false;
+
+        int match = sUriMatcher.match(uri);
+        switch (match) {
             case NOTES:
                 qb.setProjectionMap(sNotesProjectionMap);
                 break;
@@ -244,6 +1121,63 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 qb.setProjectionMap(sLiveFolderProjectionMap);
                 break;
 
+            case SEARCH:
+                String searchQuery = uri.getQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER);
+                String mode = uri.getQueryParameter(NotePad.Notes.SEARCH_MODE_PARAMETER);
+                if (NotePad.Notes.SEARCH_MODE_SUBSTRING.equals(mode)) {
+                    qb.setProjectionMap(sUnrankedSearchProjectionMap);
+                    relevance = "0";
+                    String fragment = searchQuery != null ? searchQuery.trim() : "";
+                    if (fragment.length() > 0) {
+                        qb.appendWhere(substringWhere(fragment));
+                    }
+                    break;
+                } else if (NotePad.Notes.SEARCH_MODE_FUZZY.equals(mode)) {
+                    relevance = setFuzzySearch(qb, searchQuery, similarity(uri));
+                    break;
+                } else if (mode != null && !NotePad.Notes.SEARCH_MODE_WORDS.equals(mode)) {
+                    throw new IllegalArgumentException("Unknown search mode " + mode);
+                }
+
+                SearchQuery search = compileSearch(searchQuery);
+
+                // An empty search returns the whole list, like the notes URI does
+                if (search.isEmpty()) {
+                    qb.setProjectionMap(sUnrankedSearchProjectionMap);
+                    relevance = "0";
+                } else if (search.rankedMatch() != null
+                        && (NotePad.Notes.RELEVANCE_SORT_ORDER.equals(sortOrder)
+                                || projectionRanks(projection))) {
+                    // Ranking needs the full-text index's view of every match, so it joins
+                    // the index instead of using the search result cache. The rest of the
+                    // search filters the ranked matches.
+                    SearchRanking ranking = SearchRanking.create(mOpenHelper.getReadableDatabase(),
+                            SEARCH_TABLE_NAME, mOpenHelper.searchIndexIsFts5(),
+                            search.rankedMatch(), search.rankedPhraseCount());
+                    relevance = ranking.relevance();
+                    qb.setTables(NotePad.Notes.TABLE_NAME + " JOIN " + ranking.table() + " ON "
+                            + SearchRanking.ID_COLUMN + " = " + NotePad.Notes._ID);
+                    qb.setProjectionMap(rankedProjectionMap(relevance,
+                            SearchRanking.matchSnippet()));
+                    ranked = true;
+                    if (search.filterWhere() != null) {
+                        qb.appendWhere(search.filterWhere());
+                        searchArgs = search.filterArgs();
+                    }
+                } else if (search.plainTerms() != null) {
+                    qb.setProjectionMap(sNotesProjectionMap);
+                    qb.appendWhere(searchWhere(mOpenHelper.getReadableDatabase(),
+                            search.plainTerms(), cancellationSignal));
+                } else {
+                    // A search with no words that every result contains has nothing to rank
+                    // its results by, so they all rank the same
+                    qb.setProjectionMap(sUnrankedSearchProjectionMap);
+                    relevance = "0";
+                    qb.appendWhere(search.where());
+                    searchArgs = search.whereArgs();
+                }
+                break;
+
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -252,24 +1186,182 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                 ? NotePad.Notes.DEFAULT_SORT_ORDER
                 : sortOrder;
 
+        // A page size turns a list query into one page of a keyset-paginated list. Pages are
+        // positioned by the sort key of the previous page's last row rather than by an
+        // OFFSET, so every page costs the same no matter how deep into the list it is.
+        String limit = null;
+        String pageSize = uri.getQueryParameter(NotePad.Notes.PAGE_SIZE_PARAMETER);
+        if (pageSize != null && (match == NOTES || match == SEARCH)) {
+            boolean byTitle;
+            boolean byRelevance = false;
+            if (NotePad.Notes.DEFAULT_SORT_ORDER.equals(orderBy)) {
+                byTitle = false;
+            } else if (NotePad.Notes.TITLE_SORT_ORDER.equals(orderBy)) {
+                byTitle = true;
+            } else if (NotePad.Notes.RELEVANCE_SORT_ORDER.equals(orderBy) && relevance != null) {
+                byTitle = false;
+                byRelevance = true;
+            } else {
+                throw new IllegalArgumentException("Paged queries cannot sort by " + orderBy);
+            }
+
+            limit = Integer.toString(Integer.parseInt(pageSize));
+
+            String after = uri.getQueryParameter(NotePad.Notes.PAGE_AFTER_PARAMETER);
+            if (after != null) {
+                selection = DatabaseUtils.concatenateWhere(selection,
+                        pageKeyWhere(byTitle, byRelevance ? relevance : null, after));
+            }
+
+            // Ties on the sort key are broken by _id, so that every row has a unique key.
+            // The sort indexes end in the rowid, so they still deliver rows in this order.
+            if (byRelevance) {
+                orderBy = relevance + " DESC, " + NotePad.Notes._ID + " DESC";
+            } else {
+                orderBy = byTitle
+                        ? NotePad.Notes.TITLE_SORT_ORDER + ", " + NotePad.Notes._ID + " ASC"
+                        : NotePad.Notes.DEFAULT_SORT_ORDER + ", " + NotePad.Notes._ID + " DESC";
+            }
+        } else if (NotePad.Notes.RELEVANCE_SORT_ORDER.equals(orderBy)) {
+            if (relevance == null) {
+                throw new IllegalArgumentException("Only searches can sort by relevance");
+            }
+            orderBy = relevance + " DESC, " + NotePad.Notes._ID + " DESC";
+        }
+
+        // The query builder puts the search's WHERE clause before the selection
+        if (searchArgs != null && searchArgs.length > 0) {
+            selectionArgs = selectionArgs == null ? searchArgs
+                    : DatabaseUtils.appendSelectionArgs(searchArgs, selectionArgs);
+        }
+
         SQLiteDatabase db = mOpenHelper.getReadableDatabase();
 
-        // 进行查询操作，返回 Cursor
-        Cursor c = qb.query(
-                db,
-                projection,
-                selection,
-                selectionArgs,
-                null,
-                null,
-                orderBy
-        );
-
-        c.setNotificationUri(getContext().getContentResolver(), uri);
+        // A single note is read in one transaction with its chunks, so that a write between
+        // the two cannot tear it
+        if (match == NOTE_ID) {
+            db.beginTransactionNonExclusive();
+        }
+        Cursor c;
+        try {
+            // 进行查询操作，返回 Cursor
+            c = qb.query(
+                    db,
+                    projection,
+                    selection,
+                    selectionArgs,
+                    null,
+                    null,
+                    orderBy,
+                    limit,
+                    cancellationSignal
+            );
+
+            // A single note is returned whole; its chunks are only read if its text is
+            if (match == NOTE_ID && c.getColumnIndex(NotePad.Notes.COLUMN_NAME_NOTE) >= 0) {
+                c = new NoteChunks.NoteCursor(c, db, ContentUris.parseId(uri));
+            } else if (match == NOTE_ID) {
+                // Reads the row before the transaction ends
+                c.getCount();
+            }
+            if (match == NOTE_ID) {
+                db.setTransactionSuccessful();
+            }
+        } finally {
+            if (match == NOTE_ID) {
+                db.endTransaction();
+            }
+        }
+
+        // Search results change whenever any note changes, so watch the whole notes URI
+        c.setNotificationUri(getContext().getContentResolver(),
+                match == SEARCH ? NotePad.Notes.CONTENT_URI : uri);
+
+        if (ranked && c.getColumnIndex(NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET) >= 0) {
+            c = new SearchRanking.SnippetCursor(c, db);
+        }
         return c;
     }
 
 
+    /**
+     * Returns the snippet for a note: its first {@link #SNIPPET_LENGTH} characters, with leading
+     * and trailing whitespace removed and every run of whitespace inside replaced by a single
+     * space. Stops reading as soon as the snippet is full, so the cost does not depend on the
+     * size of the note.
+     */
+    static String makeSnippet(String note) {
+        if (note == null) {
+            return "";
+        }
+
+        StringBuilder snippet = new StringBuilder(Math.min(note.length(), SNIPPET_LENGTH));
+        boolean pendingSpace = false;
+        int length = note.length();
+        for (int i = 0; i < length && snippet.length() < SNIPPET_LENGTH; i++) {
+            char ch = note.charAt(i);
+            if (Character.isWhitespace(ch)) {
+                pendingSpace = snippet.length() > 0;
+            } else {
+                if (pendingSpace) {
+                    snippet.append(' ');
+                    pendingSpace = false;
+                }
+                snippet.append(ch);
+            }
+        }
+
+        // Does not end the snippet in the middle of a surrogate pair
+        int end = Math.min(snippet.length(), SNIPPET_LENGTH);
+        if (end > 0 && Character.isHighSurrogate(snippet.charAt(end - 1))) {
+            end--;
+        }
+        if (end > 0 && snippet.charAt(end - 1) == ' ') {
+            end--;
+        }
+        snippet.setLength(end);
+        return snippet.toString();
+    }
+
+    /**
+     * Returns a WHERE clause selecting the rows that come after the given page key in a list
+     * sorted by title or by modification date, or by the given relevance expression if it is
+     * not null. See {@link NotePad.Notes#PAGE_AFTER_PARAMETER}. For the list orders the
+     * clause leads with a range on the sort column, so it is served by the sort index.
+     */
+    private static String pageKeyWhere(boolean byTitle, String relevance, String after) {
+        // The id is numeric, so the last comma always separates it from the sort key
+        int comma = after.lastIndexOf(',');
+        if (comma < 0) {
+            throw new IllegalArgumentException("Malformed page key " + after);
+        }
+        long afterId = Long.parseLong(after.substring(comma + 1));
+        String key = after.substring(0, comma);
+
+        if (relevance != null) {
+            // Relevance is rounded to a few decimal places, so its printed form reads back as
+            // the same double in SQL
+            double score = Double.parseDouble(key);
+            if (Double.isNaN(score) || Double.isInfinite(score)) {
+                throw new IllegalArgumentException("Malformed page key " + after);
+            }
+            return relevance + " <= " + score + " AND (" + relevance + " < " + score + " OR "
+                    + NotePad.Notes._ID + " < " + afterId + ")";
+        }
+
+        if (byTitle) {
+            String title = DatabaseUtils.sqlEscapeString(key) + " COLLATE LOCALIZED";
+            return NotePad.Notes.COLUMN_NAME_TITLE + " >= " + title + " AND ("
+                    + NotePad.Notes.COLUMN_NAME_TITLE + " > " + title + " OR "
+                    + NotePad.Notes._ID + " > " + afterId + ")";
+        }
+
+        long modified = Long.parseLong(key);
+        return NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " <= " + modified + " AND ("
+                + NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " < " + modified + " OR "
+                + NotePad.Notes._ID + " < " + afterId + ")";
+    }
+
     @Override
     public String getType(Uri uri) {
 
@@ -279,12 +1371,17 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             // If the pattern is for notes or live folders, returns the general content type.
             case NOTES:
             case LIVE_FOLDER_NOTES:
+            case SEARCH:
                 return NotePad.Notes.CONTENT_TYPE;
 
             // If the pattern is for note IDs, returns the note ID content type.
             case NOTE_ID:
                 return NotePad.Notes.CONTENT_ITEM_TYPE;
 
+            // Patch URIs can only be updated, so they have no content type.
+            case NOTE_PATCH:
+                return null;
+
             // If the URI pattern doesn't match any permitted patterns, throws an exception.
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
@@ -296,16 +1393,24 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     static ClipDescription NOTE_STREAM_TYPES = new ClipDescription(null,
             new String[] { ClipDescription.MIMETYPE_TEXT_PLAIN });
 
+    static ClipDescription NOTES_STREAM_TYPES = new ClipDescription(null,
+            new String[] { NotePad.Notes.EXPORT_TYPE_NDJSON, NotePad.Notes.EXPORT_TYPE_ZIP });
+
 
     @Override
     public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
 
         switch (sUriMatcher.match(uri)) {
 
-            // If the pattern is for notes or live folders, return null. Data streams are not
-            // supported for this type of URI.
+            // If the pattern is for notes, returns the export types that match the filter
             case NOTES:
+                return NOTES_STREAM_TYPES.filterMimeTypes(mimeTypeFilter);
+
+            // If the pattern is for live folders, searches or patches, return null. Data
+            // streams are not supported for these types of URI.
             case LIVE_FOLDER_NOTES:
+            case SEARCH:
+            case NOTE_PATCH:
                 return null;
 
             // If the pattern is for note IDs and the MIME filter is text/plain, then return
@@ -328,6 +1433,14 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         String[] mimeTypes = getStreamTypes(uri, mimeTypeFilter);
 
 
+        // Exports every note in a single pass; see NoteExporter
+        if (mimeTypes != null && sUriMatcher.match(uri) == NOTES) {
+            return new AssetFileDescriptor(
+                    openPipeHelper(uri, mimeTypes[0], opts, mOpenHelper.getReadableDatabase(),
+                            mExporter), 0,
+                    AssetFileDescriptor.UNKNOWN_LENGTH);
+        }
+
         if (mimeTypes != null) {
 
 
@@ -376,7 +1489,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             pw.println(c.getString(READ_NOTE_TITLE_INDEX));
             pw.println("");
             pw.println(c.getString(READ_NOTE_NOTE_INDEX));
-        } catch (UnsupportedEncodingException e) {
+        } catch (IOException e) {
             Log.w(TAG, "Ooops", e);
         } finally {
             c.close();
@@ -396,6 +1509,23 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
+        long rowId = insertNote(mOpenHelper.getWritableDatabase(), initialValues);
+        if (rowId > 0) {
+            Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
+            notifyChange(noteUri);
+            return noteUri;
+        }
+
+        throw new SQLException("Failed to insert row into " + uri);
+    }
+
+    /**
+     * Inserts a note, filling in the columns the values leave out, without notifying
+     * observers.
+     *
+     * @return the new note's id, or -1 if it could not be inserted
+     */
+    private long insertNote(SQLiteDatabase db, ContentValues initialValues) {
         ContentValues values = (initialValues != null) ? new ContentValues(initialValues) : new ContentValues();
         Long now = System.currentTimeMillis();
 
@@ -417,24 +1547,244 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         }
 
 
+        String[] pieces = NoteChunks.split(values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE));
+        values.put(NotePad.Notes.COLUMN_NAME_SNIPPET, makeSnippet(pieces[0]));
+        values.put(NotePad.Notes.COLUMN_NAME_NOTE, pieces[0]);
+        values.put(SearchText.COLUMN_NAME_TITLE,
+                SearchText.storedForm(values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE)));
+        values.put(SearchText.COLUMN_NAME_NOTE, SearchText.storedForm(pieces[0]));
+
         // 如果没有提供背景色，设置为透明
         if (!values.containsKey(NotePad.Notes.COLUMN_NAME_BACKGROUND_COLOR)) {
             values.put(NotePad.Notes.COLUMN_NAME_BACKGROUND_COLOR, "#FFFFFF"); // 默认背景颜色为白色
         }
 
+        long rowId;
+        db.beginTransaction();
+        try {
+            rowId = db.insert(NotePad.Notes.TABLE_NAME, null, values);
+            if (rowId > 0) {
+                NoteChunks.insert(db, rowId, pieces, mOpenHelper.compressesChunks());
+            }
+            updateTrigramIndex(db);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return rowId;
+    }
+
+    /**
+     * Reindexes the notes the current write changed, if the database has the trigram index.
+     * Writes call this before their transaction commits, so a search never reads a note the
+     * index has not caught up with, and never has to write to the index itself.
+     */
+    private void updateTrigramIndex(SQLiteDatabase db) {
+        if (mOpenHelper.hasTrigramIndex()) {
+            TrigramIndex.update(db);
+        }
+    }
+
+    /**
+     * Inserts all of the notes in a single transaction, so the whole batch costs one commit,
+     * and notifies observers in a single flush when it is done.
+     */
+    @Override
+    public int bulkInsert(Uri uri, ContentValues[] values) {
+        if (sUriMatcher.match(uri) != NOTES) {
+            throw new IllegalArgumentException("Unknown URI " + uri);
+        }
+
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        long rowId = db.insert(NotePad.Notes.TABLE_NAME, null, values);
+        ArrayList<Uri> changes = new ArrayList<Uri>();
+        mBatchChanges.set(changes);
+        db.beginTransaction();
+        try {
+            for (ContentValues noteValues : values) {
+                insert(uri, noteValues);
+            }
+            beforeBatchCommit();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatchChanges.remove();
+        }
 
-        if (rowId > 0) {
-            Uri noteUri = ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, rowId);
-            getContext().getContentResolver().notifyChange(noteUri, null);
-            return noteUri;
+        // The inserts invalidated the search cache before they were committed, so a search in
+        // between may have cached what it read of the notes before the batch
+        mSearchCache.invalidate();
+        mOpenHelper.checkpoint(db);
+        mChangeNotifier.requestChangesAndFlush(changes);
+        return values.length;
+    }
+
+    /**
+     * Applies all of the operations in a single transaction. If any operation fails, none of
+     * them take effect. Observers are notified in a single flush, after the transaction
+     * commits.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        ContentProviderResult[] results;
+        ArrayList<Uri> changes = new ArrayList<Uri>();
+        mBatchChanges.set(changes);
+        db.beginTransaction();
+        try {
+            results = super.applyBatch(operations);
+            beforeBatchCommit();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            mBatchChanges.remove();
         }
 
-        throw new SQLException("Failed to insert row into " + uri);
+        // As in bulkInsert(), forgets searches that ran while the batch was uncommitted
+        mSearchCache.invalidate();
+        mOpenHelper.checkpoint(db);
+        mChangeNotifier.requestChangesAndFlush(changes);
+        return results;
+    }
+
+    private void beforeBatchCommit() {
+        Runnable hook = mBeforeBatchCommit;
+        if (hook != null) {
+            hook.run();
+        }
     }
 
+    /**
+     * Handles {@link NotePad.Notes#METHOD_IMPORT}. Each batch of imported notes is inserted
+     * in its own transaction, so a failed import keeps the batches before the failure.
+     * Observers are notified once, when the import ends.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (!NotePad.Notes.METHOD_IMPORT.equals(method)) {
+            return super.call(method, arg, extras);
+        }
+
+        ParcelFileDescriptor file = (extras != null)
+                ? (ParcelFileDescriptor) extras.getParcelable(NotePad.Notes.IMPORT_EXTRA_FILE)
+                : null;
+        if (file == null) {
+            throw new IllegalArgumentException("No file to import");
+        }
+        ResultReceiver progress = extras.getParcelable(NotePad.Notes.IMPORT_EXTRA_PROGRESS);
+
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        NoteImporter importer = new NoteImporter(new NoteImporter.BatchWriter() {
+            @Override
+            public void writeBatch(ArrayList<ContentValues> batch) {
+                db.beginTransaction();
+                try {
+                    for (ContentValues values : batch) {
+                        if (insertNote(db, values) <= 0) {
+                            throw new SQLException("Failed to import a note");
+                        }
+                    }
+                    beforeBatchCommit();
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+
+                // Searches during the import must see each batch once it is committed
+                mSearchCache.invalidate();
+                mOpenHelper.checkpoint(db);
+            }
+        }, progress);
 
+        InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(file);
+        try {
+            if (NotePad.Notes.EXPORT_TYPE_NDJSON.equals(arg)) {
+                importer.importNdjson(in);
+            } else if (NotePad.Notes.EXPORT_TYPE_ZIP.equals(arg)) {
+                importer.importZip(in);
+            } else {
+                throw new IllegalArgumentException("Unknown import type " + arg);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Import stopped after " + importer.getRows()
+                    + " notes", e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+            }
+            if (importer.getRows() > 0) {
+                notifyChange(NotePad.Notes.CONTENT_URI);
+            }
+        }
+
+        Bundle result = importer.getResult();
+        Log.i(TAG, "Imported " + result.getLong(NotePad.Notes.IMPORT_RESULT_ROWS) + " notes, "
+                + Math.round(result.getDouble(NotePad.Notes.IMPORT_RESULT_ROWS_PER_SECOND))
+                + " per second");
+        return result;
+    }
+
+    /**
+     * Notifies observers of a change to the given URI. The notification goes through the
+     * change notifier, which may hold it briefly to merge it with others. Inside a batch it
+     * waits for the batch to commit.
+     */
+    private void notifyChange(Uri uri) {
+        // Every write ends here, so this is also where cached search results go stale
+        mSearchCache.invalidate();
+        ArrayList<Uri> batchChanges = mBatchChanges.get();
+        if (batchChanges != null) {
+            batchChanges.add(uri);
+        } else {
+            mChangeNotifier.requestChange(uri);
+        }
+    }
+
+
+
+    /**
+     * Returns the ids of the notes selected by a WHERE clause on the notes table, or null if
+     * there are more than {@link #MAX_ROW_NOTIFICATIONS} of them.
+     */
+    private static long[] findNoteIds(SQLiteDatabase db, String where, String[] whereArgs) {
+        Cursor c = db.query(NotePad.Notes.TABLE_NAME, new String[] { NotePad.Notes._ID },
+                where, whereArgs, null, null, null,
+                Integer.toString(MAX_ROW_NOTIFICATIONS + 1));
+        try {
+            if (c.getCount() > MAX_ROW_NOTIFICATIONS) {
+                return null;
+            }
+            long[] ids = new long[c.getCount()];
+            while (c.moveToNext()) {
+                ids[c.getPosition()] = c.getLong(0);
+            }
+            return ids;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Notifies observers of the notes changed by an update or delete. Each note is notified on
+     * its own URI, which also reaches observers of the notes URI, so an observer can tell
+     * which notes changed. If too many notes changed to list, notifies the notes URI once.
+     *
+     * @param ids the ids of the changed notes, or null if there were too many to list
+     * @param count the number of rows the update or delete reported
+     */
+    private void notifyNotesChanged(long[] ids, int count) {
+        if (count == 0) {
+            return;
+        }
+        if (ids == null) {
+            notifyChange(NotePad.Notes.CONTENT_URI);
+            return;
+        }
+        for (long id : ids) {
+            notifyChange(ContentUris.withAppendedId(NotePad.Notes.CONTENT_ID_URI_BASE, id));
+        }
+    }
 
     @Override
     public int delete(Uri uri, String where, String[] whereArgs) {
@@ -444,15 +1794,25 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         String finalWhere;
 
         int count;
+        long[] changedIds;
 
         switch (sUriMatcher.match(uri)) {
 
             case NOTES:
-                count = db.delete(
-                        NotePad.Notes.TABLE_NAME,  // The database table name
-                        where,                     // The incoming where clause column names
-                        whereArgs                  // The incoming where clause values
-                );
+                // Finds the notes the delete will remove, so each of them can be notified
+                db.beginTransaction();
+                try {
+                    changedIds = findNoteIds(db, where, whereArgs);
+                    count = db.delete(
+                            NotePad.Notes.TABLE_NAME,  // The database table name
+                            where,                     // The incoming where clause column names
+                            whereArgs                  // The incoming where clause values
+                    );
+                    updateTrigramIndex(db);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
 
 
@@ -471,12 +1831,20 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                     finalWhere = finalWhere + " AND " + where;
                 }
 
-                // Performs the delete.
-                count = db.delete(
-                        NotePad.Notes.TABLE_NAME,  // The database table name.
-                        finalWhere,                // The final WHERE clause
-                        whereArgs                  // The incoming where clause values.
-                );
+                // Performs the delete, and drops the note from the trigram index with it
+                db.beginTransaction();
+                try {
+                    count = db.delete(
+                            NotePad.Notes.TABLE_NAME,  // The database table name.
+                            finalWhere,                // The final WHERE clause
+                            whereArgs                  // The incoming where clause values.
+                    );
+                    updateTrigramIndex(db);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                changedIds = new long[] { ContentUris.parseId(uri) };
                 break;
 
             // If the incoming pattern is invalid, throws an exception.
@@ -485,7 +1853,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
         }
 
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyNotesChanged(changedIds, count);
 
         // Returns the number of rows deleted.
         return count;
@@ -496,6 +1864,7 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
     public int update(Uri uri, ContentValues values, String where, String[] whereArgs) {
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count;
+        long[] changedIds;
         String finalWhere;
 
         if (values.containsKey(NotePad.Notes.COLUMN_NAME_BACKGROUND_COLOR)) {
@@ -503,14 +1872,46 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
             // 可以进行一些检查，确保颜色值有效（如格式正确）
         }
 
+        // Keeps the snippet and the normalized search columns in step with the note, and
+        // splits a large note into the part kept in the notes table and its chunks. Copies the
+        // values first, since they belong to the caller.
+        String[] pieces = null;
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)
+                || values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)) {
+            values = new ContentValues(values);
+        }
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+            pieces = NoteChunks.split(values.getAsString(NotePad.Notes.COLUMN_NAME_NOTE));
+            values.put(NotePad.Notes.COLUMN_NAME_SNIPPET, makeSnippet(pieces[0]));
+            values.put(NotePad.Notes.COLUMN_NAME_NOTE, pieces[0]);
+            values.put(SearchText.COLUMN_NAME_NOTE, SearchText.storedForm(pieces[0]));
+        }
+        if (values.containsKey(NotePad.Notes.COLUMN_NAME_TITLE)) {
+            values.put(SearchText.COLUMN_NAME_TITLE,
+                    SearchText.storedForm(values.getAsString(NotePad.Notes.COLUMN_NAME_TITLE)));
+        }
+
         switch (sUriMatcher.match(uri)) {
             case NOTES:
-                count = db.update(
-                        NotePad.Notes.TABLE_NAME,  // 数据库表名
-                        values,                   // 新的列值
-                        where,                    // where 子句
-                        whereArgs                 // where 子句的值
-                );
+                // Finds the notes the update will change, so each of them can be notified
+                db.beginTransaction();
+                try {
+                    changedIds = findNoteIds(db, where, whereArgs);
+                    if (pieces != null) {
+                        NoteChunks.replace(db, where, whereArgs, pieces,
+                                mOpenHelper.compressesChunks());
+                    }
+                    count = db.update(
+                            NotePad.Notes.TABLE_NAME,  // 数据库表名
+                            values,                   // 新的列值
+                            where,                    // where 子句
+                            whereArgs                 // where 子句的值
+                    );
+                    updateTrigramIndex(db);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 break;
 
             case NOTE_ID:
@@ -521,21 +1922,176 @@ public class NotePadProvider extends ContentProvider implements PipeDataWriter<C
                     finalWhere = finalWhere + " AND " + where;
                 }
 
-                count = db.update(
-                        NotePad.Notes.TABLE_NAME,  // 数据库表名
-                        values,                   // 新的列值
-                        finalWhere,               // where 子句
-                        whereArgs                 // where 子句的值
-                );
+                db.beginTransaction();
+                try {
+                    if (pieces != null) {
+                        NoteChunks.replace(db, finalWhere, whereArgs, pieces,
+                                mOpenHelper.compressesChunks());
+                    }
+                    count = db.update(
+                            NotePad.Notes.TABLE_NAME,  // 数据库表名
+                            values,                   // 新的列值
+                            finalWhere,               // where 子句
+                            whereArgs                 // where 子句的值
+                    );
+                    updateTrigramIndex(db);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                changedIds = new long[] { Long.parseLong(noteId) };
+                break;
+
+            case NOTE_PATCH:
+                if (where != null) {
+                    throw new IllegalArgumentException("Patches cannot have a selection");
+                }
+                long patchedId = Long.parseLong(
+                        uri.getPathSegments().get(NotePad.Notes.NOTE_ID_PATH_POSITION));
+                count = applyPatch(db, patchedId, values);
+                changedIds = new long[] { patchedId };
                 break;
 
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
 
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyNotesChanged(changedIds, count);
         return count;
     }
 
+    /**
+     * Replaces part of a note's text, as described by the patch values of an update of a patch
+     * URI. SQLite splices the text of a note stored whole in place, so the note only passes
+     * through the provider if it has to be normalized for searching; a chunked note only has
+     * the chunks the patch touches read and rewritten. Otherwise only the start of the note
+     * is read back, to refresh the snippet.
+     *
+     * @return the number of notes patched: 1, or 0 if the note does not exist
+     * @throws IllegalArgumentException if the patch values are missing or out of range
+     */
+    private int applyPatch(SQLiteDatabase db, long noteId, ContentValues values) {
+        Integer offset = values.getAsInteger(NotePad.Notes.PATCH_OFFSET);
+        Integer length = values.getAsInteger(NotePad.Notes.PATCH_LENGTH);
+        String text = values.getAsString(NotePad.Notes.PATCH_TEXT);
+        if (offset == null || length == null || text == null || offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid patch " + values);
+        }
 
+        Long modified = values.getAsLong(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+        if (modified == null) {
+            modified = System.currentTimeMillis();
+        }
+
+        String[] idArgs = { Long.toString(noteId) };
+        String noteWhere = NotePad.Notes._ID + " = ?";
+        db.beginTransaction();
+        try {
+            long headLength;
+            try {
+                headLength = DatabaseUtils.longForQuery(db, "SELECT length("
+                        + NotePad.Notes.COLUMN_NAME_NOTE + ") FROM " + NotePad.Notes.TABLE_NAME
+                        + " WHERE " + noteWhere, idArgs);
+            } catch (SQLiteDoneException e) {
+                return 0;
+            }
+            long chunksLength = NoteChunks.length(db, noteId);
+            long noteLength = headLength + chunksLength;
+            if ((long) offset + length > noteLength) {
+                throw new IllegalArgumentException("Patch " + values + " is past the end of note "
+                        + noteId + ", which has " + noteLength + " characters");
+            }
+
+            if (chunksLength == 0 && noteLength - length
+                    + text.codePointCount(0, text.length()) <= NoteChunks.CHUNK_LENGTH) {
+                // substr() counts characters from 1, and an offset of 0 yields an empty prefix
+                String splice = "substr(ifnull(" + NotePad.Notes.COLUMN_NAME_NOTE
+                        + ", ''), 1, ?) || ? || substr(ifnull(" + NotePad.Notes.COLUMN_NAME_NOTE
+                        + ", ''), ?)";
+                long suffixStart = (long) offset + length + 1;
+
+                // ASCII spliced into a note that is searched as it is leaves it searched as it
+                // is, so only other patches read the new text back to normalize it. The
+                // normalized text is written with the note, so the indexes update only once.
+                String normalized = null;
+                if (!SearchText.isAscii(text) || DatabaseUtils.longForQuery(db, "SELECT "
+                        + SearchText.COLUMN_NAME_NOTE + " IS NOT NULL FROM "
+                        + NotePad.Notes.TABLE_NAME + " WHERE " + noteWhere, idArgs) != 0) {
+                    normalized = SearchText.storedForm(DatabaseUtils.stringForQuery(db, "SELECT "
+                            + splice + " FROM " + NotePad.Notes.TABLE_NAME + " WHERE "
+                            + noteWhere, new String[] { offset.toString(), text,
+                                    Long.toString(suffixStart), Long.toString(noteId) }));
+                }
+                db.execSQL("UPDATE " + NotePad.Notes.TABLE_NAME + " SET "
+                        + NotePad.Notes.COLUMN_NAME_NOTE + " = " + splice + ", "
+                        + SearchText.COLUMN_NAME_NOTE + " = ? WHERE " + noteWhere,
+                        new Object[] { offset, text, suffixStart, normalized, noteId });
+            } else {
+                // The note is, or is about to become, too large to be kept whole in the notes
+                // table, so it is patched chunk by chunk
+                String head = DatabaseUtils.stringForQuery(db, "SELECT "
+                        + NotePad.Notes.COLUMN_NAME_NOTE + " FROM " + NotePad.Notes.TABLE_NAME
+                        + " WHERE " + noteWhere, idArgs);
+                String newHead = NoteChunks.patch(db, noteId, head, offset, length, text,
+                        mOpenHelper.compressesChunks());
+                if (newHead != null) {
+                    ContentValues headValues = new ContentValues();
+                    headValues.put(NotePad.Notes.COLUMN_NAME_NOTE, newHead);
+                    headValues.put(SearchText.COLUMN_NAME_NOTE, SearchText.storedForm(newHead));
+                    db.update(NotePad.Notes.TABLE_NAME, headValues, noteWhere, idArgs);
+                }
+            }
+
+            String start = DatabaseUtils.stringForQuery(db, "SELECT substr("
+                    + NotePad.Notes.COLUMN_NAME_NOTE + ", 1, " + SNIPPET_SOURCE_LENGTH + ") FROM "
+                    + NotePad.Notes.TABLE_NAME + " WHERE " + noteWhere, idArgs);
+            ContentValues changed = new ContentValues();
+            changed.put(NotePad.Notes.COLUMN_NAME_SNIPPET, makeSnippet(
+                    NoteChunks.readStart(db, noteId, start, SNIPPET_SOURCE_LENGTH)));
+            changed.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, modified);
+            db.update(NotePad.Notes.TABLE_NAME, changed, noteWhere, idArgs);
+
+            updateTrigramIndex(db);
+            db.setTransactionSuccessful();
+            return 1;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * A test package can call this to get a handle to the database underlying NotePadProvider,
+     * so it can insert test data into the database. The test case class is responsible for
+     * instantiating the provider in a test context; {@link android.test.ProviderTestCase2} does
+     * this during the call to setUp()
+     *
+     * @return a handle to the database helper object for the provider's data.
+     */
+    DatabaseHelper getOpenHelperForTest() {
+        return mOpenHelper;
+    }
+
+    /**
+     * Returns the notifier the provider sends change notifications through, whose counters
+     * show how many notifications were requested and how many were actually sent.
+     */
+    ChangeNotifier getChangeNotifier() {
+        return mChangeNotifier;
+    }
+
+    /**
+     * Replaces the notifier the provider sends change notifications through, so a test can
+     * send them through a resolver that delivers them to observers.
+     */
+    void setChangeNotifierForTest(ChangeNotifier notifier) {
+        mChangeNotifier = notifier;
+    }
+
+    /**
+     * Sets code for bulkInsert() and applyBatch() to run just before their transaction
+     * commits, or null for none.
+     */
+    void setBeforeBatchCommitForTest(Runnable hook) {
+        mBeforeBatchCommit = hook;
+    }
 }
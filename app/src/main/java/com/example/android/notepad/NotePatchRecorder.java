@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+
+import java.util.ArrayList;
+
+/**
+ * Records the edits made to a note's text as patches for the provider's patch URI, so that
+ * saving a small edit to a large note sends only the edit. NoteEditor feeds it from its
+ * TextWatcher.
+ *
+ * <p>The provider counts patch offsets in code points, while text views count UTF-16 chars.
+ * The two agree until the text contains a character outside the Basic Multilingual Plane,
+ * so offsets are only converted once such a character has been seen.
+ *
+ * <p>Typing and backspacing at the end of the previous patch extend that patch instead of
+ * adding one. If there are too many patches, or an edit splits a surrogate pair, the
+ * recorder overflows, and the note has to be saved whole.
+ */
+class NotePatchRecorder {
+
+    // More patches than this are not worth sending one by one
+    private static final int MAX_PATCHES = 64;
+
+    private final ArrayList<Patch> mPatches = new ArrayList<Patch>();
+    private boolean mOverflowed;
+
+    // Whether the text may contain surrogate pairs, so that offsets need converting
+    private boolean mSupplementary;
+
+    // The code point length of the text about to be replaced, from beforeTextChanged()
+    private int mRemovedLength;
+
+    private static class Patch {
+        final int offset;
+        final int length;
+        final StringBuilder text;
+
+        // The length of text, in code points
+        int textLength;
+
+        Patch(int offset, int length, String text, int textLength) {
+            this.offset = offset;
+            this.length = length;
+            this.text = new StringBuilder(text);
+            this.textLength = textLength;
+        }
+    }
+
+    /**
+     * Forgets every patch, after the given text was saved whole or loaded.
+     */
+    void reset(CharSequence text) {
+        mPatches.clear();
+        mOverflowed = false;
+        mSupplementary = hasSurrogates(text, 0, text.length());
+    }
+
+    /**
+     * Returns true if the edits cannot be saved as patches.
+     */
+    boolean isOverflowed() {
+        return mOverflowed;
+    }
+
+    /**
+     * Called from {@link android.text.TextWatcher#beforeTextChanged}.
+     */
+    void beforeTextChanged(CharSequence s, int start, int count) {
+        if (mOverflowed) {
+            return;
+        }
+        if (splitsSurrogatePair(s, start) || splitsSurrogatePair(s, start + count)) {
+            mOverflowed = true;
+            return;
+        }
+        mRemovedLength = mSupplementary
+                ? Character.codePointCount(s, start, start + count)
+                : count;
+    }
+
+    /**
+     * Called from {@link android.text.TextWatcher#onTextChanged}.
+     */
+    void onTextChanged(CharSequence s, int start, int count) {
+        if (mOverflowed) {
+            return;
+        }
+
+        String inserted = s.subSequence(start, start + count).toString();
+        if (!mSupplementary && hasSurrogates(inserted, 0, count)) {
+            mSupplementary = true;
+        }
+
+        // The text before start is not part of this edit, so it counts the same either way
+        int offset = mSupplementary ? Character.codePointCount(s, 0, start) : start;
+        int insertedLength = mSupplementary
+                ? Character.codePointCount(inserted, 0, count)
+                : count;
+
+        Patch last = mPatches.isEmpty() ? null : mPatches.get(mPatches.size() - 1);
+        if (last != null && offset + mRemovedLength == last.offset + last.textLength) {
+            if (mRemovedLength == 0) {
+                // Typing at the end of the last patch
+                last.text.append(inserted);
+                last.textLength += insertedLength;
+                return;
+            }
+            if (insertedLength == 0 && mRemovedLength <= last.textLength) {
+                // Backspacing over text the last patch inserted
+                int cut = last.text.offsetByCodePoints(last.text.length(), -mRemovedLength);
+                last.text.setLength(cut);
+                last.textLength -= mRemovedLength;
+                return;
+            }
+        }
+
+        if (mPatches.size() == MAX_PATCHES) {
+            mOverflowed = true;
+            mPatches.clear();
+            return;
+        }
+        mPatches.add(new Patch(offset, mRemovedLength, inserted, insertedLength));
+    }
+
+    /**
+     * Returns the recorded patches as values for the provider's patch URI, oldest first, and
+     * forgets them.
+     */
+    ArrayList<ContentValues> takePatches() {
+        ArrayList<ContentValues> patches = new ArrayList<ContentValues>(mPatches.size());
+        long now = System.currentTimeMillis();
+        for (Patch patch : mPatches) {
+            ContentValues values = new ContentValues();
+            values.put(NotePad.Notes.PATCH_OFFSET, patch.offset);
+            values.put(NotePad.Notes.PATCH_LENGTH, patch.length);
+            values.put(NotePad.Notes.PATCH_TEXT, patch.text.toString());
+            values.put(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, now);
+            patches.add(values);
+        }
+        mPatches.clear();
+        return patches;
+    }
+
+    private static boolean splitsSurrogatePair(CharSequence s, int index) {
+        return index > 0 && index < s.length()
+                && Character.isHighSurrogate(s.charAt(index - 1))
+                && Character.isLowSurrogate(s.charAt(index));
+    }
+
+    private static boolean hasSurrogates(CharSequence s, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (Character.isSurrogate(s.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Writes notes to the provider on a single background thread, so that saving never blocks
+ * the UI thread. Saves of the same note that are still waiting to be written are merged, so
+ * the provider only sees the latest version of each note.
+ *
+ * <p>There is one queue per process, returned by {@link #getInstance(Context)}, so writes
+ * queued by an activity carry on in the background after it is gone. NoteEditor queues its
+ * last save when it pauses and never waits for it, since waiting would block the UI thread.
+ */
+class NoteSaveQueue {
+
+    // For logging and debugging
+    private static final String TAG = "NoteSaveQueue";
+
+    private static NoteSaveQueue sInstance;
+
+    private final ContentResolver mResolver;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, TAG);
+                }
+            });
+
+    // The writes waiting for the writer thread, by note URI, oldest first
+    private final LinkedHashMap<Uri, PendingWrite> mPending =
+            new LinkedHashMap<Uri, PendingWrite>();
+    private boolean mDraining;
+
+    // The notes whose text failed to be written. Their edits are lost, so later patches would
+    // apply to the wrong text; they are dropped until the note is saved whole.
+    private final HashSet<Uri> mTextFailed = new HashSet<Uri>();
+
+    // Saves requested, saves merged into an earlier pending save, and writes performed
+    private long mSaveCount;
+    private long mCoalescedCount;
+    private long mWriteCount;
+
+    /**
+     * Everything waiting to be written to one note. The values are written first, then the
+     * patches in order, since patches are always relative to the text saved before them.
+     */
+    private static class PendingWrite {
+        ContentValues values;
+        final ArrayList<ContentValues> patches = new ArrayList<ContentValues>();
+        boolean delete;
+    }
+
+    private final Runnable mDrainRunnable = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Returns the queue for this process.
+     */
+    static synchronized NoteSaveQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new NoteSaveQueue(
+                    context.getApplicationContext().getContentResolver());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Creates a queue that writes through the given resolver. Tests use this to write to a
+     * mock provider; the app uses {@link #getInstance(Context)}.
+     */
+    NoteSaveQueue(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    /**
+     * Queues an update of the note. If an update of the same note is still waiting, the two
+     * are merged, with these values taking precedence.
+     */
+    void save(Uri noteUri, ContentValues values) {
+        synchronized (this) {
+            PendingWrite write = pendingWrite(noteUri);
+            if (write == null) {
+                return;
+            }
+
+            // New text for the note makes the patches waiting before it irrelevant
+            if (values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)) {
+                write.patches.clear();
+                mTextFailed.remove(noteUri);
+            }
+            if (write.values == null) {
+                write.values = new ContentValues(values);
+            } else {
+                write.values.putAll(values);
+            }
+        }
+        startDraining();
+    }
+
+    /**
+     * Queues patches to the note's text, as values for its patch URI, see
+     * {@link NotePad.Notes#PATH_SEGMENT_PATCH}. They are applied after anything already
+     * queued for the note, in a single transaction. Patches are dropped while
+     * {@link #needsWholeSave(Uri)} is true.
+     */
+    void patch(Uri noteUri, ArrayList<ContentValues> patches) {
+        if (patches.isEmpty()) {
+            return;
+        }
+        synchronized (this) {
+            if (mTextFailed.contains(noteUri)) {
+                return;
+            }
+            PendingWrite write = pendingWrite(noteUri);
+            if (write == null) {
+                return;
+            }
+            write.patches.addAll(patches);
+        }
+        startDraining();
+    }
+
+    /**
+     * Queues a delete of the note, replacing any update of it that is still waiting.
+     */
+    void delete(Uri noteUri) {
+        synchronized (this) {
+            PendingWrite write = pendingWrite(noteUri);
+            if (write == null) {
+                return;
+            }
+            write.delete = true;
+            write.values = null;
+            write.patches.clear();
+        }
+        startDraining();
+    }
+
+    /**
+     * Counts a save, and returns the pending write it should be added to, or null if the note
+     * is about to be deleted. Must be called while holding the lock.
+     */
+    private PendingWrite pendingWrite(Uri noteUri) {
+        mSaveCount++;
+        PendingWrite write = mPending.get(noteUri);
+        if (write == null) {
+            write = new PendingWrite();
+            mPending.put(noteUri, write);
+            return write;
+        }
+
+        mCoalescedCount++;
+        return write.delete ? null : write;
+    }
+
+    /**
+     * Waits until every write queued before this call has been made.
+     *
+     * @param timeoutMillis how long to wait at most
+     * @return true if the writes were made, false if the wait timed out or was interrupted
+     */
+    boolean flush(long timeoutMillis) {
+        try {
+            // The executor runs tasks in order, so this runs after any drain already queued
+            mExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get(timeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            Log.w(TAG, "Unable to flush queued saves", e);
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if a write of the note's text failed since it was last saved whole. The
+     * edits that write carried are lost, so the caller has to save the whole text again.
+     */
+    synchronized boolean needsWholeSave(Uri noteUri) {
+        return mTextFailed.contains(noteUri);
+    }
+
+    synchronized long getSaveCount() {
+        return mSaveCount;
+    }
+
+    synchronized long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+
+    synchronized long getWriteCount() {
+        return mWriteCount;
+    }
+
+    /**
+     * Writes the values and patches of one note in a single batch, so that the note is never
+     * left with only some of its patches applied.
+     */
+    private void applyPatches(Uri noteUri, PendingWrite write)
+            throws RemoteException, OperationApplicationException {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        if (write.values != null) {
+            operations.add(ContentProviderOperation.newUpdate(noteUri)
+                    .withValues(write.values)
+                    .build());
+        }
+
+        Uri patchUri = Uri.withAppendedPath(noteUri, NotePad.Notes.PATH_SEGMENT_PATCH);
+        for (ContentValues patch : write.patches) {
+            operations.add(ContentProviderOperation.newUpdate(patchUri)
+                    .withValues(patch)
+                    .build());
+        }
+        mResolver.applyBatch(noteUri.getAuthority(), operations);
+    }
+
+    private void startDraining() {
+        synchronized (this) {
+            if (mDraining) {
+                return;
+            }
+            mDraining = true;
+        }
+        mExecutor.execute(mDrainRunnable);
+    }
+
+    /**
+     * Makes the pending writes one at a time, oldest first, until none are left. Runs on the
+     * writer thread. The lock is only held to take a write, so saves queued meanwhile never
+     * wait for the provider.
+     */
+    private void drain() {
+        while (true) {
+            Uri noteUri;
+            PendingWrite write;
+            synchronized (this) {
+                Iterator<Map.Entry<Uri, PendingWrite>> oldest = mPending.entrySet().iterator();
+                if (!oldest.hasNext()) {
+                    mDraining = false;
+                    return;
+                }
+                Map.Entry<Uri, PendingWrite> entry = oldest.next();
+                oldest.remove();
+                noteUri = entry.getKey();
+                write = entry.getValue();
+                mWriteCount++;
+            }
+
+            try {
+                if (write.delete) {
+                    mResolver.delete(noteUri, null, null);
+                } else if (write.patches.isEmpty()) {
+                    mResolver.update(noteUri, write.values, null, null);
+                } else {
+                    applyPatches(noteUri, write);
+                }
+            } catch (RuntimeException | RemoteException | OperationApplicationException e) {
+                // One failed write must not stop the writes queued behind it
+                Log.e(TAG, "Unable to write " + noteUri, e);
+                if (!write.delete && (!write.patches.isEmpty() || (write.values != null
+                        && write.values.containsKey(NotePad.Notes.COLUMN_NAME_NOTE)))) {
+                    textFailed(noteUri);
+                }
+            }
+        }
+    }
+
+    /**
+     * Records that the note's text failed to be written, and drops the patches queued for it
+     * since, which were made relative to the lost edits.
+     */
+    private synchronized void textFailed(Uri noteUri) {
+        mTextFailed.add(noteUri);
+        PendingWrite write = mPending.get(noteUri);
+        if (write != null) {
+            write.patches.clear();
+        }
+    }
+}
@@ -25,10 +25,16 @@ import android.content.ComponentName;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
+import android.database.CharArrayBuffer;
+import android.database.ContentObserver;
 import android.database.Cursor;
+import android.database.MergeCursor;
 import android.net.Uri;
 import android.os.Bundle;
-import android.text.format.DateFormat;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.OperationCanceledException;
+import android.text.TextUtils;
 import android.util.Log;
 import android.view.ContextMenu;
 import android.view.Menu;
@@ -37,36 +43,120 @@ import android.view.MenuItem;
 import android.view.SubMenu;
 import android.view.View;
 import android.view.ContextMenu.ContextMenuInfo;
+import android.widget.AbsListView;
 import android.widget.AdapterView;
 import android.widget.ListView;
 import android.widget.SearchView;
-import android.widget.SimpleCursorAdapter;
-import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class NotesList extends ListActivity {
 
     // For logging and debugging
     private static final String TAG = "NotesList";
 
-    // The columns needed by the cursor adapter
+    // The columns needed by the cursor adapter. The list never reads the note itself, only
+    // its snippet, so note bodies stay out of the cursor window.
     private static final String[] PROJECTION = new String[] {
             NotePad.Notes._ID, // 0
             NotePad.Notes.COLUMN_NAME_TITLE, // 1
-            NotePad.Notes.COLUMN_NAME_NOTE, // 2
+            NotePad.Notes.COLUMN_NAME_SNIPPET, // 2
             NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, // 3
 
     };
 
+    // The columns of search results, which add how relevant each note is and the extract
+    // of it that the adapter shows with the matches highlighted
+    private static final String[] SEARCH_PROJECTION = new String[] {
+            NotePad.Notes._ID, // 0
+            NotePad.Notes.COLUMN_NAME_TITLE, // 1
+            NotePad.Notes.COLUMN_NAME_SNIPPET, // 2
+            NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE, // 3
+            NotePad.Notes.COLUMN_NAME_RELEVANCE, // 4
+            NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET, // 5
+    };
+
     /** The index of the title column */
     private static final int COLUMN_INDEX_TITLE = 1;
-    private static final int COLUMN_INDEX_CONTENT = 2;
     private static final int COLUMN_INDEX_MODIFICATION_DATE = 3;
+    private static final int COLUMN_INDEX_RELEVANCE = 4;
+
+    // Number of notes loaded at a time as the list scrolls
+    private static final int PAGE_SIZE = 50;
 
+    // How long the search text has to stay unchanged before it is searched for
+    private static final long SEARCH_DELAY_MILLIS = 250;
 
-    private SimpleCursorAdapter adapter;
-    private Cursor currentCursor;
+    // How long a change to the notes waits for others to join it before the list reloads.
+    // The provider sends one notification per changed note, so a burst of writes arrives
+    // as many notifications at once.
+    private static final long RELOAD_DELAY_MILLIS = ChangeNotifier.WINDOW_MILLIS;
+
+    private NotesListAdapter adapter;
     private boolean sortByTitle = true;  // 初始排序方式：按标题排序
 
+    // The URI the list pages through: the notes URI, or a search URI while searching
+    private Uri listUri;
+
+    // Whether the list shows the results of a search, most relevant first
+    private boolean searching;
+
+    // The pages loaded so far, in list order. The adapter shows them as one MergeCursor.
+    private final ArrayList<Cursor> pages = new ArrayList<Cursor>();
+    private boolean lastPageLoaded;
+
+    // The keys of every row in pages, which reloads are diffed against
+    private NotesListAdapter.RowKeys rowKeys = NotesListAdapter.RowKeys.EMPTY;
+
+    // The page key of the last loaded note, see NotePad.Notes.PAGE_AFTER_PARAMETER
+    private String nextPageKey;
+
+    // Runs every provider query for the list, one at a time, off the main thread
+    private final ExecutorService queryExecutor = Executors.newSingleThreadExecutor();
+
+    // Delivers query results back to the main thread
+    private final Handler mainHandler = new Handler();
+
+    // Incremented every time the list is reloaded from the top. Pages from an older
+    // generation arrive after the list they belonged to was replaced, and are dropped.
+    private int loadGeneration;
+    private boolean pageLoading;
+
+    // Cancels the most recently started query. Reloading the list cancels it, so a search the
+    // user has typed past stops running in SQLite instead of finishing unseen.
+    private CancellationSignal querySignal;
+
+    // The search text waiting for SEARCH_DELAY_MILLIS of quiet before it is searched for
+    private String pendingSearch;
+    private final Runnable searchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            filterNotes(pendingSearch);
+        }
+    };
+
+    // Reloads the loaded part of the list when notes change, once for all the changes
+    // notified within RELOAD_DELAY_MILLIS of the first
+    private boolean reloadScheduled;
+    private final Runnable reloadRunnable = new Runnable() {
+        @Override
+        public void run() {
+            reloadScheduled = false;
+            loadNotes(Math.max(PAGE_SIZE, adapter.getCount()));
+        }
+    };
+    private final ContentObserver notesObserver = new ContentObserver(mainHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            if (!reloadScheduled) {
+                reloadScheduled = true;
+                mainHandler.postDelayed(reloadRunnable, RELOAD_DELAY_MILLIS);
+            }
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -80,72 +170,256 @@ public class NotesList extends ListActivity {
 
         getListView().setOnCreateContextMenuListener(this);
 
+        // Loads the next page when the user scrolls within half a page of the end
+        getListView().setOnScrollListener(new AbsListView.OnScrollListener() {
+            @Override
+            public void onScrollStateChanged(AbsListView view, int scrollState) {
+            }
+
+            @Override
+            public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount,
+                    int totalItemCount) {
+                if (!lastPageLoaded && !pageLoading && !pages.isEmpty()
+                        && firstVisibleItem + visibleItemCount >= totalItemCount - PAGE_SIZE / 2) {
+                    loadNextPage();
+                }
+            }
+        });
+
+        listUri = getIntent().getData();
+
         // Initialize the cursor adapter
         setupAdapter();
+        loadNotes(PAGE_SIZE);
+
+        getContentResolver().registerContentObserver(NotePad.Notes.CONTENT_URI, true,
+                notesObserver);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        getContentResolver().unregisterContentObserver(notesObserver);
+        mainHandler.removeCallbacks(searchRunnable);
+        mainHandler.removeCallbacks(reloadRunnable);
+        if (querySignal != null) {
+            querySignal.cancel();
+        }
+        queryExecutor.shutdown();
+        adapter.swapCursor(null);
+        closePages();
     }
 
     /**
      * Method to set up the adapter
      */
     private void setupAdapter() {
+        adapter = new NotesListAdapter(this);
+        setListAdapter(adapter);
+    }
+
+    /**
+     * Replaces the contents of the list with a single page holding the first rowCount notes.
+     * The query runs in the background; the current contents stay on screen until it is done.
+     */
+    private void loadNotes(int rowCount) {
+        if (querySignal != null) {
+            querySignal.cancel();
+        }
+        loadGeneration++;
+        startPageQuery(rowCount, null);
+    }
+
+    /**
+     * Appends the page that follows the last loaded note.
+     */
+    private void loadNextPage() {
+        if (nextPageKey == null) {
+            lastPageLoaded = true;
+            return;
+        }
+        startPageQuery(PAGE_SIZE, nextPageKey);
+    }
+
+    /**
+     * Queries one page on the query executor, and hands it to {@link #onPageLoaded} on the
+     * main thread. A null page key starts from the top of the list and replaces what is
+     * shown; otherwise the page is appended.
+     */
+    private void startPageQuery(final int pageSize, final String after) {
+        final int generation = loadGeneration;
+        final Uri uri = listUri;
+        final boolean byTitle = sortByTitle;
+        final boolean byRelevance = searching;
+        final NotesListAdapter.RowKeys shownKeys = rowKeys;
+        final CancellationSignal signal = new CancellationSignal();
+        querySignal = signal;
+        pageLoading = true;
+
+        queryExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Cursor result = null;
+                int rows;
+                try {
+                    result = queryPage(uri, byTitle, byRelevance, pageSize, after, signal);
+
+                    // Runs the query and fills the cursor window here rather than on first
+                    // use, so the cancellation signal also covers reading the rows.
+                    rows = result.getCount();
+                } catch (OperationCanceledException e) {
+                    // A newer load replaced this one, and will deliver its own result
+                    if (result != null) {
+                        result.close();
+                    }
+                    return;
+                }
+                final Cursor page = result;
+                final int count = rows;
+
+                // Reads the key of the page that would follow this one
+                String key = null;
+                if (page.moveToLast()) {
+                    String sortKey;
+                    if (byRelevance) {
+                        sortKey = Double.toString(page.getDouble(COLUMN_INDEX_RELEVANCE));
+                    } else if (byTitle) {
+                        sortKey = page.getString(COLUMN_INDEX_TITLE);
+                    } else {
+                        sortKey = Long.toString(page.getLong(COLUMN_INDEX_MODIFICATION_DATE));
+                    }
+                    key = sortKey + "," + page.getLong(0);
+                }
+                page.moveToPosition(-1);
+
+                // Diffs a reload against the rows on screen here, off the main thread
+                final NotesListAdapter.RowKeys keys = NotesListAdapter.RowKeys.read(page);
+                final int[] changed = after == null ? keys.changedPositions(shownKeys) : null;
+
+                final String pageKey = key;
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onPageLoaded(generation, after == null, page, count < pageSize, pageKey,
+                                keys, changed);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Shows a page loaded by {@link #startPageQuery}, unless the list was reloaded or the
+     * activity destroyed while it was loading. When a reload has as many rows as the list
+     * already shows, only the visible rows listed in changed are rebound; editing one note
+     * then rebinds one row rather than the whole screen.
+     */
+    private void onPageLoaded(int generation, boolean replace, Cursor page, boolean last,
+            String pageKey, NotesListAdapter.RowKeys keys, int[] changed) {
+        if (generation != loadGeneration || isDestroyed()) {
+            page.close();
+            return;
+        }
+
+        pageLoading = false;
+        lastPageLoaded = last;
+
+        if (replace) {
+            // Swaps before closing, so the adapter never holds a closed cursor
+            ArrayList<Cursor> oldPages = new ArrayList<Cursor>(pages);
+            pages.clear();
+            pages.add(page);
+            nextPageKey = pageKey;
+            rowKeys = keys;
+            if (changed != null && adapter.getCursor() != null) {
+                adapter.swapCursorKeepingRows(page);
+                rebindRows(changed);
+            } else {
+                adapter.swapCursor(page);
+            }
+
+            for (Cursor oldPage : oldPages) {
+                oldPage.close();
+            }
+        } else {
+            if (pageKey != null) {
+                nextPageKey = pageKey;
+            }
+            pages.add(page);
+            rowKeys = rowKeys.append(keys);
+            adapter.swapCursor(new PagesCursor(pages.toArray(new Cursor[pages.size()])));
+        }
+    }
+
+    /**
+     * Queries one page of at most pageSize notes from the given list URI, starting after the
+     * given page key, or from the top of the list if the key is null. Search results are
+     * sorted by relevance. Called on the query executor, so it must not touch the activity's
+     * fields.
+     */
+    private Cursor queryPage(Uri uri, boolean byTitle, boolean byRelevance, int pageSize,
+            String after, CancellationSignal signal) {
+        Uri.Builder pageUri = uri.buildUpon()
+                .appendQueryParameter(NotePad.Notes.PAGE_SIZE_PARAMETER, Integer.toString(pageSize));
+        if (after != null) {
+            pageUri.appendQueryParameter(NotePad.Notes.PAGE_AFTER_PARAMETER, after);
+        }
+
         // 设置排序条件
-        String orderBy = sortByTitle ? NotePad.Notes.COLUMN_NAME_TITLE + " ASC" : NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " DESC";
+        String orderBy = byTitle ? NotePad.Notes.TITLE_SORT_ORDER : NotePad.Notes.DEFAULT_SORT_ORDER;
+        if (byRelevance) {
+            orderBy = NotePad.Notes.RELEVANCE_SORT_ORDER;
+        }
 
-        currentCursor = managedQuery(
-                getIntent().getData(),
-                PROJECTION,
+        return getContentResolver().query(
+                pageUri.build(),
+                byRelevance ? SEARCH_PROJECTION : PROJECTION,
                 null,
                 null,
-                orderBy
+                orderBy,
+                signal
         );
+    }
 
-        // The names of the cursor columns to display in the view
-        String[] dataColumns = { NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE };
-        int[] viewIDs = { android.R.id.text1, R.id.timestamp_text };
-
-        adapter = new SimpleCursorAdapter(
-                this,
-                R.layout.noteslist_item,
-                currentCursor,
-                dataColumns,
-                viewIDs
-        ) {
-            @Override
-            public void bindView(View view, Context context, Cursor cursor) {
-                super.bindView(view, context, cursor);
-
-                // 获取时间戳并格式化
-                long modificationTimestamp = cursor.getLong(COLUMN_INDEX_MODIFICATION_DATE);
-                String formattedTimestamp = DateFormat.format("yyyy-MM-dd HH:mm:ss", modificationTimestamp).toString();
-
-                // 获取时间戳TextView并设置格式化后的时间戳
-                TextView timestampTextView = (TextView) view.findViewById(R.id.timestamp_text);
-                timestampTextView.setText(formattedTimestamp);
+    /**
+     * Rebinds the row views showing the given positions, which must be in increasing order.
+     * Positions that are not on screen are bound from the new cursor when scrolled to.
+     */
+    private void rebindRows(int[] positions) {
+        ListView listView = getListView();
+        int first = listView.getFirstVisiblePosition();
+        int childCount = listView.getChildCount();
+        for (int position : positions) {
+            int index = position - first;
+            if (index >= childCount) {
+                break;
             }
-        };
+            if (index >= 0) {
+                adapter.getView(position, listView.getChildAt(index), listView);
+            }
+        }
+    }
 
-        setListAdapter(adapter);
+    private void closePages() {
+        for (Cursor page : pages) {
+            page.close();
+        }
+        pages.clear();
     }
 
     /**
      * Method to filter the notes based on the query
      */
     private void filterNotes(String query) {
-        String selection = NotePad.Notes.COLUMN_NAME_TITLE + " LIKE ? OR " + NotePad.Notes.COLUMN_NAME_NOTE + " LIKE ?";
-        String[] selectionArgs = { "%" + query + "%", "%" + query + "%" };
+        // The provider matches the query against its full-text index
+        listUri = NotePad.Notes.SEARCH_URI.buildUpon()
+                .appendQueryParameter(NotePad.Notes.SEARCH_QUERY_PARAMETER, query)
+                .build();
 
-        // 设置排序条件
-        String orderBy = sortByTitle ? NotePad.Notes.COLUMN_NAME_TITLE + " ASC" : NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE + " DESC";
-
-        currentCursor = managedQuery(
-                getIntent().getData(),
-                PROJECTION,
-                selection,
-                selectionArgs,
-                orderBy
-        );
+        // An empty search shows the whole list, in the order the user chose
+        searching = query != null && TextUtils.getTrimmedLength(query) > 0;
 
-        adapter.changeCursor(currentCursor);
+        loadNotes(PAGE_SIZE);
     }
 
     /**
@@ -186,15 +460,19 @@ public class NotesList extends ListActivity {
         searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
             @Override
             public boolean onQueryTextSubmit(String query) {
-                // When query is submitted, filter notes
+                // When query is submitted, filter notes without waiting
+                mainHandler.removeCallbacks(searchRunnable);
                 filterNotes(query);
                 return true;
             }
 
             @Override
             public boolean onQueryTextChange(String newText) {
-                // As the user types, filter notes
-                filterNotes(newText);
+                // As the user types, filter notes once typing pauses. Each keystroke
+                // restarts the delay, so a burst of typing runs a single search.
+                pendingSearch = newText;
+                mainHandler.removeCallbacks(searchRunnable);
+                mainHandler.postDelayed(searchRunnable, SEARCH_DELAY_MILLIS);
                 return true;
             }
         });
@@ -217,14 +495,14 @@ public class NotesList extends ListActivity {
                 // Sort by title
                 if (!sortByTitle) {
                     sortByTitle = true;
-                    setupAdapter(); // Reload notes with the new sort order
+                    loadNotes(PAGE_SIZE); // Reload notes with the new sort order
                 }
                 return true;
             case R.id.menu_sort_by_date:
                 // Sort by modification date
                 if (sortByTitle) {
                     sortByTitle = false;
-                    setupAdapter(); // Reload notes with the new sort order
+                    loadNotes(PAGE_SIZE); // Reload notes with the new sort order
                 }
                 return true;
             default:
@@ -366,4 +644,39 @@ public class NotesList extends ListActivity {
             startActivity(new Intent(Intent.ACTION_EDIT, uri));
         }
     }
+
+    /**
+     * The cursor the adapter shows once more than one page is loaded. MergeCursor reads
+     * strings through getString(), so copyStringToBuffer() would allocate a String per call;
+     * this copies straight from the page the merged cursor is on.
+     */
+    private static class PagesCursor extends MergeCursor {
+        private final Cursor[] mPages;
+        private Cursor mCurrentPage;
+
+        PagesCursor(Cursor[] pages) {
+            super(pages);
+            mPages = pages;
+        }
+
+        @Override
+        public boolean onMove(int oldPosition, int newPosition) {
+            mCurrentPage = null;
+            int pageStart = 0;
+            for (Cursor page : mPages) {
+                int count = page.getCount();
+                if (newPosition < pageStart + count) {
+                    mCurrentPage = page;
+                    break;
+                }
+                pageStart += count;
+            }
+            return super.onMove(oldPosition, newPosition);
+        }
+
+        @Override
+        public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+            mCurrentPage.copyStringToBuffer(columnIndex, buffer);
+        }
+    }
 }
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.Context;
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.graphics.Color;
+import android.graphics.Typeface;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.StyleSpan;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.CursorAdapter;
+import android.widget.TextView;
+
+import java.util.Arrays;
+import java.util.Calendar;
+
+/**
+ * The adapter for the rows of NotesList. Binding a row runs on every scroll frame, so once
+ * the list has created its row views, bindView() allocates nothing. Each row keeps its views
+ * and text buffers in a {@link ViewHolder}. Titles are copied out of the cursor window into
+ * a reused buffer rather than read as Strings, and timestamps are formatted by hand into
+ * another one. Search results are the exception: each row also shows its match snippet, with
+ * the matches highlighted, which is built as it is bound.
+ */
+class NotesListAdapter extends CursorAdapter {
+
+    private final LayoutInflater mInflater;
+    private final TimestampFormatter mFormatter = new TimestampFormatter();
+
+    // Column indexes in the current cursor, looked up once per cursor rather than per row
+    private int mTitleColumn;
+    private int mModificationDateColumn;
+
+    // The match snippet column of search results, or -1 if the cursor is not a search
+    private int mMatchSnippetColumn;
+
+    /**
+     * The views of one row, and the buffers their text is read from. A TextView keeps a
+     * reference to the chars it was given, so every row needs buffers of its own.
+     */
+    static class ViewHolder {
+        TextView title;
+        TextView timestamp;
+        TextView matchSnippet;
+        final CharArrayBuffer titleBuffer = new CharArrayBuffer(64);
+        final char[] timestampBuffer = new char[TimestampFormatter.LENGTH];
+    }
+
+    NotesListAdapter(Context context) {
+        // The adapter does not requery by itself; NotesList reloads the pages instead
+        super(context, null, 0);
+        mInflater = LayoutInflater.from(context);
+    }
+
+    @Override
+    public Cursor swapCursor(Cursor newCursor) {
+        if (newCursor != null) {
+            findColumns(newCursor);
+        }
+        return super.swapCursor(newCursor);
+    }
+
+    /**
+     * Swaps in a cursor with the same number of rows as the current one, without notifying
+     * the list. A notification would make the list rebind every visible row; instead the
+     * caller rebinds only the rows that {@link RowKeys#changedPositions} reports.
+     *
+     * @return the old cursor, which the caller closes
+     */
+    Cursor swapCursorKeepingRows(Cursor newCursor) {
+        if (mCursor == null || newCursor.getCount() != mCursor.getCount()) {
+            throw new IllegalArgumentException("The new cursor has a different row count");
+        }
+        findColumns(newCursor);
+        Cursor oldCursor = mCursor;
+        mCursor = newCursor;
+        mRowIDColumn = newCursor.getColumnIndexOrThrow(NotePad.Notes._ID);
+        mDataValid = true;
+        return oldCursor;
+    }
+
+    private void findColumns(Cursor cursor) {
+        mTitleColumn = cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_TITLE);
+        mModificationDateColumn = cursor.getColumnIndexOrThrow(
+                NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+        mMatchSnippetColumn = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET);
+    }
+
+    @Override
+    public View newView(Context context, Cursor cursor, ViewGroup parent) {
+        View view = mInflater.inflate(R.layout.noteslist_item, parent, false);
+        ViewHolder holder = new ViewHolder();
+        holder.title = (TextView) view.findViewById(android.R.id.text1);
+        holder.timestamp = (TextView) view.findViewById(R.id.timestamp_text);
+        holder.matchSnippet = (TextView) view.findViewById(R.id.match_snippet_text);
+        view.setTag(holder);
+        return view;
+    }
+
+    @Override
+    public void bindView(View view, Context context, Cursor cursor) {
+        ViewHolder holder = (ViewHolder) view.getTag();
+
+        cursor.copyStringToBuffer(mTitleColumn, holder.titleBuffer);
+        holder.title.setText(holder.titleBuffer.data, 0, holder.titleBuffer.sizeCopied);
+
+        mFormatter.format(cursor.getLong(mModificationDateColumn), holder.timestampBuffer);
+        holder.timestamp.setText(holder.timestampBuffer, 0, TimestampFormatter.LENGTH);
+
+        if (mMatchSnippetColumn >= 0) {
+            holder.matchSnippet.setText(highlightMatches(cursor.getString(mMatchSnippetColumn)));
+            holder.matchSnippet.setVisibility(View.VISIBLE);
+        } else {
+            holder.matchSnippet.setVisibility(View.GONE);
+        }
+    }
+
+    /**
+     * Returns a match snippet with its match markers removed, and each match in bold white.
+     * See {@link NotePad.Notes#COLUMN_NAME_MATCH_SNIPPET}.
+     */
+    static CharSequence highlightMatches(String snippet) {
+        SpannableStringBuilder text = new SpannableStringBuilder();
+        if (snippet == null) {
+            return text;
+        }
+
+        int position = 0;
+        while (position < snippet.length()) {
+            int start = snippet.indexOf(NotePad.Notes.MATCH_START, position);
+            if (start < 0) {
+                break;
+            }
+            int end = snippet.indexOf(NotePad.Notes.MATCH_END, start);
+            if (end < 0) {
+                break;
+            }
+            text.append(snippet, position, start);
+            int matchStart = text.length();
+            text.append(snippet, start + NotePad.Notes.MATCH_START.length(), end);
+            text.setSpan(new StyleSpan(Typeface.BOLD), matchStart, text.length(),
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            text.setSpan(new ForegroundColorSpan(Color.WHITE), matchStart, text.length(),
+                    Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            position = end + NotePad.Notes.MATCH_END.length();
+        }
+        text.append(snippet, position, snippet.length());
+        return text;
+    }
+
+    /**
+     * Formats times as "yyyy-MM-dd HH:mm:ss" in the default time zone, into a caller-supplied
+     * buffer. The date and time up to the minute are computed once per minute and reused, so
+     * rows modified in the same minute only cost the seconds.
+     */
+    static class TimestampFormatter {
+
+        // The length of a formatted timestamp
+        static final int LENGTH = 19;
+
+        private static final long MINUTE_MILLIS = 60 * 1000;
+
+        private final Calendar mCalendar = Calendar.getInstance();
+
+        // The start of the minute held in mMinuteChars, or -1 if nothing is cached yet
+        private long mMinuteStart = -1;
+        private final char[] mMinuteChars = new char[LENGTH];
+
+        void format(long millis, char[] out) {
+            long intoMinute = millis % MINUTE_MILLIS;
+            if (intoMinute < 0) {
+                intoMinute += MINUTE_MILLIS;
+            }
+            long minuteStart = millis - intoMinute;
+            if (minuteStart != mMinuteStart) {
+                mCalendar.setTimeInMillis(millis);
+                writeDigits(mMinuteChars, 0, 4, mCalendar.get(Calendar.YEAR));
+                mMinuteChars[4] = '-';
+                writeDigits(mMinuteChars, 5, 2, mCalendar.get(Calendar.MONTH) + 1);
+                mMinuteChars[7] = '-';
+                writeDigits(mMinuteChars, 8, 2, mCalendar.get(Calendar.DAY_OF_MONTH));
+                mMinuteChars[10] = ' ';
+                writeDigits(mMinuteChars, 11, 2, mCalendar.get(Calendar.HOUR_OF_DAY));
+                mMinuteChars[13] = ':';
+                writeDigits(mMinuteChars, 14, 2, mCalendar.get(Calendar.MINUTE));
+                mMinuteChars[16] = ':';
+                mMinuteStart = minuteStart;
+            }
+
+            System.arraycopy(mMinuteChars, 0, out, 0, LENGTH - 2);
+            writeDigits(out, LENGTH - 2, 2, (int) (intoMinute / 1000));
+        }
+
+        private static void writeDigits(char[] out, int offset, int count, int value) {
+            for (int i = offset + count - 1; i >= offset; i--) {
+                out[i] = (char) ('0' + value % 10);
+                value /= 10;
+            }
+        }
+    }
+
+    /**
+     * The identity of each row shown by the list: its note id, modification date and a hash
+     * of its title. The title is included because renaming a note from TitleEditor leaves the
+     * modification date alone. Keys are read on the query thread and never change afterwards,
+     * so they can be handed between threads freely.
+     */
+    static class RowKeys {
+
+        static final RowKeys EMPTY = new RowKeys(new long[0], new long[0], new int[0]);
+
+        private final long[] mIds;
+        private final long[] mModificationDates;
+        private final int[] mTitleHashes;
+
+        private RowKeys(long[] ids, long[] modificationDates, int[] titleHashes) {
+            mIds = ids;
+            mModificationDates = modificationDates;
+            mTitleHashes = titleHashes;
+        }
+
+        /**
+         * Reads the keys of every row of the cursor, and leaves it before the first row.
+         */
+        static RowKeys read(Cursor cursor) {
+            int idColumn = cursor.getColumnIndexOrThrow(NotePad.Notes._ID);
+            int titleColumn = cursor.getColumnIndexOrThrow(NotePad.Notes.COLUMN_NAME_TITLE);
+            int modificationDateColumn = cursor.getColumnIndexOrThrow(
+                    NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE);
+
+            int count = cursor.getCount();
+            long[] ids = new long[count];
+            long[] modificationDates = new long[count];
+            int[] titleHashes = new int[count];
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                int position = cursor.getPosition();
+                ids[position] = cursor.getLong(idColumn);
+                modificationDates[position] = cursor.getLong(modificationDateColumn);
+                String title = cursor.getString(titleColumn);
+                titleHashes[position] = title == null ? 0 : title.hashCode();
+            }
+            cursor.moveToPosition(-1);
+            return new RowKeys(ids, modificationDates, titleHashes);
+        }
+
+        int size() {
+            return mIds.length;
+        }
+
+        /**
+         * Returns the keys of these rows followed by the given rows.
+         */
+        RowKeys append(RowKeys rows) {
+            int size = mIds.length;
+            long[] ids = Arrays.copyOf(mIds, size + rows.mIds.length);
+            long[] modificationDates = Arrays.copyOf(mModificationDates, ids.length);
+            int[] titleHashes = Arrays.copyOf(mTitleHashes, ids.length);
+            System.arraycopy(rows.mIds, 0, ids, size, rows.mIds.length);
+            System.arraycopy(rows.mModificationDates, 0, modificationDates, size,
+                    rows.mModificationDates.length);
+            System.arraycopy(rows.mTitleHashes, 0, titleHashes, size, rows.mTitleHashes.length);
+            return new RowKeys(ids, modificationDates, titleHashes);
+        }
+
+        /**
+         * Returns the positions, in increasing order, whose row differs between the old keys
+         * and these. Returns null if the number of rows differs, in which case the whole list
+         * has to be refreshed.
+         */
+        int[] changedPositions(RowKeys old) {
+            int size = mIds.length;
+            if (old.mIds.length != size) {
+                return null;
+            }
+
+            int[] changed = new int[size];
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                if (mIds[i] != old.mIds[i]
+                        || mModificationDates[i] != old.mModificationDates[i]
+                        || mTitleHashes[i] != old.mTitleHashes[i]) {
+                    changed[count++] = i;
+                }
+            }
+            return Arrays.copyOf(changed, count);
+        }
+    }
+}
@@ -0,0 +1,567 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.graphics.Color;
+import android.text.TextUtils;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * A search typed by the user, parsed and compiled into a WHERE clause over the notes table.
+ * The language is described by {@link NotePad.Notes#SEARCH_URI}.
+ *
+ * <p>Words and phrases are matched by the full-text index. The words and phrases that every
+ * result must contain are joined into one MATCH expression, which can also rank the results;
+ * alternatives and exclusions become subqueries of the index of their own. Every value from
+ * the search is a bound argument rather than part of the SQL, so searches of the same shape,
+ * such as "budget OR title:draft" and "milk OR title:list", compile to the same SQL and reuse
+ * SQLite's prepared statement.
+ *
+ * <p>The parser never fails: unbalanced quotes and parentheses are closed at the end, dangling
+ * operators are ignored, and a field whose value cannot be read is searched as words. A
+ * compiled search is immutable, so the provider caches them by their text.
+ */
+final class SearchQuery {
+
+    // Token types
+    private static final int WORD = 0;
+    private static final int PHRASE = 1;
+    private static final int FIELD = 2;
+    private static final int OPEN = 3;
+    private static final int CLOSE = 4;
+    private static final int AND = 5;
+    private static final int OR = 6;
+    private static final int NOT = 7;
+
+    private static final String FIELD_TITLE = "title";
+    private static final String FIELD_COLOR = "color";
+    private static final String FIELD_BEFORE = "before";
+    private static final String FIELD_AFTER = "after";
+
+    private static final String DATE_FORMAT = "yyyy-MM-dd";
+
+    private final String[] mPlainTerms;
+    private final String mRankedMatch;
+    private final int mRankedPhraseCount;
+    private final String mFilterWhere;
+    private final String[] mFilterArgs;
+    private final String mWhere;
+    private final String[] mWhereArgs;
+
+    private SearchQuery(String[] plainTerms, Clause clause, String matchWhere) {
+        mPlainTerms = plainTerms;
+        if (clause.isEmpty()) {
+            mRankedMatch = null;
+            mRankedPhraseCount = 0;
+            mFilterWhere = null;
+            mFilterArgs = null;
+            mWhere = null;
+            mWhereArgs = null;
+            return;
+        }
+
+        mRankedMatch = clause.phrases.isEmpty() ? null : TextUtils.join(" ", clause.phrases);
+        mRankedPhraseCount = clause.phrases.size();
+        mFilterWhere = clause.conditions.isEmpty()
+                ? null : TextUtils.join(" AND ", clause.conditions);
+        mFilterArgs = clause.args.toArray(new String[clause.args.size()]);
+
+        ArrayList<String> args = new ArrayList<String>();
+        mWhere = clause.toSql(matchWhere, args);
+        mWhereArgs = args.toArray(new String[args.size()]);
+    }
+
+    /**
+     * Returns the key a compiled search is cached under: the search with runs of whitespace
+     * collapsed, which does not change its meaning
+     */
+    static String cacheKey(String query) {
+        return query == null ? "" : query.trim().replaceAll("\\s+", " ");
+    }
+
+    /**
+     * Parses and compiles a search.
+     *
+     * @param query the search typed by the user, may be null
+     * @param searchTable the full-text index over the normalized title and note columns
+     * @param fts5 whether the index is an FTS5 table; otherwise it is FTS4
+     */
+    static SearchQuery compile(String query, String searchTable, boolean fts5) {
+        String matchWhere = NotePad.Notes._ID + " IN (SELECT rowid FROM " + searchTable
+                + " WHERE " + searchTable + " MATCH ?)";
+        if (query == null) {
+            return new SearchQuery(new String[0], new Clause(), matchWhere);
+        }
+
+        Parser parser = new Parser(query, matchWhere, fts5);
+        Clause clause = parser.parseQuery();
+        return new SearchQuery(parser.mStructured ? null : SearchText.terms(query), clause,
+                matchWhere);
+    }
+
+    /**
+     * Returns the MATCH expression for one search term: a prefix term, or for a run of
+     * ideographs the phrase of them, since each of them is a whole word in the index
+     */
+    static String matchTerm(String term) {
+        if (SearchText.isPhrase(term)) {
+            return '"' + SearchText.phraseWords(term) + '"';
+        }
+        return term + '*';
+    }
+
+    /**
+     * Returns whether the search has no conditions, and so matches every note
+     */
+    boolean isEmpty() {
+        return mWhere == null;
+    }
+
+    /**
+     * Returns the terms of a search that is only words, which all have to match, or null if
+     * the search uses any of the rest of the language
+     */
+    String[] plainTerms() {
+        return mPlainTerms;
+    }
+
+    /**
+     * Returns the MATCH expression of the words and phrases that every result contains, which
+     * the results can be ranked by, or null if there are none
+     */
+    String rankedMatch() {
+        return mRankedMatch;
+    }
+
+    /**
+     * Returns the number of phrases in {@link #rankedMatch()}
+     */
+    int rankedPhraseCount() {
+        return mRankedPhraseCount;
+    }
+
+    /**
+     * Returns the conditions of the search besides {@link #rankedMatch()}, or null if there are
+     * none. Its arguments are {@link #filterArgs()}.
+     */
+    String filterWhere() {
+        return mFilterWhere;
+    }
+
+    String[] filterArgs() {
+        return mFilterArgs;
+    }
+
+    /**
+     * Returns the whole search as a WHERE clause, or null if it matches every note. Its
+     * arguments are {@link #whereArgs()}.
+     */
+    String where() {
+        return mWhere;
+    }
+
+    String[] whereArgs() {
+        return mWhereArgs;
+    }
+
+    /**
+     * The compiled form of part of a search: the phrases and conditions that must all hold
+     */
+    private static final class Clause {
+        // Phrases for the full-text index, joined into a single MATCH expression
+        final ArrayList<String> phrases = new ArrayList<String>();
+
+        // Other conditions, and the arguments of their placeholders in order
+        final ArrayList<String> conditions = new ArrayList<String>();
+        final ArrayList<String> args = new ArrayList<String>();
+
+        boolean isEmpty() {
+            return phrases.isEmpty() && conditions.isEmpty();
+        }
+
+        Clause and(Clause other) {
+            phrases.addAll(other.phrases);
+            conditions.addAll(other.conditions);
+            args.addAll(other.args);
+            return this;
+        }
+
+        /**
+         * Returns the clause as a single condition, and adds its arguments to args
+         */
+        String toSql(String matchWhere, ArrayList<String> outArgs) {
+            ArrayList<String> all = new ArrayList<String>();
+            if (!phrases.isEmpty()) {
+                all.add(matchWhere);
+                outArgs.add(TextUtils.join(" ", phrases));
+            }
+            all.addAll(conditions);
+            outArgs.addAll(args);
+            return all.size() == 1 ? all.get(0) : "(" + TextUtils.join(" AND ", all) + ")";
+        }
+    }
+
+    private static final class Token {
+        final int type;
+        final String text;
+
+        // For a field, its value, and whether the value was quoted
+        final String value;
+        final boolean quoted;
+
+        Token(int type, String text, String value, boolean quoted) {
+            this.type = type;
+            this.text = text;
+            this.value = value;
+            this.quoted = quoted;
+        }
+    }
+
+    /**
+     * A recursive descent parser over the tokens of a search. NOT binds tightest, then AND,
+     * which is also implied between terms, then OR.
+     */
+    private static final class Parser {
+        private final ArrayList<Token> mTokens = new ArrayList<Token>();
+        private final String mMatchWhere;
+        private final boolean mFts5;
+        private int mPosition;
+
+        // Whether the search uses anything besides words
+        boolean mStructured;
+
+        Parser(String query, String matchWhere, boolean fts5) {
+            mMatchWhere = matchWhere;
+            mFts5 = fts5;
+            tokenize(query);
+        }
+
+        private void tokenize(String query) {
+            int length = query.length();
+            int i = 0;
+            while (i < length) {
+                char ch = query.charAt(i);
+                if (Character.isWhitespace(ch)) {
+                    i++;
+                } else if (ch == '(' || ch == ')') {
+                    add(ch == '(' ? OPEN : CLOSE, null, null, false);
+                    i++;
+                } else if (ch == '"') {
+                    int end = closingQuote(query, i);
+                    add(PHRASE, query.substring(i + 1, end), null, false);
+                    i = Math.min(end + 1, length);
+                } else if (ch == '-' && i + 1 < length
+                        && !Character.isWhitespace(query.charAt(i + 1))) {
+                    add(NOT, null, null, false);
+                    i++;
+                } else {
+                    int end = i;
+                    while (end < length && !Character.isWhitespace(query.charAt(end))
+                            && "()\"".indexOf(query.charAt(end)) < 0) {
+                        end++;
+                    }
+                    String word = query.substring(i, end);
+                    i = end;
+
+                    int colon = word.indexOf(':');
+                    String field = colon > 0 ? word.substring(0, colon).toLowerCase(Locale.ROOT)
+                            : null;
+                    if ("AND".equals(word) || "OR".equals(word) || "NOT".equals(word)) {
+                        add("AND".equals(word) ? AND : "OR".equals(word) ? OR : NOT, null, null,
+                                false);
+                    } else if (FIELD_TITLE.equals(field) || FIELD_COLOR.equals(field)
+                            || FIELD_BEFORE.equals(field) || FIELD_AFTER.equals(field)) {
+                        String value = word.substring(colon + 1);
+                        boolean quoted = false;
+                        if (value.length() == 0 && i < length && query.charAt(i) == '"') {
+                            int close = closingQuote(query, i);
+                            value = query.substring(i + 1, close);
+                            quoted = true;
+                            i = Math.min(close + 1, length);
+                        }
+                        add(FIELD, field, value, quoted);
+                    } else {
+                        add(WORD, word, null, false);
+                    }
+                }
+            }
+        }
+
+        // Returns the index of the quote that closes the one at start, or the end of the text
+        private static int closingQuote(String query, int start) {
+            int end = query.indexOf('"', start + 1);
+            return end < 0 ? query.length() : end;
+        }
+
+        private void add(int type, String text, String value, boolean quoted) {
+            mTokens.add(new Token(type, text, value, quoted));
+            if (type != WORD) {
+                mStructured = true;
+            }
+        }
+
+        private int peek() {
+            return mPosition < mTokens.size() ? mTokens.get(mPosition).type : -1;
+        }
+
+        Clause parseQuery() {
+            Clause clause = new Clause();
+            while (mPosition < mTokens.size()) {
+                if (peek() == CLOSE) {
+                    // A parenthesis that closes nothing
+                    mPosition++;
+                } else {
+                    clause.and(parseOr());
+                }
+            }
+            return clause;
+        }
+
+        private Clause parseOr() {
+            Clause clause = parseAnd();
+            while (peek() == OR) {
+                mPosition++;
+                clause = or(clause, parseAnd());
+            }
+            return clause;
+        }
+
+        private Clause parseAnd() {
+            Clause clause = new Clause();
+            while (mPosition < mTokens.size() && peek() != CLOSE && peek() != OR) {
+                if (peek() == AND) {
+                    mPosition++;
+                } else {
+                    clause.and(parseUnary());
+                }
+            }
+            return clause;
+        }
+
+        private Clause parseUnary() {
+            if (peek() != NOT) {
+                return parsePrimary();
+            }
+            mPosition++;
+            if (mPosition == mTokens.size() || peek() == CLOSE || peek() == OR) {
+                return new Clause();
+            }
+            Clause negated = parseUnary();
+            if (negated.isEmpty()) {
+                return negated;
+            }
+            ArrayList<String> args = new ArrayList<String>();
+            Clause clause = new Clause();
+            clause.conditions.add("NOT " + wrap(negated.toSql(mMatchWhere, args)));
+            clause.args.addAll(args);
+            return clause;
+        }
+
+        private Clause parsePrimary() {
+            Token token = mTokens.get(mPosition++);
+            switch (token.type) {
+                case OPEN:
+                    Clause group = parseOr();
+                    if (peek() == CLOSE) {
+                        mPosition++;
+                    }
+                    return group;
+
+                case PHRASE:
+                    return phraseClause(token.text);
+
+                case FIELD:
+                    return fieldClause(token);
+
+                default:
+                    return wordsClause(token.text);
+            }
+        }
+
+        private Clause or(Clause left, Clause right) {
+            if (left.isEmpty()) {
+                return right;
+            }
+            if (right.isEmpty()) {
+                return left;
+            }
+            ArrayList<String> args = new ArrayList<String>();
+            Clause clause = new Clause();
+            clause.conditions.add("(" + left.toSql(mMatchWhere, args) + " OR "
+                    + right.toSql(mMatchWhere, args) + ")");
+            clause.args.addAll(args);
+            return clause;
+        }
+
+        private static String wrap(String condition) {
+            return condition.startsWith("(") ? condition : "(" + condition + ")";
+        }
+
+        private static Clause wordsClause(String text) {
+            Clause clause = new Clause();
+            for (String term : SearchText.terms(text)) {
+                clause.phrases.add(matchTerm(term));
+            }
+            return clause;
+        }
+
+        private static Clause phraseClause(String text) {
+            Clause clause = new Clause();
+            String words = phraseWords(text);
+            if (words.length() > 0) {
+                clause.phrases.add('"' + words + '"');
+            }
+            return clause;
+        }
+
+        private Clause fieldClause(Token token) {
+            String value = token.value;
+            if (FIELD_TITLE.equals(token.text)) {
+                return titleClause(value, token.quoted);
+            }
+            if (value.length() == 0) {
+                // Nothing to filter by yet, as while "color:" is being typed
+                return new Clause();
+            }
+
+            Clause clause = new Clause();
+            if (FIELD_COLOR.equals(token.text)) {
+                String color = parseColor(value);
+                if (color == null) {
+                    return wordsClause(value);
+                }
+                clause.conditions.add(NotePad.Notes.COLUMN_NAME_BACKGROUND_COLOR
+                        + " = ? COLLATE NOCASE");
+                clause.args.add(color);
+            } else {
+                Long day = parseDate(value);
+                if (day == null) {
+                    return wordsClause(value);
+                }
+                clause.conditions.add(NotePad.Notes.COLUMN_NAME_MODIFICATION_DATE
+                        + (FIELD_BEFORE.equals(token.text) ? " < ?" : " >= ?"));
+                clause.args.add(Long.toString(day));
+            }
+            return clause;
+        }
+
+        /**
+         * Restricts words or a phrase to the title. The title condition is a subquery of its
+         * own, so it does not count towards the relevance.
+         */
+        private Clause titleClause(String value, boolean quoted) {
+            StringBuilder match = new StringBuilder();
+            Clause order = new Clause();
+            if (quoted) {
+                String words = phraseWords(value);
+                if (words.length() > 0) {
+                    appendTitlePhrase(match, words, order);
+                }
+            } else {
+                for (String term : SearchText.terms(value)) {
+                    if (match.length() > 0) {
+                        match.append(' ');
+                    }
+                    if (SearchText.isPhrase(term)) {
+                        appendTitlePhrase(match, SearchText.phraseWords(term), order);
+                    } else {
+                        match.append(SearchText.COLUMN_NAME_TITLE).append(':').append(term)
+                                .append('*');
+                    }
+                }
+            }
+
+            Clause clause = new Clause();
+            if (match.length() > 0) {
+                clause.conditions.add(mMatchWhere);
+                clause.args.add(match.toString());
+                clause.and(order);
+            }
+            return clause;
+        }
+
+        // Appends a phrase, its words separated by single spaces, to a MATCH expression
+        // limited to the title, and adds any other condition it needs to order
+        private void appendTitlePhrase(StringBuilder match, String words, Clause order) {
+            String column = SearchText.COLUMN_NAME_TITLE;
+            if (mFts5) {
+                match.append(column).append(" : \"").append(words).append('"');
+                return;
+            }
+
+            // FTS4 cannot limit a quoted phrase to a column, but it can require words in a
+            // column to be next to each other. NEAR takes them in either order, so LIKE
+            // checks that they come in order.
+            String[] split = words.split(" ");
+            StringBuilder pattern = new StringBuilder("%");
+            for (int i = 0; i < split.length; i++) {
+                if (i > 0) {
+                    match.append(" NEAR/0 ");
+                }
+                match.append(column).append(':').append(split[i]);
+                pattern.append(split[i].replace("\\", "\\\\").replace("%", "\\%")
+                        .replace("_", "\\_")).append('%');
+            }
+            if (split.length > 1) {
+                order.conditions.add(SearchText.TITLE + " LIKE ? ESCAPE '\\'");
+                order.args.add(pattern.toString());
+            }
+        }
+
+        // Returns the words of a phrase, normalized and separated by single spaces
+        private static String phraseWords(String text) {
+            StringBuilder words = new StringBuilder();
+            for (String term : SearchText.terms(text)) {
+                if (words.length() > 0) {
+                    words.append(' ');
+                }
+                words.append(SearchText.isPhrase(term) ? SearchText.phraseWords(term) : term);
+            }
+            return words.toString();
+        }
+
+        // Returns the color as it is stored, "#RRGGBB", or null if it is not a color. The
+        // names of the palette's colors come first, then the names Color knows.
+        private static String parseColor(String value) {
+            String named = NoteColors.valueOf(value);
+            if (named != null) {
+                return named;
+            }
+            boolean hex = value.matches("[0-9A-Fa-f]{6}");
+            try {
+                int color = Color.parseColor(hex ? "#" + value : value);
+                return String.format(Locale.ROOT, "#%06X", color & 0xffffff);
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        // Returns the start of the day in local time, or null if the value is not a date
+        private static Long parseDate(String value) {
+            SimpleDateFormat format = new SimpleDateFormat(DATE_FORMAT, Locale.ROOT);
+            format.setLenient(false);
+            ParsePosition position = new ParsePosition(0);
+            Date date = format.parse(value, position);
+            return date != null && position.getIndex() == value.length() ? date.getTime() : null;
+        }
+    }
+}
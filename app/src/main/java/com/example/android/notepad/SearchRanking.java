@@ -0,0 +1,311 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * Builds the SQL that ranks the notes matching a search by BM25, and extracts a snippet of
+ * each with the matches marked. Both are computed by SQLite as it reads the full-text index,
+ * so no note text is read into Java to rank it.
+ *
+ * <p>The matches are read by a subquery of the full-text index, which is joined to the notes
+ * table as {@link #TABLE_ALIAS}. With FTS5 the subquery uses its bm25() and snippet()
+ * functions. FTS4 has no bm25(), so the same formula is computed in SQL from matchinfo():
+ * the statistics that are the same for every row, such as how many notes contain each term,
+ * are read first with one query, and the per-row counts are decoded from each row's
+ * matchinfo() blob.
+ *
+ * <p>The full-text index extracts snippets from the text as it is searched. Where that is
+ * not the original text, {@link SnippetCursor} rewrites the snippet in the original text
+ * when it is read.
+ */
+final class SearchRanking {
+
+    /**
+     * The alias of the matching rows in the FROM clause. Their note id is in
+     * {@link #ID_COLUMN}.
+     */
+    static final String TABLE_ALIAS = "notes_ranked";
+
+    static final String ID_COLUMN = TABLE_ALIAS + ".ranked_id";
+
+    /**
+     * A match in the title counts this many times as much as a match in the note text
+     */
+    static final double TITLE_WEIGHT = 10.0;
+
+    // The usual BM25 parameters, the same ones FTS5's bm25() uses
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+
+    // Number of tokens in a match snippet
+    private static final int SNIPPET_TOKENS = 16;
+
+    // Marks where the full-text index leaves out text before or after a snippet
+    private static final String ELLIPSIS = "\u2026";
+
+    // Encloses the note id in front of a snippet of normalized text
+    private static final String ID_MARK = "\u0001";
+
+    // Each matchinfo() count is a 32-bit integer, but only its low three bytes are decoded.
+    // Counts of hits and tokens in the indexed part of a note never come near 2^24.
+    private static final int DECODED_BYTES = 3;
+
+    private static final boolean LITTLE_ENDIAN = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+
+    private final String mTable;
+    private final String mRelevance;
+
+    private SearchRanking(String table, String relevance) {
+        mTable = table;
+        mRelevance = relevance;
+    }
+
+    /**
+     * Returns the subquery of the matching rows, aliased as {@link #TABLE_ALIAS}. It has the
+     * columns {@link #ID_COLUMN} and {@link NotePad.Notes#COLUMN_NAME_MATCH_SNIPPET}.
+     */
+    String table() {
+        return mTable;
+    }
+
+    /**
+     * Returns the expression for a row's relevance, as described by
+     * {@link NotePad.Notes#COLUMN_NAME_RELEVANCE}. It reads the columns of {@link #table()}.
+     */
+    String relevance() {
+        return mRelevance;
+    }
+
+    /**
+     * Returns the expression for the match snippet column, which reads {@link #table()} and
+     * the notes table. A snippet of normalized text is tagged with the note's id, for
+     * {@link SnippetCursor} to rewrite.
+     */
+    static String matchSnippet() {
+        String snippet = TABLE_ALIAS + "." + NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET;
+        return "CASE WHEN " + SearchText.COLUMN_NAME_TITLE + " IS NULL AND "
+                + SearchText.COLUMN_NAME_NOTE + " IS NULL THEN " + snippet + " ELSE '"
+                + ID_MARK + "' || " + NotePad.Notes.TABLE_NAME + "." + NotePad.Notes._ID + " || '"
+                + ID_MARK + "' || " + snippet + " END";
+    }
+
+    /**
+     * Builds the ranking of the notes that match a search.
+     *
+     * @param searchTable the full-text index over the title and note columns, in that order
+     * @param fts5 whether the index is an FTS5 table; otherwise it is FTS4
+     * @param matchExpression the MATCH expression of the search
+     * @param phraseCount the number of phrases in the expression, all of which must match
+     */
+    static SearchRanking create(SQLiteDatabase db, String searchTable, boolean fts5,
+            String matchExpression, int phraseCount) {
+        String match = searchTable + " MATCH " + DatabaseUtils.sqlEscapeString(matchExpression);
+        String start = DatabaseUtils.sqlEscapeString(NotePad.Notes.MATCH_START);
+        String end = DatabaseUtils.sqlEscapeString(NotePad.Notes.MATCH_END);
+        String ellipsis = DatabaseUtils.sqlEscapeString(ELLIPSIS);
+
+        // The OFFSET keeps SQLite from flattening the subquery into the join, so the
+        // functions of the full-text index are called once per match, on the index's cursor
+        if (fts5) {
+            String table = "(SELECT rowid AS ranked_id, bm25(" + searchTable + ", "
+                    + TITLE_WEIGHT + ", 1.0) AS ranked_score, snippet(" + searchTable + ", -1, "
+                    + start + ", " + end + ", " + ellipsis + ", " + SNIPPET_TOKENS + ") AS "
+                    + NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET + " FROM " + searchTable
+                    + " WHERE " + match + " LIMIT -1 OFFSET 0) AS " + TABLE_ALIAS;
+
+            // bm25() is lower for better matches
+            return new SearchRanking(table, "round(-" + TABLE_ALIAS + ".ranked_score, 3)");
+        }
+
+        String matches = "(SELECT docid AS ranked_id, hex(matchinfo(" + searchTable
+                + ", 'lx')) AS ranked_info, snippet(" + searchTable + ", " + start + ", " + end
+                + ", " + ellipsis + ", -1, " + SNIPPET_TOKENS + ") AS "
+                + NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET
+                + " FROM " + searchTable + " WHERE " + match + " LIMIT -1 OFFSET 0)";
+
+        // The statistics of the whole index: the number of notes, the average number of
+        // tokens in each column, and, in the third value for each phrase and column, the
+        // number of notes with a match there
+        Cursor c = db.rawQuery("SELECT matchinfo(" + searchTable + ", 'nax') FROM "
+                + searchTable + " WHERE " + match + " LIMIT 1", null);
+        IntBuffer stats;
+        try {
+            if (!c.moveToFirst()) {
+                return new SearchRanking(matches + " AS " + TABLE_ALIAS, "0");
+            }
+            stats = ByteBuffer.wrap(c.getBlob(0)).order(ByteOrder.nativeOrder()).asIntBuffer();
+        } finally {
+            c.close();
+        }
+        double rowCount = unsigned(stats.get(0));
+        double averageLength = Math.max(unsigned(stats.get(1)) + unsigned(stats.get(2)), 1.0);
+
+        // Decodes the per-row counts of matchinfo(..., 'lx'): the number of tokens in each
+        // column, then three values for each phrase and column, the first of which is the
+        // number of matches in this row
+        StringBuilder table = new StringBuilder("(SELECT ranked_id, ")
+                .append(NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET).append(", ")
+                .append(K1 * (1 - B)).append(" + ").append(K1 * B / averageLength)
+                .append(" * (").append(matchinfoInt(0)).append(" + ").append(matchinfoInt(1))
+                .append(") AS ranked_norm");
+        StringBuilder relevance = new StringBuilder("round(");
+        for (int i = 0; i < phraseCount; i++) {
+            int titleIndex = 2 + 3 * (i * 2);
+            int noteIndex = 2 + 3 * (i * 2 + 1);
+            table.append(", ").append(TITLE_WEIGHT).append(" * ")
+                    .append(matchinfoInt(titleIndex)).append(" + ")
+                    .append(matchinfoInt(noteIndex)).append(" AS ranked_tf").append(i);
+
+            // FTS4 only counts the notes with a match in each column, so the larger of the two
+            // counts stands in for the number of notes with a match anywhere
+            double matchCount = Math.max(unsigned(stats.get(3 + 3 * (i * 2) + 2)),
+                    unsigned(stats.get(3 + 3 * (i * 2 + 1) + 2)));
+            double idf = Math.max(
+                    Math.log((rowCount - matchCount + 0.5) / (matchCount + 0.5)), 1e-6);
+
+            String tf = TABLE_ALIAS + ".ranked_tf" + i;
+            if (i > 0) {
+                relevance.append(" + ");
+            }
+            relevance.append(idf * (K1 + 1)).append(" * ").append(tf).append(" / (").append(tf)
+                    .append(" + ").append(TABLE_ALIAS).append(".ranked_norm)");
+        }
+        table.append(" FROM ").append(matches).append(") AS ").append(TABLE_ALIAS);
+        relevance.append(", 3)");
+        return new SearchRanking(table.toString(), relevance.toString());
+    }
+
+    /**
+     * Returns the expression for the integer at the given index of the hex-encoded
+     * matchinfo() blob in the ranked_info column.
+     */
+    private static String matchinfoInt(int index) {
+        StringBuilder sql = new StringBuilder("(");
+        for (int b = 0; b < DECODED_BYTES; b++) {
+            // matchinfo() writes its integers in native byte order
+            int hexOffset = 2 * (4 * index + (LITTLE_ENDIAN ? b : 3 - b)) + 1;
+            if (b > 0) {
+                sql.append(" + ");
+            }
+            sql.append('(').append(hexDigit(hexOffset)).append(" * 16 + ")
+                    .append(hexDigit(hexOffset + 1)).append(')');
+            if (b > 0) {
+                sql.append(" * ").append(1 << (8 * b));
+            }
+        }
+        return sql.append(')').toString();
+    }
+
+    private static String hexDigit(int offset) {
+        return "(instr('0123456789ABCDEF', substr(ranked_info, " + offset + ", 1)) - 1)";
+    }
+
+    private static double unsigned(int value) {
+        return value & 0xffffffffL;
+    }
+
+    /**
+     * The cursor returned for a ranked search. The snippets of notes with normalized text
+     * are of that text; each is rewritten in the note's original text the first time it is
+     * read, so only the snippets that are shown cost a lookup of their note.
+     */
+    static class SnippetCursor extends CursorWrapper {
+        private final SQLiteDatabase mDb;
+        private final int mSnippetColumn;
+
+        // The snippet of the row at mPosition, once it has been read
+        private int mPosition = -1;
+        private String mSnippet;
+
+        SnippetCursor(Cursor cursor, SQLiteDatabase db) {
+            super(cursor);
+            mDb = db;
+            mSnippetColumn = cursor.getColumnIndex(NotePad.Notes.COLUMN_NAME_MATCH_SNIPPET);
+        }
+
+        @Override
+        public String getString(int columnIndex) {
+            if (columnIndex != mSnippetColumn) {
+                return super.getString(columnIndex);
+            }
+            if (getPosition() != mPosition) {
+                mSnippet = originalSnippet(super.getString(columnIndex));
+                mPosition = getPosition();
+            }
+            return mSnippet;
+        }
+
+        @Override
+        public void copyStringToBuffer(int columnIndex, CharArrayBuffer buffer) {
+            if (columnIndex != mSnippetColumn) {
+                super.copyStringToBuffer(columnIndex, buffer);
+                return;
+            }
+            String snippet = getString(columnIndex);
+            if (snippet == null) {
+                buffer.sizeCopied = 0;
+                return;
+            }
+            if (buffer.data == null || buffer.data.length < snippet.length()) {
+                buffer.data = snippet.toCharArray();
+            } else {
+                snippet.getChars(0, snippet.length(), buffer.data, 0);
+            }
+            buffer.sizeCopied = snippet.length();
+        }
+
+        private String originalSnippet(String snippet) {
+            if (snippet == null || !snippet.startsWith(ID_MARK)) {
+                return snippet;
+            }
+            int idEnd = snippet.indexOf(ID_MARK, ID_MARK.length());
+            String id = snippet.substring(ID_MARK.length(), idEnd);
+            snippet = snippet.substring(idEnd + ID_MARK.length());
+
+            // The snippet is from the title or from the part of the note in the notes table
+            Cursor c = mDb.query(NotePad.Notes.TABLE_NAME, new String[] {
+                    NotePad.Notes.COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_NOTE },
+                    NotePad.Notes._ID + " = ?", new String[] { id }, null, null, null);
+            try {
+                if (c.moveToFirst()) {
+                    for (int i = 0; i < 2; i++) {
+                        String original = SearchText.originalSnippet(snippet, c.getString(i),
+                                NotePad.Notes.MATCH_START, NotePad.Notes.MATCH_END, ELLIPSIS);
+                        if (original != null) {
+                            return original;
+                        }
+                    }
+                }
+            } finally {
+                c.close();
+            }
+
+            // The note changed since the search ran, so its snippet stays as it was found
+            return snippet;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Remembers the ids matched by recent searches, so that NotePadProvider can answer a search
+ * that only extends an earlier one without going back to the full-text index. Typing "meet"
+ * and then "meeti" is the common case: every note that matches the longer query also matches
+ * the shorter one, so the new result is the old one filtered.
+ *
+ * <p>Filtering needs the text of each candidate note, so an entry can only narrow if it
+ * keeps that text. Entries keep it when it is ASCII, where the tokenization below agrees
+ * with every FTS tokenizer the provider can use. Other entries still answer exact repeats.
+ * Memory is bounded by the total number of ids and characters held across all entries.
+ *
+ * <p>Any write to the notes table must call {@link #invalidate()}. Results computed before
+ * the last invalidation are not accepted into the cache.
+ */
+class SearchResultCache {
+
+    // Limits on what the cache holds across all of its entries
+    private static final int MAX_IDS = 100000;
+    private static final int MAX_CHARS = 2 * 1024 * 1024;
+
+    private static class Entry {
+        final String[] terms;
+        final long[] ids;
+
+        // The lower-cased text of each note in ids, or null if the entry cannot narrow
+        final String[] texts;
+        final int chars;
+
+        Entry(String[] terms, long[] ids, String[] texts) {
+            this.terms = terms;
+            this.ids = ids;
+            this.texts = texts;
+            int length = 0;
+            if (texts != null) {
+                for (String text : texts) {
+                    length += text.length();
+                }
+            }
+            this.chars = length;
+        }
+    }
+
+    // Keyed by the terms joined with spaces; iterates from least to most recently used
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private int mIdCount;
+    private int mCharCount;
+    private long mGeneration;
+
+    /**
+     * Returns the current generation. Read it before querying the database, and pass it to
+     * {@link #put} with the results.
+     */
+    synchronized long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * Forgets every cached result. Called whenever notes are written.
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+        mEntries.clear();
+        mIdCount = 0;
+        mCharCount = 0;
+    }
+
+    /**
+     * Returns the ids of the notes that match all of the given search terms, or null if the
+     * cache cannot answer without the full-text index.
+     *
+     * @param terms lower-cased prefix terms, as returned by
+     *        {@link NotePadProvider#searchTerms(String)}
+     */
+    synchronized long[] get(String[] terms) {
+        Entry exact = mEntries.get(key(terms));
+        if (exact != null) {
+            return exact.ids;
+        }
+
+        if (!isAscii(terms)) {
+            return null;
+        }
+
+        // Narrows the smallest cached result that the new terms extend
+        Entry best = null;
+        for (Entry entry : mEntries.values()) {
+            if (entry.texts != null && extendsTerms(terms, entry.terms)
+                    && (best == null || entry.ids.length < best.ids.length)) {
+                best = entry;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+
+        long[] ids = new long[best.ids.length];
+        String[] texts = new String[best.ids.length];
+        int count = 0;
+        for (int i = 0; i < best.ids.length; i++) {
+            if (matchesAll(best.texts[i], terms)) {
+                ids[count] = best.ids[i];
+                texts[count] = best.texts[i];
+                count++;
+            }
+        }
+        ids = Arrays.copyOf(ids, count);
+
+        // Keeps the narrowed result too, so the next keystroke starts from a smaller set
+        store(terms, ids, Arrays.copyOf(texts, count));
+        return ids;
+    }
+
+    /**
+     * Caches the result of a search made with the full-text index.
+     *
+     * @param generation the value of {@link #generation()} from before the search ran
+     * @param terms the search terms
+     * @param ids the ids of the matching notes
+     * @param texts the title and note of each matching note, in the same order as ids, or
+     *        null if they were not read
+     */
+    synchronized void put(long generation, String[] terms, long[] ids, String[] texts) {
+        if (generation != mGeneration) {
+            // Notes were written while the search ran, so its result may already be stale
+            return;
+        }
+
+        String[] lowerCaseTexts = null;
+        if (texts != null && isAscii(texts)) {
+            lowerCaseTexts = new String[texts.length];
+            for (int i = 0; i < texts.length; i++) {
+                lowerCaseTexts[i] = toLowerCaseAscii(texts[i]);
+            }
+        }
+        store(terms, ids, lowerCaseTexts);
+    }
+
+    private void store(String[] terms, long[] ids, String[] texts) {
+        Entry entry = new Entry(terms, ids, texts);
+        if (entry.ids.length > MAX_IDS || entry.chars > MAX_CHARS) {
+            return;
+        }
+
+        Entry old = mEntries.put(key(terms), entry);
+        if (old != null) {
+            mIdCount -= old.ids.length;
+            mCharCount -= old.chars;
+        }
+        mIdCount += entry.ids.length;
+        mCharCount += entry.chars;
+
+        Iterator<Entry> eldest = mEntries.values().iterator();
+        while ((mIdCount > MAX_IDS || mCharCount > MAX_CHARS) && eldest.hasNext()) {
+            Entry evicted = eldest.next();
+            eldest.remove();
+            mIdCount -= evicted.ids.length;
+            mCharCount -= evicted.chars;
+        }
+    }
+
+    private static String key(String[] terms) {
+        StringBuilder key = new StringBuilder();
+        for (String term : terms) {
+            key.append(term).append(' ');
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns true if every note matching newTerms also matches oldTerms: each old term is a
+     * prefix of at least one new term.
+     */
+    private static boolean extendsTerms(String[] newTerms, String[] oldTerms) {
+        for (String oldTerm : oldTerms) {
+            boolean covered = false;
+            for (String newTerm : newTerms) {
+                if (newTerm.startsWith(oldTerm)) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the text has a word starting with each of the terms. Words are runs of
+     * letters and digits, the same as the terms the provider sends to the full-text index.
+     */
+    private static boolean matchesAll(String text, String[] terms) {
+        for (String term : terms) {
+            boolean found = false;
+            int from = 0;
+            int index;
+            while (!found && (index = text.indexOf(term, from)) >= 0) {
+                found = index == 0 || !Character.isLetterOrDigit(text.charAt(index - 1));
+                from = index + 1;
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isAscii(String[] strings) {
+        for (String string : strings) {
+            if (string == null) {
+                continue;
+            }
+            for (int i = 0; i < string.length(); i++) {
+                if (string.charAt(i) >= 0x80) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static String toLowerCaseAscii(String text) {
+        if (text == null) {
+            return "";
+        }
+        char[] chars = text.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            if (chars[i] >= 'A' && chars[i] <= 'Z') {
+                chars[i] += 'a' - 'A';
+            }
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Normalizes text for searching, so that a search matches whatever the user would consider
+ * the same text: compatibility forms are unified (NFKC, so full-width "ＡＢ" is "ab" and "ﬁ"
+ * is "fi"), case is folded for every script rather than only ASCII, and accents are removed,
+ * so "Café" and "cafe" match.
+ *
+ * <p>The provider keeps a normalized copy of each note's title and indexed text in the
+ * columns {@link #COLUMN_NAME_TITLE} and {@link #COLUMN_NAME_NOTE}, computed when the note is
+ * written, and the search indexes are built over the text in {@link #TITLE} and
+ * {@link #NOTE}. SQLite cannot call back into Java on this platform, so the normalization
+ * cannot be done in the query or in a trigger.
+ *
+ * <p>The copy costs up to another {@link NoteChunks#CHUNK_LENGTH} characters per note, so
+ * it is only stored where it differs from what the searches would read in the original:
+ * the full-text index, LIKE and the trigram index all fold ASCII letters to lower case
+ * themselves, so a note in plain ASCII, which is most notes, keeps no copy at all. The
+ * tokenizers of the full-text index cannot do the rest; unicode61 removes accents, but it
+ * neither applies NFKC nor sets ideographs apart, and FTS4 does not use it by default.
+ *
+ * <p>Chinese and Japanese are written without spaces between words, so in the stored text
+ * each ideograph or kana is set apart by spaces and becomes a word of its own. A search for
+ * a run of them looks for that run of words, in order.
+ */
+final class SearchText {
+
+    /**
+     * Column of the notes table with the normalized title
+     */
+    static final String COLUMN_NAME_TITLE = "normalized_title";
+
+    /**
+     * Column of the notes table with the normalized note text, of the part of the note in the
+     * notes table only
+     */
+    static final String COLUMN_NAME_NOTE = "normalized_note";
+
+    /**
+     * The title as it is searched: the normalized title, or the title itself if it has none
+     */
+    static final String TITLE = searched(null, COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_TITLE);
+
+    /**
+     * The note text as it is searched: the normalized text, or the text itself if it has none
+     */
+    static final String NOTE = searched(null, COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_NOTE);
+
+    private SearchText() {
+    }
+
+    /**
+     * Returns the text as it is stored for searching, or null if the text is null. The result
+     * of each character depends only on that character and its neighbours, so the normalized
+     * form of a fragment of text is found in the normalized form of the whole.
+     */
+    static String normalize(String text) {
+        if (text == null) {
+            return null;
+        }
+        String folded = fold(text);
+
+        StringBuilder spaced = null;
+        int previous = 0;
+        for (int i = 0; i < folded.length(); ) {
+            int codePoint = folded.codePointAt(i);
+            if (i > 0 && (isIdeographic(codePoint) || isIdeographic(previous))
+                    && !Character.isWhitespace(codePoint) && !Character.isWhitespace(previous)) {
+                if (spaced == null) {
+                    spaced = new StringBuilder(folded.length() * 2).append(folded, 0, i);
+                }
+                spaced.append(' ');
+            }
+            if (spaced != null) {
+                spaced.appendCodePoint(codePoint);
+            }
+            previous = codePoint;
+            i += Character.charCount(codePoint);
+        }
+        return spaced != null ? spaced.toString() : folded;
+    }
+
+    /**
+     * Returns the normalized text to store for the text, or null if the text is searched as
+     * it is, because normalizing it would only fold ASCII letters to lower case.
+     */
+    static String storedForm(String text) {
+        if (text == null || isAscii(text)) {
+            return null;
+        }
+        String normalized = normalize(text);
+        return normalized.equals(foldAscii(text)) ? null : normalized;
+    }
+
+    /**
+     * Returns {@link #TITLE} as read from the row with the given name in a trigger, such as
+     * "new"
+     */
+    static String title(String row) {
+        return searched(row, COLUMN_NAME_TITLE, NotePad.Notes.COLUMN_NAME_TITLE);
+    }
+
+    /**
+     * Returns {@link #NOTE} as read from the row with the given name in a trigger, such as
+     * "new"
+     */
+    static String note(String row) {
+        return searched(row, COLUMN_NAME_NOTE, NotePad.Notes.COLUMN_NAME_NOTE);
+    }
+
+    private static String searched(String row, String normalizedColumn, String column) {
+        String prefix = row != null ? row + "." : "";
+        return "ifnull(" + prefix + normalizedColumn + ", " + prefix + column + ")";
+    }
+
+    /**
+     * Rewrites a snippet of normalized text, as the full-text index extracts it, in the
+     * original text it is from: the same stretch of the text, with the same words marked.
+     * Returns null if the snippet is not from the text.
+     *
+     * @param snippet the snippet, with each match between start and end, and the ellipsis
+     *        at either end where it leaves out the rest of the text
+     */
+    static String originalSnippet(String snippet, String text, String start, String end,
+            String ellipsis) {
+        if (text == null) {
+            return null;
+        }
+        boolean leading = snippet.startsWith(ellipsis);
+        if (leading) {
+            snippet = snippet.substring(ellipsis.length());
+        }
+        boolean trailing = snippet.endsWith(ellipsis);
+        if (trailing) {
+            snippet = snippet.substring(0, snippet.length() - ellipsis.length());
+        }
+
+        // Takes the marks out, remembering where each was: its position in the plain
+        // snippet, times two, plus one for the end of a match
+        StringBuilder plain = new StringBuilder(snippet.length());
+        int[] marks = new int[8];
+        int markCount = 0;
+        for (int i = 0; i < snippet.length(); ) {
+            boolean isStart = snippet.startsWith(start, i);
+            if (isStart || snippet.startsWith(end, i)) {
+                if (markCount == marks.length) {
+                    marks = Arrays.copyOf(marks, markCount * 2);
+                }
+                marks[markCount++] = plain.length() * 2 + (isStart ? 0 : 1);
+                i += isStart ? start.length() : end.length();
+            } else {
+                plain.append(snippet.charAt(i++));
+            }
+        }
+
+        // Normalizes the text a character and its accents at a time, so that each character
+        // of the result has the stretch of the text it is from: offsets[2 * i] up to
+        // offsets[2 * i + 1]. A space set between ideographs is from an empty stretch.
+        StringBuilder normalized = new StringBuilder(text.length());
+        int[] offsets = new int[text.length() * 2 + 16];
+        int previous = 0;
+        for (int i = 0; i < text.length(); ) {
+            int next = i + Character.charCount(text.codePointAt(i));
+            while (next < text.length() && isMark(text.codePointAt(next))) {
+                next += Character.charCount(text.codePointAt(next));
+            }
+            String folded = fold(text.substring(i, next));
+            for (int k = 0; k < folded.length(); ) {
+                int codePoint = folded.codePointAt(k);
+                if (offsets.length < (normalized.length() + 3) * 2) {
+                    offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                }
+                if (normalized.length() > 0
+                        && (isIdeographic(codePoint) || isIdeographic(previous))
+                        && !Character.isWhitespace(codePoint)
+                        && !Character.isWhitespace(previous)) {
+                    offsets[normalized.length() * 2] = i;
+                    offsets[normalized.length() * 2 + 1] = i;
+                    normalized.append(' ');
+                }
+                int charCount = Character.charCount(codePoint);
+                for (int c = 0; c < charCount; c++) {
+                    offsets[normalized.length() * 2] = i;
+                    offsets[normalized.length() * 2 + 1] = next;
+                    normalized.append(folded.charAt(k + c));
+                }
+                previous = codePoint;
+                k += charCount;
+            }
+            i = next;
+        }
+
+        int at = normalized.indexOf(plain.toString());
+        if (plain.length() == 0 || at < 0) {
+            return null;
+        }
+        int startOffset = offsets[at * 2];
+        int endOffset = offsets[(at + plain.length() - 1) * 2 + 1];
+        StringBuilder original = new StringBuilder(endOffset - startOffset + markCount * 2 + 2);
+        if (leading) {
+            original.append(ellipsis);
+        }
+        int copied = startOffset;
+        for (int m = 0; m < markCount; m++) {
+            int position = marks[m] >> 1;
+            boolean isEnd = (marks[m] & 1) != 0;
+            int offset;
+            if (isEnd) {
+                offset = position > 0 ? offsets[(at + position - 1) * 2 + 1] : startOffset;
+            } else {
+                offset = position < plain.length() ? offsets[(at + position) * 2] : endOffset;
+            }
+            offset = Math.max(offset, copied);
+            original.append(text, copied, offset).append(isEnd ? end : start);
+            copied = offset;
+        }
+        original.append(text, copied, Math.max(endOffset, copied));
+        if (trailing) {
+            original.append(ellipsis);
+        }
+        return original.toString();
+    }
+
+    /**
+     * Splits a search typed by the user into normalized terms. A term is either a run of
+     * letters and digits, or a run of ideographs and kana, which {@link #isPhrase} tells
+     * apart. Everything else separates terms.
+     */
+    static String[] terms(String query) {
+        if (query == null) {
+            return new String[0];
+        }
+        String folded = fold(query);
+
+        ArrayList<String> terms = new ArrayList<String>();
+        int start = -1;
+        boolean phrase = false;
+        for (int i = 0; i <= folded.length(); ) {
+            int codePoint = i < folded.length() ? folded.codePointAt(i) : ' ';
+            boolean inTerm = Character.isLetterOrDigit(codePoint);
+            boolean ideographic = isIdeographic(codePoint);
+            if (start >= 0 && (!inTerm || ideographic != phrase)) {
+                terms.add(folded.substring(start, i));
+                start = -1;
+            }
+            if (inTerm && start < 0) {
+                start = i;
+                phrase = ideographic;
+            }
+            i += i < folded.length() ? Character.charCount(codePoint) : 1;
+        }
+        return terms.toArray(new String[terms.size()]);
+    }
+
+    /**
+     * Returns whether a term returned by {@link #terms} is a run of ideographs and kana,
+     * each of which is a word of its own in the stored text
+     */
+    static boolean isPhrase(String term) {
+        return term.length() > 0 && isIdeographic(term.codePointAt(0));
+    }
+
+    /**
+     * Returns the words of a phrase term, separated by spaces, as they are in the stored text
+     */
+    static String phraseWords(String term) {
+        StringBuilder words = new StringBuilder(term.length() * 2);
+        for (int i = 0; i < term.length(); ) {
+            int codePoint = term.codePointAt(i);
+            if (i > 0) {
+                words.append(' ');
+            }
+            words.appendCodePoint(codePoint);
+            i += Character.charCount(codePoint);
+        }
+        return words.toString();
+    }
+
+    /**
+     * Folds the text to its search form without spacing out ideographs: decomposes it,
+     * removes accents, folds its case and composes it again.
+     */
+    private static String fold(String text) {
+        if (isAscii(text)) {
+            return text.toLowerCase(Locale.ROOT);
+        }
+
+        // NFKD followed by NFC is NFKC, with the accents taken out in between. Only the
+        // combining marks used as accents on Latin, Greek and Cyrillic letters are removed;
+        // the marks of other scripts are part of their letters.
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFKD);
+        StringBuilder stripped = new StringBuilder(decomposed.length());
+        for (int i = 0; i < decomposed.length(); i++) {
+            char ch = decomposed.charAt(i);
+            if (ch < '\u0300' || ch > '\u036f') {
+                stripped.append(ch);
+            }
+        }
+
+        // Upper then lower case also folds characters such as "ß", which have no single
+        // lower-case form. A final sigma depends on what follows it, so it is made an
+        // ordinary sigma, or a fragment would fold differently from the text it is from.
+        String cased = stripped.toString().toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT)
+                .replace('\u03c2', '\u03c3');
+        return Normalizer.normalize(cased, Normalizer.Form.NFC);
+    }
+
+    // Returns whether the character is a combining mark, which is normalized together with
+    // the character before it
+    private static boolean isMark(int codePoint) {
+        int type = Character.getType(codePoint);
+        return type == Character.NON_SPACING_MARK || type == Character.ENCLOSING_MARK
+                || type == Character.COMBINING_SPACING_MARK;
+    }
+
+    /**
+     * Returns whether the character is a Chinese or Japanese ideograph or kana
+     */
+    private static boolean isIdeographic(int codePoint) {
+        return (codePoint >= 0x3040 && codePoint <= 0x30ff)      // Hiragana and Katakana
+                || (codePoint >= 0x3400 && codePoint <= 0x4dbf)  // CJK Extension A
+                || (codePoint >= 0x4e00 && codePoint <= 0x9fff)  // CJK Unified Ideographs
+                || (codePoint >= 0xf900 && codePoint <= 0xfaff)  // CJK Compatibility
+                || (codePoint >= 0x20000 && codePoint <= 0x2fa1f);
+    }
+
+    // Folds ASCII letters to lower case, as every search of the original text does
+    private static String foldAscii(String text) {
+        char[] chars = null;
+        for (int i = 0; i < text.length(); i++) {
+            char ch = text.charAt(i);
+            if (ch >= 'A' && ch <= 'Z') {
+                if (chars == null) {
+                    chars = text.toCharArray();
+                }
+                chars[i] = (char) (ch + ('a' - 'A'));
+            }
+        }
+        return chars != null ? new String(chars) : text;
+    }
+
+    /**
+     * Returns whether the text is all ASCII
+     */
+    static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.notepad;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * An index of the three-character sequences in each note's title and text, which finds the
+ * notes containing a fragment of a word, such as part of a part number, without reading
+ * every note. The full-text index cannot, since it only matches whole words and their
+ * prefixes.
+ *
+ * <p>The index is built from the title and text as {@link SearchText} searches them, which are
+ * split into words, runs of letters and digits, and each word is padded with a space on
+ * either side, so that the trigrams of a word include its start and its end. ASCII letters
+ * are also folded to lower case, the same folding SQLite's LIKE does, so a candidate found
+ * here can be checked with LIKE. Like the full-text index, only the part of a note in the
+ * notes table is indexed.
+ *
+ * <p>Triggers on the notes table record the ids of the notes that change in a pending table,
+ * and {@link #update} reindexes them. The provider calls it in the transaction of each write,
+ * so the index is always current and searches only read it. Each note's trigrams are also
+ * kept as a set, so that reindexing a note only writes the trigrams that changed.
+ */
+final class TrigramIndex {
+
+    /**
+     * The table of (trigram, note id) pairs
+     */
+    static final String TABLE_NAME = "note_trigrams";
+
+    private static final String SETS_TABLE_NAME = "note_trigram_sets";
+
+    /**
+     * The table of the ids of the notes that changed since the last {@link #update}
+     */
+    static final String PENDING_TABLE_NAME = "note_trigrams_pending";
+
+    private static final String COLUMN_NAME_TRIGRAM = "trigram";
+    private static final String COLUMN_NAME_NOTE_ID = "note_id";
+    private static final String COLUMN_NAME_TRIGRAMS = "trigrams";
+
+    // Number of notes reindexed in each transaction
+    private static final int UPDATE_BATCH_SIZE = 500;
+
+    // How far the postings of each trigram of a fragment are counted, to find the rarest
+    private static final int SAMPLE_LIMIT = 1000;
+
+    // Number of trigrams besides the rarest that candidates are checked against. The LIKE
+    // that follows checks the rest, so more would only cost more lookups.
+    private static final int MAX_PROBES = 4;
+
+    private TrigramIndex() {
+    }
+
+    /**
+     * Returns whether the database has the index
+     */
+    static boolean exists(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "SELECT count(*) FROM sqlite_master WHERE"
+                + " type = 'table' AND name = ?", new String[] { TABLE_NAME }) > 0;
+    }
+
+    /**
+     * Creates the index and its triggers, and marks every note as pending, so the next
+     * {@link #update} indexes them all.
+     */
+    static void create(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_NAME + " ("
+                + COLUMN_NAME_TRIGRAM + " INTEGER NOT NULL,"
+                + COLUMN_NAME_NOTE_ID + " INTEGER NOT NULL,"
+                + "PRIMARY KEY (" + COLUMN_NAME_TRIGRAM + ", " + COLUMN_NAME_NOTE_ID + ")"
+                + ") WITHOUT ROWID;");
+        db.execSQL("CREATE TABLE " + SETS_TABLE_NAME + " ("
+                + COLUMN_NAME_NOTE_ID + " INTEGER PRIMARY KEY,"
+                + COLUMN_NAME_TRIGRAMS + " BLOB NOT NULL"
+                + ");");
+        db.execSQL("CREATE TABLE " + PENDING_TABLE_NAME + " ("
+                + COLUMN_NAME_NOTE_ID + " INTEGER PRIMARY KEY"
+                + ");");
+
+        String markNew = " BEGIN INSERT OR IGNORE INTO " + PENDING_TABLE_NAME + " VALUES (new."
+                + NotePad.Notes._ID + "); END;";
+        db.execSQL("CREATE TRIGGER " + TABLE_NAME + "_ai AFTER INSERT ON "
+                + NotePad.Notes.TABLE_NAME + markNew);
+        db.execSQL("CREATE TRIGGER " + TABLE_NAME + "_au AFTER UPDATE OF "
+                + NotePad.Notes.COLUMN_NAME_TITLE + ", " + NotePad.Notes.COLUMN_NAME_NOTE + ", "
+                + SearchText.COLUMN_NAME_TITLE + ", " + SearchText.COLUMN_NAME_NOTE + " ON "
+                + NotePad.Notes.TABLE_NAME + markNew);
+        db.execSQL("CREATE TRIGGER " + TABLE_NAME + "_ad AFTER DELETE ON "
+                + NotePad.Notes.TABLE_NAME + " BEGIN INSERT OR IGNORE INTO " + PENDING_TABLE_NAME
+                + " VALUES (old." + NotePad.Notes._ID + "); END;");
+
+        db.execSQL("INSERT INTO " + PENDING_TABLE_NAME + " SELECT " + NotePad.Notes._ID
+                + " FROM " + NotePad.Notes.TABLE_NAME);
+    }
+
+    /**
+     * Drops the index and its triggers
+     */
+    static void drop(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS " + TABLE_NAME + "_ai");
+        db.execSQL("DROP TRIGGER IF EXISTS " + TABLE_NAME + "_au");
+        db.execSQL("DROP TRIGGER IF EXISTS " + TABLE_NAME + "_ad");
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + SETS_TABLE_NAME);
+        db.execSQL("DROP TABLE IF EXISTS " + PENDING_TABLE_NAME);
+    }
+
+    /**
+     * Reindexes the notes that changed since the last update, in transactions of
+     * {@link #UPDATE_BATCH_SIZE} notes, which join the caller's transaction if it has one.
+     * Costs a single lookup if none did.
+     *
+     * @return the number of notes reindexed
+     */
+    static int update(SQLiteDatabase db) {
+        int updated = 0;
+        SQLiteStatement insert = db.compileStatement("INSERT OR IGNORE INTO " + TABLE_NAME
+                + " (" + COLUMN_NAME_TRIGRAM + ", " + COLUMN_NAME_NOTE_ID + ") VALUES (?, ?)");
+        SQLiteStatement delete = db.compileStatement("DELETE FROM " + TABLE_NAME + " WHERE "
+                + COLUMN_NAME_TRIGRAM + " = ? AND " + COLUMN_NAME_NOTE_ID + " = ?");
+        try {
+            while (true) {
+                int batch = 0;
+                db.beginTransaction();
+                try {
+                    Cursor c = db.query(PENDING_TABLE_NAME, new String[] { COLUMN_NAME_NOTE_ID },
+                            null, null, null, null, null, Integer.toString(UPDATE_BATCH_SIZE));
+                    try {
+                        while (c.moveToNext()) {
+                            reindex(db, c.getLong(0), insert, delete);
+                            batch++;
+                        }
+                    } finally {
+                        c.close();
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+
+                updated += batch;
+                if (batch < UPDATE_BATCH_SIZE) {
+                    return updated;
+                }
+            }
+        } finally {
+            insert.close();
+            delete.close();
+        }
+    }
+
+    private static void reindex(SQLiteDatabase db, long noteId, SQLiteStatement insert,
+            SQLiteStatement delete) {
+        String[] idArgs = new String[] { Long.toString(noteId) };
+        long[] oldTrigrams = new long[0];
+        Cursor c = db.query(SETS_TABLE_NAME, new String[] { COLUMN_NAME_TRIGRAMS },
+                COLUMN_NAME_NOTE_ID + " = ?", idArgs, null, null, null);
+        try {
+            if (c.moveToFirst()) {
+                oldTrigrams = decode(c.getBlob(0));
+            }
+        } finally {
+            c.close();
+        }
+
+        // A note that is no longer in the notes table was deleted
+        long[] newTrigrams = new long[0];
+        boolean deleted = true;
+        c = db.query(NotePad.Notes.TABLE_NAME, new String[] { SearchText.TITLE, SearchText.NOTE },
+                NotePad.Notes._ID + " = ?", idArgs, null, null, null);
+        try {
+            if (c.moveToFirst()) {
+                deleted = false;
+                String title = c.getString(0);
+                String note = c.getString(1);
+                newTrigrams = wordTrigrams((title != null ? title : "") + "\n"
+                        + (note != null ? note : ""));
+            }
+        } finally {
+            c.close();
+        }
+
+        // Both sets are sorted, so one pass finds what was removed and what was added
+        int i = 0;
+        int j = 0;
+        while (i < oldTrigrams.length || j < newTrigrams.length) {
+            if (j == newTrigrams.length
+                    || (i < oldTrigrams.length && oldTrigrams[i] < newTrigrams[j])) {
+                delete.bindLong(1, oldTrigrams[i++]);
+                delete.bindLong(2, noteId);
+                delete.executeUpdateDelete();
+            } else if (i == oldTrigrams.length || newTrigrams[j] < oldTrigrams[i]) {
+                insert.bindLong(1, newTrigrams[j++]);
+                insert.bindLong(2, noteId);
+                insert.executeInsert();
+            } else {
+                i++;
+                j++;
+            }
+        }
+
+        if (deleted) {
+            db.delete(SETS_TABLE_NAME, COLUMN_NAME_NOTE_ID + " = ?", idArgs);
+        } else {
+            ContentValues values = new ContentValues();
+            values.put(COLUMN_NAME_NOTE_ID, noteId);
+            values.put(COLUMN_NAME_TRIGRAMS, encode(newTrigrams));
+            db.replace(SETS_TABLE_NAME, null, values);
+        }
+        db.delete(PENDING_TABLE_NAME, COLUMN_NAME_NOTE_ID + " = ?", idArgs);
+    }
+
+    /**
+     * Returns the trigrams of every word in the text, each word padded on both sides, in
+     * increasing order and without duplicates.
+     */
+    static long[] wordTrigrams(CharSequence text) {
+        return trigrams(text, true);
+    }
+
+    /**
+     * Returns a WHERE clause for the notes table that selects the notes that have every
+     * trigram of the given fragment of text, or null if the fragment is too short to have
+     * any. Words cut off by the ends of the fragment are not padded there, since the fragment
+     * may start or end in the middle of a word. The clause can select notes that have the
+     * trigrams but not the fragment, so the caller checks the candidates.
+     */
+    static String fragmentWhere(SQLiteDatabase db, String fragment) {
+        long[] trigrams = trigrams(fragment, false);
+        if (trigrams.length == 0) {
+            return null;
+        }
+
+        // Counts the notes with each trigram, up to a limit, and drives the lookup from the
+        // rarest, probing the next rarest for each of its notes
+        long[] counts = new long[trigrams.length];
+        SQLiteStatement count = db.compileStatement("SELECT count(*) FROM (SELECT 1 FROM "
+                + TABLE_NAME + " WHERE " + COLUMN_NAME_TRIGRAM + " = ? LIMIT " + SAMPLE_LIMIT
+                + ")");
+        try {
+            for (int i = 0; i < trigrams.length; i++) {
+                count.bindLong(1, trigrams[i]);
+                counts[i] = count.simpleQueryForLong();
+                if (counts[i] == 0) {
+                    return "0";
+                }
+            }
+        } finally {
+            count.close();
+        }
+        Integer[] order = new Integer[trigrams.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        final long[] sampled = counts;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(sampled[a], sampled[b]);
+            }
+        });
+
+        StringBuilder where = new StringBuilder(NotePad.Notes._ID).append(" IN (SELECT ")
+                .append(COLUMN_NAME_NOTE_ID).append(" FROM ").append(TABLE_NAME)
+                .append(" AS rarest WHERE ").append(COLUMN_NAME_TRIGRAM).append(" = ")
+                .append(trigrams[order[0]]);
+        for (int i = 1; i < order.length && i <= MAX_PROBES; i++) {
+            where.append(" AND EXISTS (SELECT 1 FROM ").append(TABLE_NAME).append(" WHERE ")
+                    .append(COLUMN_NAME_TRIGRAM).append(" = ").append(trigrams[order[i]])
+                    .append(" AND ").append(COLUMN_NAME_NOTE_ID).append(" = rarest.")
+                    .append(COLUMN_NAME_NOTE_ID).append(')');
+        }
+        return where.append(')').toString();
+    }
+
+    /**
+     * Returns a subquery, aliased as {@link SearchRanking#TABLE_ALIAS}, of the ids of the
+     * notes that have at least minShared of the given trigrams, in ranked_id, and how many
+     * of them each has, in ranked_shared.
+     */
+    static String sharedTrigramsTable(long[] trigrams, int minShared) {
+        StringBuilder table = new StringBuilder("(SELECT ").append(COLUMN_NAME_NOTE_ID)
+                .append(" AS ranked_id, count(*) AS ranked_shared FROM ").append(TABLE_NAME)
+                .append(" WHERE ").append(COLUMN_NAME_TRIGRAM).append(" IN (");
+        for (int i = 0; i < trigrams.length; i++) {
+            if (i > 0) {
+                table.append(',');
+            }
+            table.append(trigrams[i]);
+        }
+        return table.append(") GROUP BY ").append(COLUMN_NAME_NOTE_ID)
+                .append(" HAVING count(*) >= ").append(minShared).append(") AS ")
+                .append(SearchRanking.TABLE_ALIAS).toString();
+    }
+
+    private static long[] trigrams(CharSequence text, boolean padEnds) {
+        int length = text.length();
+        long[] trigrams = new long[Math.max(length, 16)];
+        int count = 0;
+        int start = -1;
+        for (int i = 0; i <= length; i++) {
+            boolean inWord = i < length && Character.isLetterOrDigit(text.charAt(i));
+            if (inWord && start < 0) {
+                start = i;
+            } else if (!inWord && start >= 0) {
+                boolean padStart = padEnds || start > 0;
+                boolean padEnd = padEnds || i < length;
+
+                // Slides over the padded word: a space, its letters, and a space
+                long window = 0;
+                int filled = 0;
+                for (int k = padStart ? start - 1 : start; k <= (padEnd ? i : i - 1); k++) {
+                    char ch = (k < start || k >= i) ? ' ' : fold(text.charAt(k));
+                    window = ((window << 16) | ch) & 0xffffffffffffL;
+                    if (++filled >= 3) {
+                        if (count == trigrams.length) {
+                            trigrams = Arrays.copyOf(trigrams, count * 2);
+                        }
+                        trigrams[count++] = window;
+                    }
+                }
+                start = -1;
+            }
+        }
+
+        Arrays.sort(trigrams, 0, count);
+        int unique = 0;
+        for (int i = 0; i < count; i++) {
+            if (unique == 0 || trigrams[i] != trigrams[unique - 1]) {
+                trigrams[unique++] = trigrams[i];
+            }
+        }
+        return Arrays.copyOf(trigrams, unique);
+    }
+
+    // Folds ASCII letters to lower case, like SQLite's LIKE and lower() do
+    private static char fold(char ch) {
+        return ch >= 'A' && ch <= 'Z' ? (char) (ch + ('a' - 'A')) : ch;
+    }
+
+    private static byte[] encode(long[] trigrams) {
+        ByteBuffer buffer = ByteBuffer.allocate(trigrams.length * 8);
+        buffer.asLongBuffer().put(trigrams);
+        return buffer.array();
+    }
+
+    private static long[] decode(byte[] blob) {
+        long[] trigrams = new long[blob.length / 8];
+        ByteBuffer.wrap(blob).asLongBuffer().get(trigrams);
+        return trigrams;
+    }
+}